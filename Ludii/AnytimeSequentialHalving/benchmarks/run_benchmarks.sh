@@ -0,0 +1,45 @@
+#!/bin/bash
+#JMH benchmarks of our agents, compiled against the Ludii jar in ../lib (see the README)
+#Usage: ./run_benchmarks.sh [JMH options], e.g.
+#   ./run_benchmarks.sh AgentBenchmark -p gameName=Clobber.lud -p agentName=shuct,uct
+#Without options, every benchmark is run with the gc profiler (for the allocation rate),
+#and the results are written to results/benchmarks_<date>.json
+
+set -e
+cd "$(dirname "$0")"
+
+jmh_version="1.37"
+maven="https://repo1.maven.org/maven2"
+jars=("org/openjdk/jmh/jmh-core/${jmh_version}/jmh-core-${jmh_version}.jar"
+      "org/openjdk/jmh/jmh-generator-annprocess/${jmh_version}/jmh-generator-annprocess-${jmh_version}.jar"
+      "net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar"
+      "org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar")
+
+#Fetch JMH into lib, unless it is there already
+mkdir -p lib
+for jar in "${jars[@]}";
+    do
+    if [ ! -f "lib/$(basename "$jar")" ]; then
+        curl -sSfL -o "lib/$(basename "$jar")" "${maven}/${jar}"
+    fi
+done
+
+if ! ls ../lib/Ludii-*.jar > /dev/null 2>&1; then
+    echo "No Ludii jar found in ../lib" >&2
+    exit 1
+fi
+
+classpath="build/classes:lib/*:$(ls ../lib/Ludii-*.jar | head -n 1)"
+
+#Compile the agents and the benchmarks together, JMH generates its harness while compiling
+rm -rf build
+mkdir -p build/classes
+javac -encoding UTF-8 -d build/classes -cp "$classpath" -processorpath "lib/*" \
+    $(find ../src src -name "*.java")
+
+if [ $# -eq 0 ]; then
+    mkdir -p results
+    set -- -prof gc -rf json -rff "results/benchmarks_$(date +%Y%m%d_%H%M%S).json"
+fi
+
+java -cp "$classpath" org.openjdk.jmh.Main "$@"
@@ -0,0 +1,244 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import game.Game;
+import mcts.DoubleIterationClustering;
+import mcts.EntropySHUCTAnytime;
+import mcts.ExampleUCT;
+import mcts.SHUCT;
+import mcts.SHUCTAnyTime;
+import mcts.SHUCTTime;
+import mcts.SearchReport;
+import mcts.SearchReporter;
+import mcts.StandardClustering;
+import other.AI;
+import other.GameLoader;
+import other.context.Context;
+import other.move.Move;
+import other.trial.Trial;
+
+/**
+ * Measures a single selectAction() of every one of our agents, from fixed reference positions in the
+ * games of our experiments. A reference position is reached by playing referencePly random moves with
+ * a fixed seed from the initial state, so every run (and every machine) searches the same positions.
+ *
+ * Every agent except SHUCTTime gets the same budget of iterations, so the time per selectAction()
+ * (AverageTime) and the number of iterations per second (the "iterations" counter in Throughput mode)
+ * can be compared between agents and between versions of the code. SHUCTTime only knows about time,
+ * so it gets shucttimeSeconds per move instead: its time per selectAction() shows how far it overruns
+ * its time. Run with "-prof gc" for the allocation rate (see run_benchmarks.sh).
+ *
+ * The iterations counter counts the iterations the agents report they completed (see SearchReport),
+ * rather than the budget we gave them, since an agent does not always use all of it. Listening to the
+ * searches makes the agents time their phases, which costs a little time, but the same for every
+ * version of the code.
+ *
+ * Tree reuse and pondering are turned off, so every invocation starts from an empty tree.
+ *
+ * @author Sashank Chapala
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class AgentBenchmark
+{
+
+	//-------------------------------------------------------------------------
+
+	/** Name of the game (with the same names as in our experiment scripts) */
+	@Param({"Clobber.lud", "Breakthrough.lud", "Amazons.lud", "Yavalath.lud"})
+	public String gameName;
+
+	/** Name of the agent (with the same names as in AgentExperimentRunner) */
+	@Param({"uct", "shuct", "shucttime", "shuctanytime", "entropyshuctanytime", "standardClustering", "doubleIterationClustering"})
+	public String agentName;
+
+	/** Number of iterations per selectAction() of the agents which support an iteration budget */
+	@Param({"10000"})
+	public int iterations;
+
+	/** Number of seconds per selectAction() of SHUCTTime */
+	@Param({"1.0"})
+	public double shucttimeSeconds;
+
+	/** Number of random moves played from the initial state to reach the reference position */
+	@Param({"10"})
+	public int referencePly;
+
+	/** Seed of the random moves leading to the reference position */
+	@Param({"2024"})
+	public long referenceSeed;
+
+	//-------------------------------------------------------------------------
+
+	/** The game we search */
+	private Game game;
+
+	/** The reference position (every invocation searches a copy of it) */
+	private Context reference;
+
+	/** The agent we measure */
+	private AI agent;
+
+	/** Number of seconds we pass to selectAction() (-1 for no time limit) */
+	private double maxSeconds;
+
+	/** Number of iterations we pass to selectAction() (-1 for no iteration limit) */
+	private int maxIterations;
+
+	/** Number of iterations the agent completed in its last search, according to its SearchReport */
+	private int reportedIterations;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Number of MCTS iterations our agents ran. JMH reports it per second in Throughput mode.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class IterationCounter
+	{
+		/** Number of iterations run in the current benchmark iteration */
+		public long iterations;
+
+		/**
+		 * Starts counting from 0 in every benchmark iteration
+		 */
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			iterations = 0L;
+		}
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Loads the game, plays out to the reference position and creates the agent
+	 */
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		game = GameLoader.loadGameFromName(gameName);
+		reference = referencePosition(game, referencePly, referenceSeed);
+
+		final boolean timed = agentName.equalsIgnoreCase("shucttime");
+		maxSeconds = timed ? shucttimeSeconds : -1.0;
+		maxIterations = timed ? -1 : iterations;
+
+		agent = createAgent(agentName, iterations);
+		agent.initAI(game, reference.state().mover());
+
+		// All our agents report their searches, on the thread which called selectAction()
+		((SearchReporter) agent).addSearchListener((final SearchReport report) -> reportedIterations = report.iterations());
+	}
+
+	/**
+	 * Lets the agent clean up (which stops any threads it created)
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		agent.closeAI();
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @param counter
+	 * @return The move the agent picks in the reference position
+	 */
+	@Benchmark
+	public Move selectAction(final IterationCounter counter)
+	{
+		reportedIterations = 0;
+		final Move move = agent.selectAction(game, new Context(reference), maxSeconds, maxIterations, -1);
+		counter.iterations += reportedIterations;
+		return move;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @param game
+	 * @param ply Number of random moves to play from the initial state
+	 * @param seed
+	 * @return The state after playing the given number of random moves with the given seed
+	 */
+	public static Context referencePosition(final Game game, final int ply, final long seed)
+	{
+		final Context context = new Context(game, new Trial(game));
+		game.start(context);
+		game.playout(context, null, 1.0, null, 0, ply, new Random(seed));
+
+		if (context.trial().over())
+			throw new IllegalStateException(game.name() + " is already over after " + ply + " random moves with seed " + seed);
+
+		return context;
+	}
+
+	/**
+	 * Creates an agent the same way AgentExperimentRunner does (with its default settings, so the agents 
+	 * which can reuse their tree do not keep it between invocations).
+	 *
+	 * @param agentName
+	 * @param iterations Iteration budget of the agents which take one in their constructor
+	 * @return The agent
+	 */
+	public static AI createAgent(final String agentName, final int iterations)
+	{
+		if (agentName.equalsIgnoreCase("uct"))
+		{
+			return new ExampleUCT(-1.0);
+		}
+		else if (agentName.equalsIgnoreCase("shuct"))
+		{
+			return new SHUCT(iterations);
+		}
+		else if (agentName.equalsIgnoreCase("shucttime"))
+		{
+			return new SHUCTTime();
+		}
+		else if (agentName.equalsIgnoreCase("shuctanytime"))
+		{
+			return new SHUCTAnyTime(true, iterations, -1.0);
+		}
+		else if (agentName.equalsIgnoreCase("entropyshuctanytime"))
+		{
+			return new EntropySHUCTAnytime(true, iterations, 0.5, -1.0);
+		}
+		else if (agentName.equalsIgnoreCase("standardClustering"))
+		{
+			return new StandardClustering(true, iterations, -1.0);
+		}
+		else if (agentName.equalsIgnoreCase("doubleIterationClustering"))
+		{
+			return new DoubleIterationClustering(true, iterations, -1.0);
+		}
+
+		throw new IllegalArgumentException("Unknown agent: " + agentName);
+	}
+
+	//-------------------------------------------------------------------------
+
+}
@@ -0,0 +1,246 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import game.Game;
+import mcts.ClusterSplit;
+import mcts.EntropySHUCTAnytime;
+import mcts.NodePool;
+import mcts.SHUCTAnyTime;
+import mcts.StandardClustering;
+import other.GameLoader;
+import other.context.Context;
+import other.move.Move;
+import other.trial.Trial;
+
+/**
+ * Measures the helpers our agents run on the children of the root, on a synthetic root with
+ * numChildren children with random statistics (the same for every run, through a fixed seed). The
+ * work of most of these grows with the branching factor, so this shows which of them become expensive
+ * in games like Amazons (over 2000 moves in the initial state). Run with "-prof gc" for the allocation
+ * per operation (see run_benchmarks.sh).
+ *
+ * The helpers which reorder the children they are given (halveRoot() and selectBestSplit()) start every
+ * operation from a copy of the same order, so their times include one copy of numChildren ints.
+ *
+ * Only the statistics of the nodes are synthetic. NodePool takes the game state of every node, so the
+ * nodes all get the initial state of Amazons, which none of these helpers look at.
+ *
+ * @author Sashank Chapala
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RootPrimitivesBenchmark
+{
+
+	//-------------------------------------------------------------------------
+
+	/** Number of children of the root */
+	@Param({"2", "16", "128", "1024", "4096"})
+	public int numChildren;
+
+	/** Number of clusters for selectBestSplit() (2 tests every split point, like the agents by default) */
+	@Param({"2"})
+	public int numClusters;
+
+	/** Exploration constant for ucb1Select() */
+	private static final double EXPLORATION_CONSTANT = Math.sqrt(2.0);
+
+	/** Weight of the entropy for getRating() (the default of EntropySHUCTAnytime in LaunchLudii) */
+	private static final double ENTROPY_WEIGHT = 0.5;
+
+	/** Seed of the random statistics */
+	private static final long SEED = 2024L;
+
+	//-------------------------------------------------------------------------
+
+	/** The synthetic tree: a root with numChildren children */
+	private NodePool pool;
+
+	/** The root of our tree */
+	private int root;
+
+	/** The children of the root, in the order in which they were allocated */
+	private int[] rootChildren;
+
+	/** Indices 0, 1, ..., numChildren - 1 into rootChildren, which every operation starts from */
+	private int[] initialIndexes;
+
+	/** Indices into rootChildren which the reordering helpers work on */
+	private int[] currentIndexes;
+
+	/** Average utilities of the children for the mover of the root, sorted in descending order */
+	private double[] sortedValues;
+
+	/** Prefix sums of sortedValues */
+	private double[] sums;
+
+	/** Prefix sums of the squares of sortedValues */
+	private double[] sumsOfSquares;
+
+	/** For every child, its number of wins, losses and draws */
+	private int[][] outcomeCounts;
+
+	/** For every child, its number of visits */
+	private int[] visitCounts;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Builds the root with its children and their statistics
+	 */
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		final Game game = GameLoader.loadGameFromName("Amazons.lud");
+		final Context context = new Context(game, new Trial(game));
+		game.start(context);
+
+		final int numPlayers = game.players().count();
+		pool = new NodePool(numPlayers);
+		root = pool.allocate(NodePool.NONE, null, context);
+
+		// Every child is in the tree already, so the root has nothing left to expand
+		pool.unexpandedMoves(root).clear();
+		final int mover = pool.mover(root);
+
+		final Random random = new Random(SEED);
+		rootChildren = new int[numChildren];
+		initialIndexes = new int[numChildren];
+		currentIndexes = new int[numChildren];
+		outcomeCounts = new int[numChildren][3];
+		visitCounts = new int[numChildren];
+		final double[] values = new double[numChildren];
+		final double[] scoreSums = new double[numPlayers + 1];
+		int rootVisits = 0;
+
+		for (int i = 0; i < numChildren; ++i)
+		{
+			final int child = pool.allocate(root, null, new Context(context));
+
+			// Like after a search: some children got a lot more visits than others
+			final int wins = random.nextInt(500);
+			final int losses = random.nextInt(500);
+			final int draws = random.nextInt(10);
+			final int visits = Math.max(1, wins + losses + draws);
+
+			for (int p = 1; p <= numPlayers; ++p)
+			{
+				scoreSums[p] = (p == mover) ? wins - losses : losses - wins;
+			}
+
+			pool.setStatistics(child, visits, scoreSums);
+			rootVisits += visits;
+
+			rootChildren[i] = child;
+			initialIndexes[i] = i;
+			outcomeCounts[i][0] = wins;
+			outcomeCounts[i][1] = losses;
+			outcomeCounts[i][2] = draws;
+			visitCounts[i] = visits;
+			values[i] = pool.exploit(child, mover);
+		}
+
+		pool.setStatistics(root, rootVisits, new double[numPlayers + 1]);
+
+		final int[] order = initialIndexes.clone();
+		ClusterSplit.sortDescending(values, order, numChildren);
+		sortedValues = values;
+		sums = new double[numChildren + 1];
+		sumsOfSquares = new double[numChildren + 1];
+		ClusterSplit.prefixSums(sortedValues, numChildren, sums, sumsOfSquares);
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @return The child UCB1 picks at the root
+	 */
+	@Benchmark
+	public int ucb1Select()
+	{
+		return SHUCTAnyTime.ucb1Select(pool, root, EXPLORATION_CONSTANT);
+	}
+
+	/**
+	 * @return The move of the child with the best average utility
+	 */
+	@Benchmark
+	public Move finalMoveSelection()
+	{
+		return SHUCTAnyTime.finalMoveSelection(pool, root);
+	}
+
+	/**
+	 * @return Number of children left after halving
+	 */
+	@Benchmark
+	public int halveRoot()
+	{
+		System.arraycopy(initialIndexes, 0, currentIndexes, 0, numChildren);
+		return SHUCTAnyTime.halveRoot(pool, root, rootChildren, currentIndexes, numChildren);
+	}
+
+	/**
+	 * @return Number of children in the best cluster
+	 */
+	@Benchmark
+	public int selectBestSplit()
+	{
+		System.arraycopy(initialIndexes, 0, currentIndexes, 0, numChildren);
+		return StandardClustering.selectBestSplit(pool, root, rootChildren, currentIndexes, numChildren, numClusters);
+	}
+
+	/**
+	 * Computes the SSE of both clusters of every split point, like a two-cluster split does
+	 *
+	 * @return Sum of all SSEs
+	 */
+	@Benchmark
+	public double computeSumOfSquaredErrors()
+	{
+		double total = 0.0;
+		for (int i = 1; i < numChildren; ++i)
+		{
+			total += ClusterSplit.computeSumOfSquaredErrors(sums, sumsOfSquares, 0, i);
+			total += ClusterSplit.computeSumOfSquaredErrors(sums, sumsOfSquares, i, numChildren);
+		}
+		return total;
+	}
+
+	/**
+	 * Rates every child, like a halving of EntropySHUCTAnytime does
+	 *
+	 * @param blackhole
+	 */
+	@Benchmark
+	public void getRating(final Blackhole blackhole)
+	{
+		for (int i = 0; i < numChildren; ++i)
+		{
+			blackhole.consume(EntropySHUCTAnytime.getRating(outcomeCounts[i], visitCounts[i], ENTROPY_WEIGHT));
+		}
+	}
+
+	//-------------------------------------------------------------------------
+
+}
@@ -1,5 +1,8 @@
 package main;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -14,6 +17,10 @@ import mcts.SHUCTAnyTime;
 import mcts.SHUCTTime;
 import mcts.DoubleIterationClustering;
 import mcts.EntropySHUCTAnytime;
+import mcts.IterationCalibration;
+import mcts.PlayoutEngine;
+import mcts.SearchListener;
+import mcts.SearchReporter;
 import other.AI;
 import supplementary.experiments.EvalGamesSet;
 import utils.AIFactory;
@@ -62,6 +69,9 @@ public class AgentExperimentRunner {
 	
 	/** If true, increase number of games to play to next number that can be divided by number of permutations of agents */
 	protected boolean roundToNextPermutationsDivisor;
+	
+	/** Number of games played at once (on separate threads, with fresh agents for every game) */
+	protected int numParallelGames;
 
 	//-------------------------------------------------------------------------
 	/* Agents setup */
@@ -75,6 +85,42 @@ public class AgentExperimentRunner {
 
 	/** Value of the exploration constant used in the UCB1 function */
 	protected double explorationConstant;
+
+	/** Number of threads each agent may search on (1 for single-threaded agents) */
+	protected int numThreads;
+	
+	/** Number of playouts our agents run at once from every newly expanded node */
+	protected int leafPlayouts;
+	
+	/** Every how many plies a search tree node keeps its own game state */
+	protected int checkpointInterval;
+	
+	/** Whether our anytime agents should continue in the tree of their previous turn, rather than starting every search from scratch */
+	protected boolean treeReuse;
+	
+	/** Whether our anytime agents should keep searching in their tree while the opponent is thinking */
+	protected boolean ponder;
+	
+	/** Maximum number of nodes in the trees of our anytime agents, above which they free the subtrees of pruned arms (0 for no limit) */
+	protected int maxNodes;
+	
+	/** Whether multithreaded SH agents should search independent trees per thread, rather than one shared tree */
+	protected boolean rootParallel;
+	
+	/** Number of clusters our clustering agents split the arms into when pruning */
+	protected int numClusters;
+	
+	/** File in which the measured iterations per second of our agents are cached */
+	protected String calibrationFile;
+	
+	/** Number of seconds for which our agents measure their iterations per second in a game they have not measured yet */
+	protected double calibrationSecs;
+	
+	/** Maximum numbers of moves in the playouts of our agents, per game, as "game name=max moves" */
+	protected List<String> playoutCaps;
+	
+	/** Maximum number of states in the transposition tables of our SH agents (0 for none) */
+	protected int transpositionTableSize;
 	
 	/** Strings describing agents to use */
 	protected List<String> agentStrings;
@@ -95,6 +141,9 @@ public class AgentExperimentRunner {
 	/** Whether we want to output all raw results */
 	protected boolean outputRawResults;
 	
+	/** Whether we want to output a report of every search of our agents */
+	protected boolean outputSearchReports;
+	
 	/** Whether we want to print general messages to System.out */
 	protected boolean printOut;
 	
@@ -204,10 +253,16 @@ public class AgentExperimentRunner {
 				.help("Increase number of games to play to next number that can be divided by number of permutations of agents.")
 				.withType(OptionTypes.Boolean)
 				.withNumVals(0));
+		argParse.addOption(new ArgOption()
+				.withNames("--num-parallel-games")
+				.help("Number of games to play at once in this JVM, each with fresh agents (1 plays them one after another).")
+				.withDefault(Integer.valueOf(1))
+				.withNumVals(1)
+				.withType(OptionTypes.Int));
 
 		argParse.addOption(new ArgOption()
 				.withNames("--out-dir", "--output-directory")
-				.help("Filepath for output directory")
+				.help("Filepath for output directory. Every game is added to a journal there when it is over, and a later run of the same experiment with this directory only plays the games which are not in it yet.")
 				.withNumVals(1)
 				.withType(OptionTypes.String));
 		argParse.addOption(new ArgOption()
@@ -225,6 +280,11 @@ public class AgentExperimentRunner {
 				.help("Output all raw results.")
 				.withType(OptionTypes.Boolean)
 				.withNumVals(0));
+		argParse.addOption(new ArgOption()
+				.withNames("--output-search-reports")
+				.help("Output a report of every search of our agents (iterations, halvings, tree size, time per phase, arm visits) to search_reports.txt.")
+				.withType(OptionTypes.Boolean)
+				.withNumVals(0));
 		argParse.addOption(new ArgOption()
 				.withNames("--no-print-out")
 				.help("Suppress general prints to System.out.")
@@ -275,6 +335,75 @@ public class AgentExperimentRunner {
 				.withDefault(Double.valueOf(Math.sqrt(2)))
 				.withNumVals(1)
 				.withType(OptionTypes.Double));
+		argParse.addOption(new ArgOption()
+				.withNames("--num-threads")
+				.help("Number of threads each agent may search on (only used by multithreaded agents).")
+				.withDefault(Integer.valueOf(1))
+				.withNumVals(1)
+				.withType(OptionTypes.Int));
+		argParse.addOption(new ArgOption()
+				.withNames("--leaf-playouts")
+				.help("Number of playouts our agents run at once (on separate threads) from every newly expanded node.")
+				.withDefault(Integer.valueOf(1))
+				.withNumVals(1)
+				.withType(OptionTypes.Int));
+		argParse.addOption(new ArgOption()
+				.withNames("--checkpoint-interval")
+				.help("Every how many plies a search tree node keeps its own game state (1 = every node, 0 = only the root).")
+				.withDefault(Integer.valueOf(1))
+				.withNumVals(1)
+				.withType(OptionTypes.Int));
+		argParse.addOption(new ArgOption()
+				.withNames("--root-parallel")
+				.help("Let multithreaded SHUCTAnyTime agents search one independent tree per thread, merging root statistics at every halving (SHUCT always does this).")
+				.withType(OptionTypes.Boolean)
+				.withNumVals(0));
+		argParse.addOption(new ArgOption()
+				.withNames("--num-clusters")
+				.help("Number of clusters the clustering agents split the arms into when pruning (they keep the best one).")
+				.withDefault(Integer.valueOf(2))
+				.withNumVals(1)
+				.withType(OptionTypes.Int));
+		argParse.addOption(new ArgOption()
+				.withNames("--calibration-file")
+				.help("File in which SH agents cache how many iterations per second they run per game, to turn seconds into iteration budgets.")
+				.withDefault("iteration-calibration.properties")
+				.withNumVals(1)
+				.withType(OptionTypes.String));
+		argParse.addOption(new ArgOption()
+				.withNames("--calibration-secs")
+				.help("Number of seconds for which SH agents measure their iterations per second in a game that is not in the calibration file yet.")
+				.withDefault(Double.valueOf(4.0))
+				.withNumVals(1)
+				.withType(OptionTypes.Double));
+		argParse.addOption(new ArgOption()
+				.withNames("--playout-caps")
+				.help("Maximum number of moves in the playouts of our agents per game, as \"game name=max moves\" (-1 for no limit).")
+				.withDefault(new ArrayList<String>(0))
+				.withNumVals("*")
+				.withType(OptionTypes.String));
+		argParse.addOption(new ArgOption()
+				.withNames("--transposition-table-size")
+				.help("Maximum number of states in the transposition tables through which the SH agents share statistics between nodes with the same state (0 for none).")
+				.withDefault(Integer.valueOf(0))
+				.withNumVals(1)
+				.withType(OptionTypes.Int));
+		argParse.addOption(new ArgOption()
+				.withNames("--tree-reuse")
+				.help("Let the anytime agents continue in the tree of their previous turn, rather than starting every search from scratch.")
+				.withType(OptionTypes.Boolean)
+				.withNumVals(0));
+		argParse.addOption(new ArgOption()
+				.withNames("--ponder")
+				.help("Let the anytime agents keep searching in their tree while the opponent is thinking (implies --tree-reuse).")
+				.withType(OptionTypes.Boolean)
+				.withNumVals(0));
+		argParse.addOption(new ArgOption()
+				.withNames("--max-nodes")
+				.help("Maximum number of nodes in the trees of the anytime agents, above which they free the subtrees of the arms they have halved away (0 for no limit).")
+				.withDefault(Integer.valueOf(0))
+				.withNumVals(1)
+				.withType(OptionTypes.Int));
 		
 		// parse the args
 		if (!argParse.parseArguments(args))
@@ -298,6 +427,7 @@ public class AgentExperimentRunner {
         eval.rotateAgents = !argParse.getValueBool("--no-rotate-agents");
         eval.warmingUpSecs = argParse.getValueInt("--warming-up-secs");
         eval.roundToNextPermutationsDivisor = argParse.getValueBool("--round-to-next-permutations-divisor");
+        eval.numParallelGames = argParse.getValueInt("--num-parallel-games");
 
         final String outDirFilepath = argParse.getValueString("--out-dir");
         if (outDirFilepath != null)
@@ -308,45 +438,133 @@ public class AgentExperimentRunner {
         eval.outputSummary = argParse.getValueBool("--output-summary");
         eval.outputAlphaRankData = argParse.getValueBool("--output-alpha-rank-data");
         eval.outputRawResults = argParse.getValueBool("--output-raw-results");
+        eval.outputSearchReports = argParse.getValueBool("--output-search-reports");
         eval.printOut = !argParse.getValueBool("--no-print-out");
         eval.suppressDivisorWarning = argParse.getValueBool("--suppress-divisor-warning");
 		eval.entropyWeight = argParse.getValueDouble("--entropy-weight");
 		eval.explorationConstant = argParse.getValueDouble("--exploration-constant");
+		eval.numThreads = argParse.getValueInt("--num-threads");
+		eval.leafPlayouts = argParse.getValueInt("--leaf-playouts");
+		eval.checkpointInterval = argParse.getValueInt("--checkpoint-interval");
+		eval.treeReuse = argParse.getValueBool("--tree-reuse");
+		eval.ponder = argParse.getValueBool("--ponder");
+		eval.maxNodes = argParse.getValueInt("--max-nodes");
+		eval.rootParallel = argParse.getValueBool("--root-parallel");
+		eval.numClusters = argParse.getValueInt("--num-clusters");
+		eval.calibrationFile = argParse.getValueString("--calibration-file");
+		eval.calibrationSecs = argParse.getValueDouble("--calibration-secs");
+		eval.playoutCaps = (List<String>) argParse.getValue("--playout-caps");
+		eval.transpositionTableSize = argParse.getValueInt("--transposition-table-size");
     }
 
     public void startExperiment()
 	{
+		IterationCalibration.cacheFilepath = this.calibrationFile;
+		IterationCalibration.calibrationSeconds = this.calibrationSecs;
+		
+		for (final String playoutCap : playoutCaps)
+		{
+			final int split = playoutCap.lastIndexOf('=');
+			if (split < 0)
+				throw new IllegalArgumentException("Expected \"game name=max moves\" as playout cap, but got: " + playoutCap);
+			
+			PlayoutEngine.setMaxPlayoutMoves(playoutCap.substring(0, split).trim(), Integer.parseInt(playoutCap.substring(split + 1).trim()));
+		}
+		
 		final List<AI> ais = new ArrayList<AI>(agentStrings.size());
 		for (final String agent : agentStrings)
 		{
-            if (agent.equalsIgnoreCase("shuct")) {
-                SHUCT sh = new SHUCT(this.shBudget);
-                ais.add(sh);
-            } else if (agent.equalsIgnoreCase("shucttime")) {
-                SHUCTTime shtime = new SHUCTTime();
-                ais.add(shtime);
-            } else if (agent.equalsIgnoreCase("shuctanytime")) {
-                SHUCTAnyTime shanytime = new SHUCTAnyTime(this.anytimeMode, this.anytimeBudget, -1.0);
-                ais.add(shanytime);
-            } else if (agent.equalsIgnoreCase("uct")) {
-                ExampleUCT exampleUCT = new ExampleUCT(this.explorationConstant);
-                ais.add(exampleUCT);
-            } else if(agent.equalsIgnoreCase("entropyshuctanytime")){
-				EntropySHUCTAnytime entropyshanytime = new EntropySHUCTAnytime(this.anytimeMode, this.anytimeBudget, this.entropyWeight, this.explorationConstant);
-                ais.add(entropyshanytime);
-			}
-			else if(agent.equalsIgnoreCase("standardClustering")){
-				StandardClustering standardClustering = new StandardClustering(this.anytimeMode, this.anytimeBudget, this.explorationConstant);
-                ais.add(standardClustering);
-			}
-			else if(agent.equalsIgnoreCase("doubleIterationClustering")){
-				DoubleIterationClustering doubleIterationClustering = new DoubleIterationClustering(this.anytimeMode, this.anytimeBudget, this.explorationConstant);
-                ais.add(doubleIterationClustering);
+			ais.add(createAgent(agent));
+		}
+		
+		if (!outputSearchReports || outDir == null)
+		{
+			playGames(ais, null);
+			return;
+		}
+		
+		// One line per search, from all our agents (appended, so the reports of a run we continue are kept)
+		outDir.mkdirs();
+		try (final PrintWriter reports = new PrintWriter(new FileWriter(new File(outDir, "search_reports.txt"), true)))
+		{
+			final SearchListener listener = (report) -> 
+			{
+				synchronized (reports)
+				{
+					reports.println(report);
+				}
+			};
+			
+			playGames(ais, listener);
+		}
+		catch (final IOException e)
+		{
+			throw new RuntimeException("Could not write search reports to " + outDir, e);
+		}
+	}
+	
+	/**
+	 * @return All settings our agents are created with, on a single line (so a run only continues the 
+	 * 	journal of games of an earlier run which used the same agents)
+	 */
+	private String describeAgentSettings()
+	{
+		return 
+			"agents " + String.join(";", agentStrings) + 
+			", anytime " + anytimeMode + ", anytime budget " + anytimeBudget + ", SH budget " + shBudget + 
+			", entropy weight " + entropyWeight + ", exploration constant " + explorationConstant + 
+			", threads " + numThreads + ", leaf playouts " + leafPlayouts + ", checkpoint interval " + checkpointInterval + 
+			", tree reuse " + treeReuse + ", ponder " + ponder + ", max nodes " + maxNodes + 
+			", root parallel " + rootParallel + ", clusters " + numClusters + ", calibration seconds " + calibrationSecs + 
+			", transposition table size " + transpositionTableSize + ", playout caps " + String.join(";", playoutCaps);
+	}
+	
+	/**
+	 * Plays all our games, with fresh agents for every game and several at once if numParallelGames > 1. 
+	 * With an output directory, the games are kept in a journal there, so we continue where an earlier 
+	 * run of the same experiment stopped (see GameJournal). Without one, we simply let Ludii's 
+	 * EvalGamesSet play our games one after another with the given agents.
+	 * 
+	 * @param ais One instance of every agent
+	 * @param listener Gets the reports of all searches of our agents (null if we do not want them)
+	 */
+	private void playGames(final List<AI> ais, final SearchListener listener)
+	{
+		if (numParallelGames > 1 || outDir != null)
+		{
+			final List<String> agentNames = new ArrayList<String>(ais.size());
+			for (final AI ai : ais)
+			{
+				agentNames.add(ai.friendlyName());
 			}
-			else {
-                ais.add(AIFactory.createAI(agent));
-            }
-
+			
+			new ParallelEvalGames(numParallelGames)
+				.setGameName(gameName)
+				.setGameOptions(gameOptions)
+				.setRuleset(ruleset)
+				.setAgents(agentNames, (final int agentIndex) -> addSearchListener(createAgent(agentStrings.get(agentIndex)), listener))
+				.setAgentSettings(describeAgentSettings())
+				.setNumGames(numGames)
+				.setGameLengthCap(gameLengthCap)
+				.setMaxSeconds(thinkingTime)
+				.setMaxIterations(iterationLimit)
+				.setMaxSearchDepth(depthLimit)
+				.setRotateAgents(rotateAgents)
+				.setWarmingUpSecs(warmingUpSecs)
+				.setRoundToNextPermutationsDivisor(roundToNextPermutationsDivisor)
+				.setOutDir(outDir)
+				.setOutputAlphaRankData(outputAlphaRankData)
+				.setOutputRawResults(outputRawResults)
+				.setOutputSummary(outputSummary)
+				.setPrintOut(printOut)
+				.setSuppressDivisorWarning(suppressDivisorWarning)
+				.startGames();
+			return;
+		}
+		
+		for (final AI ai : ais)
+		{
+			addSearchListener(ai, listener);
 		}
 		
 		final EvalGamesSet gamesSet = 
@@ -372,6 +590,89 @@ public class AgentExperimentRunner {
 		
 		gamesSet.startGames();
 	}
+	
+	/**
+	 * @param ai
+	 * @param listener Null if we do not want reports
+	 * @return The given agent, which reports its searches to the given listener if it can
+	 */
+	private static AI addSearchListener(final AI ai, final SearchListener listener)
+	{
+		if (listener != null && ai instanceof SearchReporter)
+			((SearchReporter) ai).addSearchListener(listener);
+		
+		return ai;
+	}
+	
+	/**
+	 * @param agent String describing the agent (see --agents)
+	 * @return A new instance of the agent, set up with our options
+	 */
+	private AI createAgent(final String agent)
+	{
+        if (agent.equalsIgnoreCase("shuct")) {
+            SHUCT sh = new SHUCT(this.shBudget, this.numThreads);
+            sh.checkpointInterval = this.checkpointInterval;
+            sh.transpositionTableSize = this.transpositionTableSize;
+            sh.numLeafPlayouts = this.leafPlayouts;
+            return sh;
+        } else if (agent.equalsIgnoreCase("shucttime")) {
+            SHUCTTime shtime = new SHUCTTime();
+            shtime.checkpointInterval = this.checkpointInterval;
+            shtime.transpositionTableSize = this.transpositionTableSize;
+            shtime.numLeafPlayouts = this.leafPlayouts;
+            return shtime;
+        } else if (agent.equalsIgnoreCase("shuctanytime")) {
+            SHUCTAnyTime shanytime = new SHUCTAnyTime(this.anytimeMode, this.anytimeBudget, -1.0, this.numThreads);
+            shanytime.checkpointInterval = this.checkpointInterval;
+            shanytime.transpositionTableSize = this.transpositionTableSize;
+            shanytime.numLeafPlayouts = this.leafPlayouts;
+            shanytime.reuseTree = this.treeReuse || this.ponder;
+            shanytime.ponder = this.ponder;
+            shanytime.maxNodes = this.maxNodes;
+            shanytime.rootParallel = this.rootParallel;
+            return shanytime;
+        } else if (agent.equalsIgnoreCase("uct")) {
+            ExampleUCT exampleUCT = new ExampleUCT(this.explorationConstant, this.numThreads);
+            exampleUCT.checkpointInterval = this.checkpointInterval;
+            exampleUCT.numLeafPlayouts = this.leafPlayouts;
+            return exampleUCT;
+        } else if(agent.equalsIgnoreCase("entropyshuctanytime")){
+			EntropySHUCTAnytime entropyshanytime = new EntropySHUCTAnytime(this.anytimeMode, this.anytimeBudget, this.entropyWeight, this.explorationConstant);
+            entropyshanytime.checkpointInterval = this.checkpointInterval;
+            entropyshanytime.transpositionTableSize = this.transpositionTableSize;
+            entropyshanytime.numLeafPlayouts = this.leafPlayouts;
+            entropyshanytime.reuseTree = this.treeReuse || this.ponder;
+            entropyshanytime.ponder = this.ponder;
+            entropyshanytime.maxNodes = this.maxNodes;
+            return entropyshanytime;
+		}
+		else if(agent.equalsIgnoreCase("standardClustering")){
+			StandardClustering standardClustering = new StandardClustering(this.anytimeMode, this.anytimeBudget, this.explorationConstant);
+            standardClustering.checkpointInterval = this.checkpointInterval;
+            standardClustering.transpositionTableSize = this.transpositionTableSize;
+            standardClustering.numLeafPlayouts = this.leafPlayouts;
+            standardClustering.reuseTree = this.treeReuse || this.ponder;
+            standardClustering.ponder = this.ponder;
+            standardClustering.maxNodes = this.maxNodes;
+            standardClustering.numClusters = this.numClusters;
+            return standardClustering;
+		}
+		else if(agent.equalsIgnoreCase("doubleIterationClustering")){
+			DoubleIterationClustering doubleIterationClustering = new DoubleIterationClustering(this.anytimeMode, this.anytimeBudget, this.explorationConstant);
+            doubleIterationClustering.checkpointInterval = this.checkpointInterval;
+            doubleIterationClustering.transpositionTableSize = this.transpositionTableSize;
+            doubleIterationClustering.numLeafPlayouts = this.leafPlayouts;
+            doubleIterationClustering.reuseTree = this.treeReuse || this.ponder;
+            doubleIterationClustering.ponder = this.ponder;
+            doubleIterationClustering.maxNodes = this.maxNodes;
+            doubleIterationClustering.numClusters = this.numClusters;
+            return doubleIterationClustering;
+		}
+		else {
+            return AIFactory.createAI(agent);
+        }
+	}
 
 
 
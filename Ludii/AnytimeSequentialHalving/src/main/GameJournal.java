@@ -0,0 +1,261 @@
+package main;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The games of an experiment which are over, with one line per game, appended (and flushed) as soon
+ * as a game ends. If the experiment dies, a new run with the same output directory reads the journal,
+ * only plays the games which are not in it, and writes its results files for all games together.
+ *
+ * The first line describes the experiment (game, agents and everything they are configured with),
+ * and a run with a different experiment refuses to continue a journal. Every other line holds a game
+ * as "game index, agent permutation, utilities, moves" (separated by commas), where the permutation
+ * and utilities are separated by semicolons (index 0 included, like the arrays ResultsSummary gets).
+ * A crash while writing leaves at most a broken last line, which we skip, so that game is just played
+ * again. Before appending, we cut such a line off the file, so the next entry cannot end up on the
+ * same line as it.
+ *
+ * @author Sashank Chapala
+ */
+public final class GameJournal implements Closeable
+{
+
+	//-------------------------------------------------------------------------
+
+	/** Name of the journal file in the output directory */
+	public static final String FILENAME = "games_journal.csv";
+
+	/** Starts the line describing the experiment */
+	private static final String HEADER_PREFIX = "# ";
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * A game which is over
+	 */
+	public static final class Entry
+	{
+		/** Index of the game in the experiment (which determines its agent permutation) */
+		public final int gameIndex;
+
+		/** For every player (from 1), the index of the agent playing it */
+		public final int[] agentPermutation;
+
+		/** For every player (from 1), their utility at the end of the game */
+		public final double[] utilities;
+
+		/** Number of moves played in the game */
+		public final int numMovesPlayed;
+
+		/**
+		 * Constructor
+		 *
+		 * @param gameIndex
+		 * @param agentPermutation
+		 * @param utilities
+		 * @param numMovesPlayed
+		 */
+		public Entry(final int gameIndex, final int[] agentPermutation, final double[] utilities, final int numMovesPlayed)
+		{
+			this.gameIndex = gameIndex;
+			this.agentPermutation = agentPermutation;
+			this.utilities = utilities;
+			this.numMovesPlayed = numMovesPlayed;
+		}
+	}
+
+	//-------------------------------------------------------------------------
+
+	/** Our file */
+	private final File file;
+
+	/** The line describing our experiment */
+	private final String header;
+
+	/** Appends to our file (null until the first append()) */
+	private PrintWriter writer = null;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor
+	 *
+	 * @param file
+	 * @param experiment Description of the experiment (e.g. game, options and agents), on a single line
+	 */
+	public GameJournal(final File file, final String experiment)
+	{
+		this.file = file;
+		this.header = HEADER_PREFIX + experiment;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @return The games which were over in previous runs (empty if there were none)
+	 * @throws IOException If we cannot read the journal, or it belongs to a different experiment
+	 */
+	public List<Entry> read() throws IOException
+	{
+		final List<Entry> entries = new ArrayList<Entry>();
+		final String text = readText();
+		if (text.indexOf('\n') < 0)
+			return entries;		// Not even a complete header yet
+
+		// Only complete lines count, a crash may have cut off the last one
+		final String[] lines = text.split("\n");
+		final int numComplete = text.endsWith("\n") ? lines.length : lines.length - 1;
+
+		if (!lines[0].trim().equals(header))
+		{
+			throw new IOException
+			(
+				file + " belongs to a different experiment (" + lines[0].trim().substring(HEADER_PREFIX.length()) +
+				"), use a different output directory."
+			);
+		}
+
+		for (int i = 1; i < numComplete; ++i)
+		{
+			final Entry entry = parse(lines[i].trim());
+			if (entry != null)
+				entries.add(entry);
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Adds a game which is over to our file (and flushes it)
+	 *
+	 * @param entry
+	 * @throws IOException
+	 */
+	public synchronized void append(final Entry entry) throws IOException
+	{
+		if (writer == null)
+			open();
+
+		final StringBuilder sb = new StringBuilder();
+		sb.append(entry.gameIndex).append(',');
+		for (int i = 0; i < entry.agentPermutation.length; ++i)
+		{
+			if (i > 0)
+				sb.append(';');
+			sb.append(entry.agentPermutation[i]);
+		}
+		sb.append(',');
+		for (int i = 0; i < entry.utilities.length; ++i)
+		{
+			if (i > 0)
+				sb.append(';');
+			sb.append(entry.utilities[i]);
+		}
+		sb.append(',').append(entry.numMovesPlayed);
+
+		writer.print(sb.append('\n').toString());
+		writer.flush();
+		if (writer.checkError())
+			throw new IOException("Could not write to " + file);
+	}
+
+	@Override
+	public synchronized void close()
+	{
+		if (writer != null)
+		{
+			writer.close();
+			writer = null;
+		}
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Opens our file for appending (after cutting off a broken last line), and writes the header if it 
+	 * does not have one yet
+	 *
+	 * @throws IOException
+	 */
+	private void open() throws IOException
+	{
+		final String text = readText();
+		final boolean hasHeader = (text.indexOf('\n') >= 0);
+
+		if (hasHeader && !text.endsWith("\n"))
+		{
+			// Whatever a crash left on the last line goes, we append right after the last complete line
+			final long length = text.substring(0, text.lastIndexOf('\n') + 1).getBytes(StandardCharsets.UTF_8).length;
+			try (final RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+			{
+				raf.setLength(length);
+			}
+		}
+
+		writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, hasHeader), StandardCharsets.UTF_8));
+		if (!hasHeader)
+			writer.print(header + "\n");
+	}
+
+	/**
+	 * @return Everything in our file (empty if it does not exist)
+	 * @throws IOException
+	 */
+	private String readText() throws IOException
+	{
+		if (!file.exists())
+			return "";
+
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param line
+	 * @return The entry on the given line, or null if it is not a complete entry
+	 */
+	private static Entry parse(final String line)
+	{
+		final String[] fields = line.split(",");
+		if (fields.length != 4)
+			return null;
+
+		try
+		{
+			final String[] permutationFields = fields[1].split(";");
+			final int[] agentPermutation = new int[permutationFields.length];
+			for (int i = 0; i < agentPermutation.length; ++i)
+			{
+				agentPermutation[i] = Integer.parseInt(permutationFields[i]);
+			}
+
+			final String[] utilityFields = fields[2].split(";");
+			final double[] utilities = new double[utilityFields.length];
+			for (int i = 0; i < utilities.length; ++i)
+			{
+				utilities[i] = Double.parseDouble(utilityFields[i]);
+			}
+
+			if (agentPermutation.length != utilities.length)
+				return null;
+
+			return new Entry(Integer.parseInt(fields[0]), agentPermutation, utilities, Integer.parseInt(fields[3]));
+		}
+		catch (final NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	//-------------------------------------------------------------------------
+
+}
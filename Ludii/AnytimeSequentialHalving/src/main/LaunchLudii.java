@@ -47,6 +47,19 @@ public class LaunchLudii
 		if (!AIRegistry.registerAI("DoubleIterationClustering", () -> {return new DoubleIterationClustering(true, -1, -1);}, (game) -> {return new DoubleIterationClustering(true, -1, -1).supportsGame(game);}))
 			System.err.println("WARNING! Failed to register AI because one with that name already existed!");
 
+		// The same agents, but searching on while the opponent (e.g. a human player) is thinking
+		if (!AIRegistry.registerAI("SHUCTAnyTime (Pondering)", () -> {final SHUCTAnyTime ai = new SHUCTAnyTime(true, -1, -1); ai.reuseTree = true; ai.ponder = true; return ai;}, (game) -> {return new SHUCTAnyTime(true, -1, -1).supportsGame(game);}))
+			System.err.println("WARNING! Failed to register AI because one with that name already existed!");
+
+		if (!AIRegistry.registerAI("EntropySHUCTAnytime (Pondering)", () -> {final EntropySHUCTAnytime ai = new EntropySHUCTAnytime(true, -1, 0.5, -1); ai.reuseTree = true; ai.ponder = true; return ai;}, (game) -> {return new EntropySHUCTAnytime(true, -1, 0.3875, -1).supportsGame(game);}))
+			System.err.println("WARNING! Failed to register AI because one with that name already existed!");
+
+		if (!AIRegistry.registerAI("StandardClustering (Pondering)", () -> {final StandardClustering ai = new StandardClustering(true, -1, -1); ai.reuseTree = true; ai.ponder = true; return ai;}, (game) -> {return new StandardClustering(true, -1, -1).supportsGame(game);}))
+			System.err.println("WARNING! Failed to register AI because one with that name already existed!");
+
+		if (!AIRegistry.registerAI("DoubleIterationClustering (Pondering)", () -> {final DoubleIterationClustering ai = new DoubleIterationClustering(true, -1, -1); ai.reuseTree = true; ai.ponder = true; return ai;}, (game) -> {return new DoubleIterationClustering(true, -1, -1).supportsGame(game);}))
+			System.err.println("WARNING! Failed to register AI because one with that name already existed!");
+
 		// Run Ludii
 		StartDesktopApp.main(new String[0]);
 	}
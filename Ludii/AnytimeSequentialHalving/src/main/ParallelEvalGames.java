@@ -0,0 +1,678 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import game.Game;
+import other.AI;
+import other.GameLoader;
+import other.RankUtils;
+import other.context.Context;
+import other.model.Model;
+import other.trial.Trial;
+import utils.experiments.ResultsSummary;
+
+/**
+ * Plays a set of evaluation games like Ludii's EvalGamesSet, but several at once on a pool of threads
+ * in the same JVM, rather than one after another. Every game gets its own fresh agents (see AgentFactory),
+ * so no agent ever searches in two games at once. The results of all games go into one ResultsSummary,
+ * from which we write the same files as EvalGamesSet (results.txt, alpha_rank_data.csv, raw_results.csv).
+ *
+ * Agents are assigned to players in the same way as in EvalGamesSet: game i uses the i-th permutation
+ * (wrapping around) of the assignments of agents to players.
+ *
+ * With an output directory, every game is added to a GameJournal there as soon as it is over. A run 
+ * which finds a journal of the same experiment only plays the games which are not in it yet, so a run 
+ * which died only loses the games it was playing.
+ *
+ * @author Sashank Chapala
+ */
+public final class ParallelEvalGames
+{
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Creates the agents for every game
+	 */
+	public interface AgentFactory
+	{
+		/**
+		 * @param agentIndex Index of the agent in the list of agents of the experiment
+		 * @return A new instance of that agent, which is only used for a single game
+		 */
+		public AI createAgent(final int agentIndex);
+	}
+
+	//-------------------------------------------------------------------------
+
+	/** Number of games we play at once */
+	private final int numParallelGames;
+
+	/** Name of the game to play */
+	private String gameName;
+
+	/** Game options to compile the game with */
+	private List<String> gameOptions = new ArrayList<String>(0);
+
+	/** Ruleset to compile the game with (options are ignored if this is not empty) */
+	private String ruleset = "";
+
+	/** Names of the agents, as they show up in our results */
+	private List<String> agentNames;
+
+	/** Creates the agents for every game */
+	private AgentFactory agentFactory;
+
+	/** How the agents are configured beyond their names (budgets, threads, etc.), on a single line */
+	private String agentSettings = "";
+
+	/** Number of games to play */
+	private int numGames;
+
+	/** Maximum game duration in moves (-1 for no limit) */
+	private int gameLengthCap = -1;
+
+	/** Max allowed thinking time per move (in seconds) */
+	private double maxSeconds = 1.0;
+
+	/** Max allowed number of iterations per move */
+	private int maxIterations = -1;
+
+	/** Max search depth */
+	private int maxSearchDepth = -1;
+
+	/** Whether to rotate through agent-to-player assignments */
+	private boolean rotateAgents = true;
+
+	/** Number of seconds for which to warm up the JVM */
+	private int warmingUpSecs = 60;
+
+	/** Whether to increase the number of games to the next multiple of the number of agent permutations */
+	private boolean roundToNextPermutationsDivisor = false;
+
+	/** Output directory (null for no output files) */
+	private File outDir = null;
+
+	/** Whether we write a summary of the results */
+	private boolean outputSummary = false;
+
+	/** Whether we write data for alpha-rank */
+	private boolean outputAlphaRankData = false;
+
+	/** Whether we write all raw results */
+	private boolean outputRawResults = false;
+
+	/** Whether we print general messages to System.out */
+	private boolean printOut = true;
+
+	/** Whether to suppress the warning about the number of games not being divisible by the number of permutations */
+	private boolean suppressDivisorWarning = false;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor
+	 *
+	 * @param numParallelGames Number of games we play at once
+	 */
+	public ParallelEvalGames(final int numParallelGames)
+	{
+		this.numParallelGames = Math.max(1, numParallelGames);
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @param name
+	 * @return This
+	 */
+	public ParallelEvalGames setGameName(final String name)
+	{
+		this.gameName = name;
+		return this;
+	}
+
+	/**
+	 * @param options
+	 * @return This
+	 */
+	public ParallelEvalGames setGameOptions(final List<String> options)
+	{
+		this.gameOptions = options;
+		return this;
+	}
+
+	/**
+	 * @param rulesetName
+	 * @return This
+	 */
+	public ParallelEvalGames setRuleset(final String rulesetName)
+	{
+		this.ruleset = rulesetName;
+		return this;
+	}
+
+	/**
+	 * @param names Names of the agents, as they show up in our results
+	 * @param factory Creates the agents for every game
+	 * @return This
+	 */
+	public ParallelEvalGames setAgents(final List<String> names, final AgentFactory factory)
+	{
+		this.agentNames = names;
+		this.agentFactory = factory;
+		return this;
+	}
+
+	/**
+	 * @param settings How the agents are configured beyond their names (budgets, threads, etc.), on a 
+	 * 	single line. A run only continues the journal of another run if this is the same.
+	 * @return This
+	 */
+	public ParallelEvalGames setAgentSettings(final String settings)
+	{
+		this.agentSettings = settings;
+		return this;
+	}
+
+	/**
+	 * @param num
+	 * @return This
+	 */
+	public ParallelEvalGames setNumGames(final int num)
+	{
+		this.numGames = num;
+		return this;
+	}
+
+	/**
+	 * @param cap
+	 * @return This
+	 */
+	public ParallelEvalGames setGameLengthCap(final int cap)
+	{
+		this.gameLengthCap = cap;
+		return this;
+	}
+
+	/**
+	 * @param seconds
+	 * @return This
+	 */
+	public ParallelEvalGames setMaxSeconds(final double seconds)
+	{
+		this.maxSeconds = seconds;
+		return this;
+	}
+
+	/**
+	 * @param iterations
+	 * @return This
+	 */
+	public ParallelEvalGames setMaxIterations(final int iterations)
+	{
+		this.maxIterations = iterations;
+		return this;
+	}
+
+	/**
+	 * @param depth
+	 * @return This
+	 */
+	public ParallelEvalGames setMaxSearchDepth(final int depth)
+	{
+		this.maxSearchDepth = depth;
+		return this;
+	}
+
+	/**
+	 * @param rotate
+	 * @return This
+	 */
+	public ParallelEvalGames setRotateAgents(final boolean rotate)
+	{
+		this.rotateAgents = rotate;
+		return this;
+	}
+
+	/**
+	 * @param seconds
+	 * @return This
+	 */
+	public ParallelEvalGames setWarmingUpSecs(final int seconds)
+	{
+		this.warmingUpSecs = seconds;
+		return this;
+	}
+
+	/**
+	 * @param round
+	 * @return This
+	 */
+	public ParallelEvalGames setRoundToNextPermutationsDivisor(final boolean round)
+	{
+		this.roundToNextPermutationsDivisor = round;
+		return this;
+	}
+
+	/**
+	 * @param dir
+	 * @return This
+	 */
+	public ParallelEvalGames setOutDir(final File dir)
+	{
+		this.outDir = dir;
+		return this;
+	}
+
+	/**
+	 * @param output
+	 * @return This
+	 */
+	public ParallelEvalGames setOutputSummary(final boolean output)
+	{
+		this.outputSummary = output;
+		return this;
+	}
+
+	/**
+	 * @param output
+	 * @return This
+	 */
+	public ParallelEvalGames setOutputAlphaRankData(final boolean output)
+	{
+		this.outputAlphaRankData = output;
+		return this;
+	}
+
+	/**
+	 * @param output
+	 * @return This
+	 */
+	public ParallelEvalGames setOutputRawResults(final boolean output)
+	{
+		this.outputRawResults = output;
+		return this;
+	}
+
+	/**
+	 * @param print
+	 * @return This
+	 */
+	public ParallelEvalGames setPrintOut(final boolean print)
+	{
+		this.printOut = print;
+		return this;
+	}
+
+	/**
+	 * @param suppress
+	 * @return This
+	 */
+	public ParallelEvalGames setSuppressDivisorWarning(final boolean suppress)
+	{
+		this.suppressDivisorWarning = suppress;
+		return this;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Plays all games, and writes the output files once they are all over
+	 */
+	public void startGames()
+	{
+		final Game game;
+		if (ruleset != null && !ruleset.equals(""))
+			game = GameLoader.loadGameFromName(gameName, ruleset);
+		else
+			game = GameLoader.loadGameFromName(gameName, gameOptions);
+
+		if (gameLengthCap >= 0)
+			game.setMaxTurns(Math.min(gameLengthCap, game.getMaxTurnLimit()));
+
+		final int numPlayers = game.players().count();
+
+		final List<int[]> permutations = new ArrayList<int[]>();
+		if (rotateAgents)
+			addPermutations(new int[numPlayers], new boolean[numPlayers], 0, permutations);
+		else
+			permutations.add(identity(numPlayers));
+
+		int numGamesToPlay = numGames;
+		if (numGamesToPlay % permutations.size() != 0)
+		{
+			if (roundToNextPermutationsDivisor)
+			{
+				numGamesToPlay += permutations.size() - (numGamesToPlay % permutations.size());
+			}
+			else if (!suppressDivisorWarning)
+			{
+				System.err.println
+				(
+					"Warning: number of games (" + numGamesToPlay + ") is not divisible by the number of permutations of agents (" +
+					permutations.size() + ")."
+				);
+			}
+		}
+
+		final ResultsSummary resultsSummary = new ResultsSummary(game, agentNames);
+
+		// Every game goes into the journal as soon as it is over, and the games already played by a 
+		// previous run with the same output directory count as well
+		final GameJournal journal = (outDir != null) ? new GameJournal(new File(outDir, GameJournal.FILENAME), describeExperiment()) : null;
+		final boolean[] played = new boolean[numGamesToPlay];
+		int numPlayed = 0;
+		if (journal != null)
+		{
+			outDir.mkdirs();
+			try
+			{
+				for (final GameJournal.Entry entry : journal.read())
+				{
+					if (entry.gameIndex < 0 || entry.gameIndex >= numGamesToPlay || played[entry.gameIndex])
+						continue;
+
+					played[entry.gameIndex] = true;
+					++numPlayed;
+					resultsSummary.recordResults(entry.agentPermutation, entry.utilities, entry.numMovesPlayed);
+				}
+			}
+			catch (final IOException e)
+			{
+				throw new RuntimeException("Could not read the journal of games in " + outDir, e);
+			}
+
+			if (printOut && numPlayed > 0)
+				System.out.println(numPlayed + " of " + numGamesToPlay + " games were already played, continuing with the others.");
+		}
+
+		if (numPlayed < numGamesToPlay)
+		{
+			warmUp(game);
+			try
+			{
+				if (!playGames(game, numGamesToPlay, permutations, played, resultsSummary, journal))
+					return;
+			}
+			finally
+			{
+				if (journal != null)
+					journal.close();
+			}
+		}
+
+		writeResults(resultsSummary);
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Plays all games which have not been played yet on our threads
+	 *
+	 * @param game
+	 * @param numGamesToPlay
+	 * @param permutations The permutations of agents we rotate through
+	 * @param played For every game, whether it was already played
+	 * @param resultsSummary
+	 * @param journal Gets every game as soon as it is over (null if we have no output directory)
+	 * @return Whether all games are over (false if we were interrupted)
+	 */
+	private boolean playGames
+	(
+		final Game game, 
+		final int numGamesToPlay, 
+		final List<int[]> permutations, 
+		final boolean[] played, 
+		final ResultsSummary resultsSummary,
+		final GameJournal journal
+	)
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool(numParallelGames, (final Runnable r) ->
+		{
+			final Thread thread = new Thread(r, "Eval game worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		try
+		{
+			final List<Future<?>> futures = new ArrayList<Future<?>>(numGamesToPlay);
+			for (int gameCounter = 0; gameCounter < numGamesToPlay; ++gameCounter)
+			{
+				if (played[gameCounter])
+					continue;
+
+				final int gameIndex = gameCounter;
+				final int[] permutation = permutations.get(gameCounter % permutations.size());
+				futures.add(executor.submit(() -> playGame(game, gameIndex, permutation, resultsSummary, journal)));
+			}
+
+			for (final Future<?> future : futures)
+			{
+				try
+				{
+					future.get();
+				}
+				catch (final InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				catch (final ExecutionException e)
+				{
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		return true;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Plays a single game with fresh agents, and records its result
+	 *
+	 * @param game
+	 * @param gameIndex
+	 * @param permutation For every player (from 0), the index of the agent playing it
+	 * @param resultsSummary
+	 * @param journal Gets every game as soon as it is over (null if we have no output directory)
+	 */
+	private void playGame
+	(
+		final Game game, 
+		final int gameIndex, 
+		final int[] permutation, 
+		final ResultsSummary resultsSummary, 
+		final GameJournal journal
+	)
+	{
+		// Index 0 is not used, like in Ludii
+		final List<AI> ais = new ArrayList<AI>(permutation.length + 1);
+		ais.add(null);
+		final int[] agentPermutation = new int[permutation.length + 1];
+		for (int p = 1; p <= permutation.length; ++p)
+		{
+			agentPermutation[p] = permutation[p - 1] % agentNames.size();
+			ais.add(agentFactory.createAgent(agentPermutation[p]));
+		}
+
+		final Trial trial = new Trial(game);
+		final Context context = new Context(game, trial);
+		game.start(context);
+
+		for (int p = 1; p < ais.size(); ++p)
+		{
+			ais.get(p).initAI(game, p);
+		}
+
+		try
+		{
+			final Model model = context.model();
+			while (!trial.over())
+			{
+				model.startNewStep(context, ais, maxSeconds, maxIterations, maxSearchDepth, 0.0);
+			}
+		}
+		finally
+		{
+			for (int p = 1; p < ais.size(); ++p)
+			{
+				ais.get(p).closeAI();
+			}
+		}
+
+		final double[] utilities = RankUtils.agentUtilities(context);
+		final int numMovesPlayed = trial.numMoves() - trial.numInitialPlacementMoves();
+		synchronized (resultsSummary)
+		{
+			resultsSummary.recordResults(agentPermutation, utilities, numMovesPlayed);
+		}
+
+		if (journal != null)
+		{
+			try
+			{
+				journal.append(new GameJournal.Entry(gameIndex, agentPermutation, utilities, numMovesPlayed));
+			}
+			catch (final IOException e)
+			{
+				throw new RuntimeException("Could not add game " + (gameIndex + 1) + " to the journal of games in " + outDir, e);
+			}
+		}
+
+		if (printOut)
+			System.out.println("Game " + (gameIndex + 1) + " over after " + numMovesPlayed + " moves.");
+	}
+
+	/**
+	 * @return Description of our experiment for the journal of games, which a run has to match to 
+	 * 	continue the journal of another run
+	 */
+	private String describeExperiment()
+	{
+		final String variant = (ruleset != null && !ruleset.equals("")) ? ruleset : String.join(";", gameOptions);
+		return 
+			gameName + " [" + variant + "] with " + String.join(";", agentNames) + 
+			" (max seconds " + maxSeconds + ", max iterations " + maxIterations + ", max depth " + maxSearchDepth + 
+			", game length cap " + gameLengthCap + ", rotate agents " + rotateAgents + ")" + 
+			(agentSettings.isEmpty() ? "" : " " + agentSettings);
+	}
+
+	/**
+	 * Runs random playouts for warmingUpSecs seconds, so the JIT has compiled the game before our games start
+	 *
+	 * @param game
+	 */
+	private void warmUp(final Game game)
+	{
+		if (warmingUpSecs <= 0)
+			return;
+
+		final Context context = new Context(game, new Trial(game));
+		final long stopAt = System.nanoTime() + warmingUpSecs * 1000000000L;
+		while (System.nanoTime() < stopAt)
+		{
+			game.start(context);
+			game.playout(context, null, 1.0, null, -1, -1, ThreadLocalRandom.current());
+		}
+
+		System.gc();
+	}
+
+	/**
+	 * Writes our output files, like EvalGamesSet does
+	 *
+	 * @param resultsSummary
+	 */
+	private void writeResults(final ResultsSummary resultsSummary)
+	{
+		if (printOut)
+			System.out.println(resultsSummary.generateIntermediateSummary());
+
+		if (outDir == null)
+			return;
+
+		outDir.mkdirs();
+
+		if (outputSummary)
+		{
+			try (final PrintWriter writer = new PrintWriter(new File(outDir, "results.txt"), "UTF-8"))
+			{
+				writer.write(resultsSummary.generateIntermediateSummary());
+			}
+			catch (final IOException e)
+			{
+				throw new RuntimeException("Could not write the summary to " + outDir, e);
+			}
+		}
+
+		if (outputAlphaRankData)
+			resultsSummary.writeAlphaRankData(new File(outDir, "alpha_rank_data.csv"));
+
+		if (outputRawResults)
+			resultsSummary.writeRawResults(new File(outDir, "raw_results.csv"));
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Adds all permutations of 0, ..., n - 1 (in lexicographic order) to the given list
+	 *
+	 * @param current The permutation built so far
+	 * @param used Which numbers are in the permutation so far
+	 * @param length Length of the permutation so far
+	 * @param permutations
+	 */
+	private static void addPermutations(final int[] current, final boolean[] used, final int length, final List<int[]> permutations)
+	{
+		if (length == current.length)
+		{
+			permutations.add(current.clone());
+			return;
+		}
+
+		for (int i = 0; i < current.length; ++i)
+		{
+			if (used[i])
+				continue;
+
+			used[i] = true;
+			current[length] = i;
+			addPermutations(current, used, length + 1, permutations);
+			used[i] = false;
+		}
+	}
+
+	/**
+	 * @param n
+	 * @return The permutation 0, ..., n - 1
+	 */
+	private static int[] identity(final int n)
+	{
+		final int[] permutation = new int[n];
+		for (int i = 0; i < n; ++i)
+		{
+			permutation[i] = i;
+		}
+		return permutation;
+	}
+
+	//-------------------------------------------------------------------------
+
+}
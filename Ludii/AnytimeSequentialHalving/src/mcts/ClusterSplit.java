@@ -0,0 +1,272 @@
+package mcts;
+
+/**
+ * Finds the split of the (sorted) values of the root children which minimizes the Sum of Squared
+ * Errors (SSE) of the clusters, as used for pruning by our clustering agents. With prefix sums of
+ * the values and of their squares, the SSE of any range of values is computed in constant time,
+ * so all splits into 2 clusters are scored in a single linear pass.
+ *
+ * Splits into more than 2 clusters use the optimal 1-D (Jenks-style) dynamic program over the same
+ * prefix sums. Because the optimal split points of 1-D clusters only move forward as the range grows,
+ * every layer of the dynamic program is computed with divide and conquer, in O(k * n log n) rather
+ * than O(k * n^2).
+ *
+ * @author Sashank Chapala
+ */
+public final class ClusterSplit
+{
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor (not used, this class only has static methods)
+	 */
+	private ClusterSplit()
+	{
+		// Do nothing
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Sorts the first n values in descending order, and moves the ids along with them. Equal values
+	 * keep their original order (merge sort), so splits do not depend on how ties happen to be sorted.
+	 *
+	 * @param values
+	 * @param ids
+	 * @param n
+	 */
+	public static void sortDescending(final double[] values, final int[] ids, final int n)
+	{
+		if (n < 2)
+			return;
+
+		final double[] valuesBuffer = new double[n];
+		final int[] idsBuffer = new int[n];
+
+		double[] srcValues = values;
+		int[] srcIds = ids;
+		double[] dstValues = valuesBuffer;
+		int[] dstIds = idsBuffer;
+
+		// Bottom-up merge sort, alternating between the given arrays and our buffers
+		for (int width = 1; width < n; width *= 2)
+		{
+			for (int lo = 0; lo < n; lo += 2 * width)
+			{
+				final int mid = Math.min(lo + width, n);
+				final int hi = Math.min(lo + 2 * width, n);
+
+				int left = lo;
+				int right = mid;
+				for (int k = lo; k < hi; ++k)
+				{
+					if (left < mid && (right >= hi || srcValues[left] >= srcValues[right]))
+					{
+						dstValues[k] = srcValues[left];
+						dstIds[k] = srcIds[left++];
+					}
+					else
+					{
+						dstValues[k] = srcValues[right];
+						dstIds[k] = srcIds[right++];
+					}
+				}
+			}
+
+			final double[] tmpValues = srcValues;
+			srcValues = dstValues;
+			dstValues = tmpValues;
+
+			final int[] tmpIds = srcIds;
+			srcIds = dstIds;
+			dstIds = tmpIds;
+		}
+
+		if (srcValues != values)
+		{
+			System.arraycopy(srcValues, 0, values, 0, n);
+			System.arraycopy(srcIds, 0, ids, 0, n);
+		}
+	}
+
+	/**
+	 * Computes the prefix sums of the first n values and of their squares.
+	 *
+	 * @param values
+	 * @param n
+	 * @param sums Array of at least n + 1 entries, sums[i] becomes the sum of the first i values
+	 * @param sumsOfSquares Array of at least n + 1 entries, sumsOfSquares[i] becomes the sum of the squares of the first i values
+	 */
+	public static void prefixSums(final double[] values, final int n, final double[] sums, final double[] sumsOfSquares)
+	{
+		sums[0] = 0.0;
+		sumsOfSquares[0] = 0.0;
+		for (int i = 0; i < n; ++i)
+		{
+			sums[i + 1] = sums[i] + values[i];
+			sumsOfSquares[i + 1] = sumsOfSquares[i] + values[i] * values[i];
+		}
+	}
+
+	/**
+	 * This method calculates the sum of squared errors for the cluster of values from index
+	 * "from" (inclusive) up to index "to" (exclusive), using the prefix sums of the values.
+	 *
+	 * @param sums
+	 * @param sumsOfSquares
+	 * @param from
+	 * @param to
+	 * @return The SSE of the cluster (0 for an empty cluster)
+	 */
+	public static double computeSumOfSquaredErrors
+	(
+		final double[] sums,
+		final double[] sumsOfSquares,
+		final int from,
+		final int to
+	)
+	{
+		final int count = to - from;
+		if (count <= 0)
+			return 0.0;
+
+		final double sum = sums[to] - sums[from];
+
+		// Rounding errors can make this slightly negative for clusters of (almost) equal values
+		return Math.max(0.0, (sumsOfSquares[to] - sumsOfSquares[from]) - sum * sum / count);
+	}
+
+	/**
+	 * Finds the split of the first n (sorted) values into two clusters with the lowest total SSE.
+	 *
+	 * @param sums Prefix sums of the values (see prefixSums())
+	 * @param sumsOfSquares Prefix sums of the squares of the values
+	 * @param n Number of values (at least 2)
+	 * @return Number of values in the first cluster (the first one if several splits are equally good)
+	 */
+	public static int bestSplit(final double[] sums, final double[] sumsOfSquares, final int n)
+	{
+		double bestSSE = Double.POSITIVE_INFINITY;
+		int bestIndex = 1;
+
+		for (int i = 1; i < n; ++i)
+		{
+			final double totalSSE =
+					computeSumOfSquaredErrors(sums, sumsOfSquares, 0, i) +
+					computeSumOfSquaredErrors(sums, sumsOfSquares, i, n);
+
+			if (totalSSE < bestSSE)
+			{
+				bestSSE = totalSSE;
+				bestIndex = i;
+			}
+		}
+
+		return bestIndex;
+	}
+
+	/**
+	 * Finds the split of the first n (sorted) values into numClusters clusters with the lowest total
+	 * SSE, and returns the size of the first cluster of that split.
+	 *
+	 * @param sums Prefix sums of the values (see prefixSums())
+	 * @param sumsOfSquares Prefix sums of the squares of the values
+	 * @param n Number of values (at least 2)
+	 * @param numClusters Number of clusters (at least 2, at most n are used)
+	 * @return Number of values in the first cluster
+	 */
+	public static int firstClusterSize(final double[] sums, final double[] sumsOfSquares, final int n, final int numClusters)
+	{
+		final int k = Math.min(numClusters, n);
+		if (k <= 2)
+			return bestSplit(sums, sumsOfSquares, n);
+
+		// costs[j] is the lowest SSE of the first j values in the clusters of the current layer
+		double[] previousCosts = new double[n + 1];
+		double[] costs = new double[n + 1];
+
+		// splits[c][j] is where the last of c + 1 clusters of the first j values starts
+		final int[][] splits = new int[k][n + 1];
+
+		for (int j = 1; j <= n; ++j)
+		{
+			previousCosts[j] = computeSumOfSquaredErrors(sums, sumsOfSquares, 0, j);
+		}
+
+		for (int c = 1; c < k; ++c)
+		{
+			// With c + 1 clusters, we need at least c + 1 values
+			fillLayer(sums, sumsOfSquares, previousCosts, costs, splits[c], c + 1, n, c, n - 1);
+
+			final double[] tmp = previousCosts;
+			previousCosts = costs;
+			costs = tmp;
+		}
+
+		// Walk back from the last cluster to the first one
+		int end = n;
+		for (int c = k - 1; c >= 1; --c)
+		{
+			end = splits[c][end];
+		}
+		return end;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Computes costs[j] = min over i of (previousCosts[i] + SSE(i, j)) for all j in [lo, hi],
+	 * given that the best i for all of those j lies in [optLo, optHi].
+	 *
+	 * @param sums
+	 * @param sumsOfSquares
+	 * @param previousCosts
+	 * @param costs
+	 * @param splits
+	 * @param lo
+	 * @param hi
+	 * @param optLo
+	 * @param optHi
+	 */
+	private static void fillLayer
+	(
+		final double[] sums,
+		final double[] sumsOfSquares,
+		final double[] previousCosts,
+		final double[] costs,
+		final int[] splits,
+		final int lo,
+		final int hi,
+		final int optLo,
+		final int optHi
+	)
+	{
+		if (lo > hi)
+			return;
+
+		final int mid = (lo + hi) >>> 1;
+
+		double bestCost = Double.POSITIVE_INFINITY;
+		int bestSplit = optLo;
+		final int last = Math.min(mid - 1, optHi);
+		for (int i = optLo; i <= last; ++i)
+		{
+			final double cost = previousCosts[i] + computeSumOfSquaredErrors(sums, sumsOfSquares, i, mid);
+			if (cost < bestCost)
+			{
+				bestCost = cost;
+				bestSplit = i;
+			}
+		}
+
+		costs[mid] = bestCost;
+		splits[mid] = bestSplit;
+
+		fillLayer(sums, sumsOfSquares, previousCosts, costs, splits, lo, mid - 1, optLo, bestSplit);
+		fillLayer(sums, sumsOfSquares, previousCosts, costs, splits, mid + 1, hi, bestSplit, optHi);
+	}
+
+	//-------------------------------------------------------------------------
+
+}
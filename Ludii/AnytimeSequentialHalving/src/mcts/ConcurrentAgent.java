@@ -0,0 +1,20 @@
+package mcts;
+
+/**
+ * An agent which can tell whether a single instance may run several searches at once, for example
+ * for games played at the same time on separate threads. Such an agent keeps everything that belongs
+ * to a single search in a SearchSession, rather than in its fields.
+ *
+ * Every game still calls initAI() before its first search, which may be on any thread.
+ *
+ * @author Sashank Chapala
+ */
+public interface ConcurrentAgent
+{
+
+	/**
+	 * @return Whether selectAction() may be called from several threads at once with the current settings
+	 */
+	public boolean supportsConcurrentSearches();
+
+}
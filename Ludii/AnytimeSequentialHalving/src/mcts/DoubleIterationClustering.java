@@ -1,15 +1,12 @@
 package mcts;
 
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 
 import game.Game;
 import main.collections.FastArrayList;
 import other.AI;
-import other.RankUtils;
 import other.context.Context;
 import other.move.Move;
 
@@ -25,21 +22,76 @@ import other.move.Move;
  * This class is a modified version of the Anytime Sequential Halving agent provided by Dominic Sagers.
  * @author Sashank Chapala
  */
-public class DoubleIterationClustering extends AI
+public class DoubleIterationClustering extends AI implements SearchReporter, ConcurrentAgent
 {
 	
 	//-------------------------------------------------------------------------
 	
-	/** Our player index */
-	protected int player = -1;
+	/** 
+	 * Every how many plies a tree node keeps its own copy of the game state (1 means every node does, 
+	 * 0 means only the root does). The other nodes rebuild their state by replaying moves when needed.
+	 */
+	public int checkpointInterval = 1;
+	
+	/** 
+	 * Maximum number of states in our transposition table, through which nodes with the same game state 
+	 * share their statistics (0 for no transposition table).
+	 */
+	public int transpositionTableSize = 0;
+	
+	/** Our transposition table for the current game (null if we do not use one) */
+	private TranspositionTable transpositions = null;
+
+	/** Number of playouts run at once (on separate threads) from every newly expanded node, 1 means a single playout */
+	public int numLeafPlayouts = 1;
+
+	/** Runs our batches of playouts, created on first use */
+	private LeafParallelPlayouts leafPlayouts = null;
+
+	/** Whoever wants a report of every search we run */
+	private final SearchListeners searchListeners = new SearchListeners();
+
+	/** 
+	 * Whether we keep our search tree between turns, and continue in the subtree of the game state we end up in 
+	 * (off by default, like in the agents which never reuse their tree, so their results stay comparable)
+	 */
+	public boolean reuseTree = false;
+
+	/** Whether we keep searching in our tree while the opponent is thinking (only with tree reuse) */
+	public boolean ponder = false;
+
+	/** Searches in our tree while the opponent is thinking, created on first use */
+	private Ponderer ponderer = null;
+
+	/** 
+	 * Maximum number of nodes in our tree (0 for no limit). Above it, we free the subtrees of the arms 
+	 * we no longer search after a halving, keeping only their own statistics (see NodePool.evictSubtrees()).
+	 */
+	public int maxNodes = 0;
+
+	/** Number of clusters we split the arms into when pruning, of which we keep the best one */
+	public int numClusters = 2;
+
+	/** Whether we search with an iteration budget (see iterBudget) rather than until the time for our move runs out */
 	public boolean iterMode;
-	public int totalIterations;
 
 	//Value of exploration constant used in UCB1
 	public double explorationConstant;
 	
 	/** We use this because our command line arguments only include an option for seconds */
 	public int iterBudget = -1;
+
+	/** Iterations per second in the current game, measured by IterationCalibration, to turn seconds into iterations */
+	private double iterationsPerSecond = IterationCalibration.DEFAULT_ITERATIONS_PER_SECOND;
+
+	/** The tree we searched on our previous turn (null if there is nothing to reuse) */
+	private NodePool previousPool = null;
+
+	/** Root of the tree we searched on our previous turn */
+	private int previousRoot = NodePool.NONE;
+
+	/** Number of moves in the trial of the game state we searched on our previous turn */
+	private int previousNumMoves = -1;
 	
 	//-------------------------------------------------------------------------
 	//Necessary variables for the SH algorithm.
@@ -66,17 +118,17 @@ public class DoubleIterationClustering extends AI
 		
 	}
 	
-	public boolean stopConditionMet(final long stopTime, final int iterationBudget){
+	public boolean stopConditionMet(final SearchSession session){
 		if (this.iterMode)
 		{
-			if (this.totalIterations < iterationBudget)
+			if (!session.budgetSpent())
 			{
 				return false;
 			}
 		}
 		else
 		{
-			if (System.currentTimeMillis() < stopTime)
+			if (!session.deadline().expired())
 			{
 				return false;
 			}
@@ -129,11 +181,28 @@ public class DoubleIterationClustering extends AI
 		final int maxDepth
 	)
 	{
-		// Start out by creating a new root node (no tree reuse in this example)
-		final Node root = new Node(null, null, context);
+		// Take our tree back from the ponderer, with everything it found while the opponent was thinking
+		if (this.ponderer != null)
+			this.ponderer.stop();
+		
+		// Continue in the subtree of our previous tree reached by the moves played since then, if it is there
+		NodePool pool = null;
+		if (this.reuseTree && this.previousPool != null)
+		{
+			pool = this.previousPool.reroot(this.previousRoot, this.previousNumMoves, context);
+			this.previousPool = null;
+		}
+		
+		if (pool == null)
+		{
+			// Start out by creating a new root node
+			pool = new NodePool(game.players().count(), false, this.checkpointInterval, this.transpositions);
+			pool.allocate(NodePool.NONE, null, context);
+		}
+		
+		final int root = NodePool.ROOT;
 		
 		// We'll respect any limitations on max seconds and max iterations (don't care about max depth)
-		int iterationBudgetMultiplier = 1000;
 		int iterationBudget;
 		if (this.iterBudget == -1)
 		{
@@ -143,7 +212,7 @@ public class DoubleIterationClustering extends AI
 			}
 			else
 			{
-				iterationBudget = Double.valueOf(maxSeconds).intValue() * iterationBudgetMultiplier;
+				iterationBudget = IterationCalibration.iterationBudget(maxSeconds, this.iterationsPerSecond);
 			}
 		}
 		else
@@ -152,187 +221,137 @@ public class DoubleIterationClustering extends AI
 		}
 		
 		// this.timeBudget = Double.valueOf(maxSeconds).intValue();
-		final long stopTime = (maxSeconds > 0.0) ? System.currentTimeMillis() + (long) (maxSeconds * 1000L) : Long.MAX_VALUE;
+		final SearchDeadline deadline = new SearchDeadline(maxSeconds);
+		
+		// Everything of this search which is not in our tree (nothing of it is kept in our fields)
+		final SearchSession session = new SearchSession(deadline, iterationBudget);
 
+		// Runs our iterations, reusing the same buffers for all of them
+		SearchKernel kernel = new SearchKernel
+		(
+			pool, 
+			(final NodePool p, final int current) -> ucb1Select(p, current, this.explorationConstant), 
+			new PlayoutEngine(PlayoutEngine.maxPlayoutMoves(game, PlayoutEngine.DEFAULT_MAX_PLAYOUT_MOVES), this.iterMode ? null : deadline), 
+			(this.numLeafPlayouts > 1) ? leafPlayouts() : null
+		);
+		
+		// Only collected if someone listens to our searches
+		final SearchMetrics metrics = this.searchListeners.start(pool, root);
+		kernel.setMetrics(metrics);
+		
+		// Only recorded if JFR is recording our events (see SearchEvents)
+		final SearchEvents.SearchEndEvent searchEvent = SearchEvents.searchStarted(this.friendlyName, pool, root);
+		
 		// Our main loop through MCTS iterations
 		//ArrayList<Integer> hist = new ArrayList<>();
-		boolean rootFullyExpanded = false;
-		int numPossibleMoves = root.unexpandedMoves.size();
-		Node currentChild;
-		int armVisitCount = 0;
+		// In a reused tree, the root may already have been (partially) expanded on our previous turn
+		boolean rootFullyExpanded = pool.unexpandedMoves(root).isEmpty();
+		int numPossibleMoves = pool.numChildren(root) + pool.unexpandedMoves(root).size();
+		int currentChild;
 		
-		// A list containing the indices of the nodes we are searching from root.children
-		ArrayList<Integer> currentChildrenIdx = new ArrayList<Integer>();
-		for (int i = 0; i < root.children.size(); i++)
+		// All children of the root, in the order in which they were expanded (only set once the root is fully expanded)
+		int[] rootChildren = rootFullyExpanded ? pool.children(root) : null;
+		int armVisitCount = rootFullyExpanded ? 0 : pool.numChildren(root);
+		
+		// The indices (in rootChildren) of the nodes we are searching, in the first numCurrentChildren entries
+		final int[] currentChildrenIdx = new int[numPossibleMoves];
+		int numCurrentChildren = 0;
+		if (rootFullyExpanded)
 		{
-			currentChildrenIdx.add(i);
+			// The statistics we kept for these children are what the first halving is based on
+			for (int i = 0; i < pool.numChildren(root); i++)
+			{
+				currentChildrenIdx[i] = i;
+			}
+			numCurrentChildren = pool.numChildren(root);
 		}
 
 		// System.err.println("possible moves: " + numPossibleMoves);
-		int rootNodesVisited = 0;
+		int rootNodesVisited = pool.numChildren(root);
 		
 		int idx = 0;//keeps track of where we are in the index list
+		
+		// Whether some arms were halved away since we last freed the subtrees of the arms we do not search
+		boolean canEvict = false;
 
 		//Tracks how many iterations per node gets during each round
 		int iterationsPerNode = 1;
 
 		// System.out.println("iterationBudget: " + this.iterationBudget + " \n numIterations: " + this.numIterations);
 		// System.out.println("Iter per round: " + this.iterPerRound);
-		//System.currentTimeMillis() < stopTime && 
 		while 
 		(
-			!this.stopConditionMet(stopTime, iterationBudget) &&					
-			!wantsInterrupt								// Respect GUI user clicking the pause button
+			!this.stopConditionMet(session) &&					
+			!wantsInterrupt &&							// Respect GUI user clicking the pause button
+			!Thread.currentThread().isInterrupted()		// Respect our thread being interrupted (e.g. an experiment shutting down)
 		)
 		{
+			if (canEvict && this.maxNodes > 0 && pool.size() > this.maxNodes)
+			{
+				// The arms we halved away regrow their subtrees if a restart brings them back
+				final int sizeBefore = pool.size();
+				pool = Halving.evictPrunedArms(pool, root, currentChildrenIdx, numCurrentChildren);
+				kernel = kernel.forPool(pool);
+				rootChildren = pool.children(root);
+				if (metrics != null)
+					metrics.evicted(sizeBefore - pool.size());
+				
+				canEvict = false;
+			}
+			
 			// Start in root node
 			if (!rootFullyExpanded)
 			{
 				//System.out.println("starting root search");
 				//System.out.println(rootNodesVisited);
 
-				Node current = root;
-				
-				// Traverse tree
-				while (true)
-				{
-					if (current.context.trial().over())
-					{
-						// We've reached a terminal state
-						break;
-					}
-					
-					current = ucb1Select(current, explorationConstant);
-					
-					if (current.visitCount == 0)
-					{
-						// We've expanded a new node, time for playout!
-						break;
-					}
-				}
-				
-				Context contextEnd = current.context;
-				
-				if (!contextEnd.trial().over())
-				{
-					// Run a playout if we don't already have a terminal game state in node
-					contextEnd = new Context(contextEnd);
-					game.playout
-					(
-						contextEnd, 
-						null, 
-						-1.0, 
-						null, 
-						0, 
-						200, 
-						ThreadLocalRandom.current()
-					);
-				}
-				
-				// This computes utilities for all players at the of the playout,
-				// which will all be values in [-1.0, 1.0]
-				final double[] utilities = RankUtils.utilities(contextEnd);
-				
-				// Backpropagate utilities through the tree
-				while (current != null)
-				{
-					current.visitCount += 1;
-					for (int p = 1; p <= game.players().count(); ++p)
-					{
-						current.scoreSums[p] += utilities[p];
-					}
-					current = current.parent;
-				}
+				// The new child counts as expanded even if its playout was cut short, but not as an iteration
+				final boolean completed = kernel.iteration(root);
 				
 				rootNodesVisited++;
 				armVisitCount++;
-				this.totalIterations++;
+				if (completed)
+					session.addIterations(1);
 
 				if (rootNodesVisited == numPossibleMoves)
 				{
 					//System.out.println("First round over");
 					rootFullyExpanded = true;
-					currentChild = root.children.get(0); 
+					rootChildren = pool.children(root);
 				}
 			}
 			else 
 			{
-				currentChild = root.children.get(currentChildrenIdx.get(idx));
+				currentChild = rootChildren[currentChildrenIdx[idx]];
 				
-				Node current = currentChild;
-							
-				// Traverse tree
-				while (true)
+				// A playout cut short does not count, so the arm keeps its turn
+				if (kernel.iteration(currentChild))
 				{
-					if (current.context.trial().over())
-					{
-						// We've reached a terminal state
-						break;
-					}
-					
-					current = ucb1Select(current, explorationConstant);
-					
-					if (current.visitCount == 0)
-					{
-						// We've expanded a new node, time for playout!
-						break;
-					}
-				}
-				
-				Context contextEnd = current.context;
-				
-				if (!contextEnd.trial().over())
-				{
-					// Run a playout if we don't already have a terminal game state in node
-					contextEnd = new Context(contextEnd);
-					game.playout
-					(
-						contextEnd, 
-						null, 
-						-1.0, 
-						null, 
-						0, 
-						200, 
-						ThreadLocalRandom.current()
-					);
-				}
-				
-				// This computes utilities for all players at the of the playout,
-				// which will all be values in [-1.0, 1.0]
-				final double[] utilities = RankUtils.utilities(contextEnd);
-				
-				// Backpropagate utilities through the tree
-				while (current != null)
-				{
-					current.visitCount += 1;
-					for (int p = 1; p <= game.players().count(); ++p)
-					{
-						current.scoreSums[p] += utilities[p];
-					}
-					current = current.parent;
-				}
-				
-				// Increment iteration counts
+					// Increment iteration counts
 
-				//hist.add(currentChildrenIdx.get(idx));
-				armVisitCount++;
-				this.totalIterations++;
-				idx++;
+					//hist.add(currentChildrenIdx[idx]);
+					armVisitCount++;
+					session.addIterations(1);
+					idx++;
+				}
 
 			}
 
-			if (armVisitCount >= iterationsPerNode * currentChildrenIdx.size())
+			if (armVisitCount >= iterationsPerNode * numCurrentChildren)
 			{ //if we have visited the all children before halving and # of visits per node is equal to iterationsPerNode
 				armVisitCount = 0;
-				if (currentChildrenIdx.size() <= 2)
+				if (numCurrentChildren <= 2)
 				{ //if we have visited all children AND we have halved the amount of times required
-					currentChildrenIdx = new ArrayList<Integer>(); //reset the index list
-
-					for (int i = 0; i < root.children.size();i++)
+					//reset the index list
+					for (int i = 0; i < pool.numChildren(root);i++)
 					{
-						currentChildrenIdx.add(i);
+						currentChildrenIdx[i] = i;
 					}
+					numCurrentChildren = pool.numChildren(root);
+					if (metrics != null)
+						metrics.restarted();
 
+					canEvict = false;
 					idx = 0;
 					//Reset iterationsPerNode to 1 since we are going to a new pass
 					iterationsPerNode = 1;
@@ -340,7 +359,12 @@ public class DoubleIterationClustering extends AI
 				else
 				{ //We haven't finished halving, so we halve based on the current exploit values
 					//System.out.println("before: " + currentChildrenIdx.toString());
-					currentChildrenIdx = selectBestSplit(root, currentChildrenIdx);
+					final SearchEvents.HalvingEvent halvingEvent = SearchEvents.halvingStarted(numCurrentChildren);
+					numCurrentChildren = selectBestSplit(pool, root, rootChildren, currentChildrenIdx, numCurrentChildren, this.numClusters);
+					SearchEvents.halvingEnded(halvingEvent, searchEvent, pool, root, rootChildren, currentChildrenIdx, numCurrentChildren);
+					if (metrics != null)
+						metrics.halved();
+					canEvict = true;
 					//hist.add(999);
 					//System.out.println("After: " + currentChildrenIdx.toString());
 					
@@ -350,108 +374,73 @@ public class DoubleIterationClustering extends AI
 				}
 			}
 
-			if (idx >= currentChildrenIdx.size())
+			if (idx >= numCurrentChildren)
 			{ 
 				idx = 0; 
 			}
 		}
 
 		// displayHist(hist, this);
-		// System.out.println("Iterations made: " + this.totalIterations);
-		this.totalIterations = 0;
+		// System.out.println("Iterations made: " + session.iterations());
 		//System.out.println(hist.toString());
 		
+		if (this.reuseTree)
+		{
+			// Keep the tree around, so we can continue in it on our next turn
+			this.previousPool = pool;
+			this.previousRoot = root;
+			this.previousNumMoves = context.trial().numMoves();
+		}
+		
 		// Return the move we wish to play
-		return finalMoveSelection(root);
+		final Move move = finalMoveSelection(pool, root);
+		this.searchListeners.finish(metrics, this.friendlyName, move, pool, root, deadline);
+		SearchEvents.searchEnded(searchEvent, move, pool, root);
+		
+		if (this.reuseTree && this.ponder)
+		{
+			// Keep searching below our move while the opponent thinks about their reply
+			ponderer().start(pool, root, move, (final NodePool p, final int current) -> ucb1Select(p, current, this.explorationConstant), PlayoutEngine.maxPlayoutMoves(game, PlayoutEngine.DEFAULT_MAX_PLAYOUT_MOVES));
+		}
+		
+		return move;
 	}
 
-	/**This method takes the rootNode, sorts it's children by their exploit value, finds the best split that minimizes the SSE and returns the upper/better cluster of nodes from that split.
+	/**This method takes the rootNode, sorts it's children by their exploit value, finds the split into numClusters clusters that minimizes the SSE and returns the upper/better cluster of nodes from that split.
+	 * @param pool
 	 * @param rootNode
+	 * @param rootChildren All children of the root node, in the order in which they were expanded
+	 * @param currentChildrenIndexes Indices (in rootChildren) of the children which are still left (the survivors are written to the front)
+	 * @param numChildren Number of entries in currentChildrenIndexes which are still left
+	 * @param numClusters Number of clusters to split the children into (2 tests every split point)
+	 * @return Number of children left afterwards
 	 */
-	public static ArrayList<Integer> selectBestSplit(final Node rootNode, final ArrayList<Integer> currentChildrenIndexes){
-		ArrayList<Integer> newIndexes = new ArrayList<>();
-
-		int numChildren = currentChildrenIndexes.size();
+	public static int selectBestSplit(final NodePool pool, final int rootNode, final int[] rootChildren, final int[] currentChildrenIndexes, final int numChildren, final int numClusters){
 		if (numChildren > 2)
 		{
-			final int mover = rootNode.context.state().mover();
-
-			//Make a list sorting each child node by value and then take the best half.
+			final int mover = pool.mover(rootNode);
 
-			// A list of lists where the first index of the inner list is the node 
-			// index and the second index is the value of that node
-			ArrayList<ArrayList<Double>> nodeValues = new ArrayList<>();
-			
+			final double[] values = new double[numChildren];
 			for (int i = 0; i < numChildren; ++i) 
 			{
-				final Node child = rootNode.children.get(currentChildrenIndexes.get(i));
-				final double exploit = child.scoreSums[mover] / child.visitCount;
-
-				ArrayList<Double> val = new ArrayList<>();
-
-				val.add((double) currentChildrenIndexes.get(i));
-				val.add(exploit);
-				nodeValues.add(val);
+				values[i] = pool.exploit(rootChildren[currentChildrenIndexes[i]], mover);
 			}
 
-			// sort in descending order based on the value (second index) of each inner list:
-			nodeValues.sort(Comparator.comparingDouble((ArrayList<Double> list) -> list.get(1)).reversed());
-
-			// System.out.println("nodeValues after sorting descending: " + nodeValues.toString());
-
-			//Create variables to store the best split with the lowest Sum of Squared Errors and the index of that split
-			double bestSSE = Double.POSITIVE_INFINITY;
-			int bestIndex = -1;
-
-			//Loop through the all nodes and test out every split point to find the one that minimizes the SSE
-			for(int i = 1; i < nodeValues.size(); i++){
-				//Split nodeValue into two clusters based on i
-				ArrayList<ArrayList<Double>> upperCluster = new ArrayList<>(nodeValues.subList(0, i));
-				ArrayList<ArrayList<Double>> lowerCluster = new ArrayList<>(nodeValues.subList(i, nodeValues.size()));
-				//Calculate total SSE for both clusters
-				double totalSSE = computeSumOfSquaredErrors(upperCluster) + computeSumOfSquaredErrors(lowerCluster);
-
-				//Store best split/index
-				if(totalSSE < bestSSE){
-					bestSSE = totalSSE;
-					bestIndex = i;
-				}
-			}
+			// sort in descending order of exploit value, so every cluster is a contiguous range
+			ClusterSplit.sortDescending(values, currentChildrenIndexes, numChildren);
 
-			//Only store the upper cluster since that represents the nodes with the highest exploit values
-			//new list which only contains the nodes we want to keep in the tree:
-			ArrayList<ArrayList<Double>> bestSplit = new ArrayList<>(nodeValues.subList(0, bestIndex));
+			// With these, the SSE of any cluster takes constant time
+			final double[] sums = new double[numChildren + 1];
+			final double[] sumsOfSquares = new double[numChildren + 1];
+			ClusterSplit.prefixSums(values, numChildren, sums, sumsOfSquares);
 
-			for (int i = 0; i < bestSplit.size(); i++)
-			{
-				newIndexes.add(Double.valueOf(bestSplit.get(i).get(0)).intValue());
-			}
-			
+			//Only keep the upper cluster since that represents the nodes with the highest exploit values
+			//(they are already at the front of currentChildrenIndexes)
+			return ClusterSplit.firstClusterSize(sums, sumsOfSquares, numChildren, numClusters);
 		}
-		return newIndexes;
+		return numChildren;
 	}
 
-	/**
-	 * This method calculates the sum of squared errors for a cluster of nodes which contain exploit values.
-	 * @param cluster
-	 */
-    public static double computeSumOfSquaredErrors(ArrayList<ArrayList<Double>> cluster) {
-		double mean = 0.0;
-		//Calculate the mean of the exploit values from all nodes in the cluster
-		for (int i = 0; i < cluster.size(); i++){
-			mean += cluster.get(i).get(1);
-		}
-		mean = mean/cluster.size();
-
-		//Calculate the sum of squared errors for the cluster
-		double sumOfSquaredErrors = 0.0;
-		for (int i = 0; i < cluster.size(); i++){
-			double deviation = cluster.get(i).get(1) - mean;
-			sumOfSquaredErrors += Math.pow(deviation, 2);
-		}
-        return sumOfSquaredErrors;
-    }
-
 	/**
 	 	*This function neatly prints the hist variable used in the algorithm. Displays value counts for each node index visited.
 		 * @param hist
@@ -484,43 +473,54 @@ public class DoubleIterationClustering extends AI
 	 * This method also implements the "Expansion" phase of MCTS, and creates
 	 * a new node if the given current node has unexpanded moves.
 	 * 
+	 * @param pool
 	 * @param current
 	 * @return Selected node (if it has 0 visits, it will be a newly-expanded node).
 	 */
-	public static Node ucb1Select(final Node current, final double explorationConstant)
+	public static int ucb1Select(final NodePool pool, final int current, final double explorationConstant)
 	{
-		if (!current.unexpandedMoves.isEmpty())
+		final FastArrayList<Move> unexpandedMoves = pool.unexpandedMoves(current);
+		
+		if (!unexpandedMoves.isEmpty())
 		{
 			// randomly select an unexpanded move
-			final Move move = current.unexpandedMoves.remove(
-					ThreadLocalRandom.current().nextInt(current.unexpandedMoves.size()));
+			final Move move = unexpandedMoves.remove(
+					ThreadLocalRandom.current().nextInt(unexpandedMoves.size()));
 			
 			// create a copy of context
-			final Context context = new Context(current.context);
+			final Context context = pool.copyContext(current);
 			
 			// apply the move
 			context.game().apply(context, move);
 			
 			// create new node and return it
-			return new Node(current, move, context);
+			return pool.allocate(current, move, context);
 		}
 		
 		// use UCB1 equation to select from all children, with random tie-breaking
-		Node bestChild = null;
+		int bestChild = NodePool.NONE;
         double bestValue = Double.NEGATIVE_INFINITY;
-        final double twoParentLog = Math.log(Math.max(1, current.visitCount));
+        final double twoParentLog = Math.log(Math.max(1, pool.sharedVisitCount(current)));
         int numBestFound = 0;
         
-        final int numChildren = current.children.size();
-        final int mover = current.context.state().mover();
+        final int mover = pool.mover(current);
 
-        for (int i = 0; i < numChildren; ++i) 
+        for (int child = pool.firstChild(current); child != NodePool.NONE; child = pool.nextSibling(child)) 
         {
-        	final Node child = current.children.get(i);
-        	final double exploit = child.scoreSums[mover] / child.visitCount;
-        	final double explore = explorationConstant * Math.sqrt(twoParentLog / child.visitCount);
-        
-            final double ucb1Value = exploit + explore;
+        	// With a transposition table, the statistics of the state (through all nodes sharing it)
+        	final int childVisits = pool.sharedVisitCount(child);
+        	final double ucb1Value;
+        	if (childVisits == 0)
+        	{
+        		// Its only playout was cut off by the deadline, so we know nothing about it yet
+        		ucb1Value = Double.POSITIVE_INFINITY;
+        	}
+        	else
+        	{
+        		final double exploit = pool.exploit(child, mover);
+        		final double explore = explorationConstant * Math.sqrt(twoParentLog / childVisits);
+        		ucb1Value = exploit + explore;
+        	}
             
             if (ucb1Value > bestValue)
             {
@@ -545,21 +545,20 @@ public class DoubleIterationClustering extends AI
 	/**
 	 * Selects best move based on the highest exploit value
 	 * 
+	 * @param pool
 	 * @param rootNode
 	 * @return
 	 */
-	public static Move finalMoveSelection(final Node rootNode)
+	public static Move finalMoveSelection(final NodePool pool, final int rootNode)
 	{
-		Node bestChild = null;
+		int bestChild = NodePool.NONE;
         double bestExploit = Double.NEGATIVE_INFINITY;
         int numBestFound = 0;
         
-        final int numChildren = rootNode.children.size();
-		final int mover = rootNode.context.state().mover();
-        for (int i = 0; i < numChildren; ++i) 
+		final int mover = pool.mover(rootNode);
+        for (int child = pool.firstChild(rootNode); child != NodePool.NONE; child = pool.nextSibling(child)) 
         {
-        	final Node child = rootNode.children.get(i);
-        	final double exploit = child.scoreSums[mover] / child.visitCount;
+        	final double exploit = pool.exploit(child, mover);
             
             if (exploit > bestExploit)
             {
@@ -578,80 +577,126 @@ public class DoubleIterationClustering extends AI
             }
         }
         
-        return bestChild.moveFromParent;
+        return pool.moveFromParent(bestChild);
 	}
 	
-	@Override
-	public void initAI(final Game game, final int playerID)
+	/**
+	 * @return The runner for our batches of playouts from newly expanded nodes (created on first use)
+	 */
+	private synchronized LeafParallelPlayouts leafPlayouts()
 	{
-		this.player = playerID;
+		if (this.leafPlayouts == null)
+		{
+			this.leafPlayouts = new LeafParallelPlayouts(this.numLeafPlayouts, this.friendlyName + " playout worker");
+		}
+		
+		return this.leafPlayouts;
 	}
 	
-	@Override
-	public boolean supportsGame(final Game game)
+	/**
+	 * @return Our ponderer (created on first use)
+	 */
+	private synchronized Ponderer ponderer()
 	{
-		if (game.isStochasticGame())
-			return false;
-		
-		if (!game.isAlternatingMoveGame())
-			return false;
+		if (this.ponderer == null)
+		{
+			this.ponderer = new Ponderer(this.friendlyName + " ponder worker");
+		}
 		
-		return true;
+		return this.ponderer;
 	}
 	
-	//-------------------------------------------------------------------------
+	/**
+	 * Makes us report every search we run to the given listener
+	 * 
+	 * @param listener
+	 */
+	@Override
+	public void addSearchListener(final SearchListener listener)
+	{
+		this.searchListeners.add(listener);
+	}
 	
 	/**
-	 * Inner class for nodes used by example UCT
+	 * Stops reporting our searches to the given listener
 	 * 
-	 * @author Dennis Soemers
+	 * @param listener
 	 */
-	private static class Node
+	@Override
+	public void removeSearchListener(final SearchListener listener)
 	{
-		/** Our parent node */
-		protected final Node parent;
-		
-		/** The move that led from parent to this node */
-		protected final Move moveFromParent;
-		
-		/** This objects contains the game state for this node (this is why we don't support stochastic games) */
-		protected final Context context;
-		
-		/** Visit count for this node */
-		protected int visitCount = 0;
-		
-		/** For every player, sum of utilities / scores backpropagated through this node */
-		protected final double[] scoreSums;
+		this.searchListeners.remove(listener);
+	}
+	
+	@Override
+	public void initAI(final Game game, final int playerID)
+	{
+		// Positions from a previous game are of no use
+		this.transpositions = 
+				(this.transpositionTableSize > 0) ? new TranspositionTable(game.players().count(), this.transpositionTableSize) : null;
 		
-		/** Child nodes */
-		protected List<Node> children = new ArrayList<Node>();
+		// Never reuse a tree from a previous game
+		if (this.ponderer != null)
+			this.ponderer.stop();
+		this.previousPool = null;
 		
-		/** List of moves for which we did not yet create a child node */
-		protected final FastArrayList<Move> unexpandedMoves;
+		if (this.iterMode && this.iterBudget == -1)
+		{
+			// Measure (or look up) how many iterations fit in a second of this game
+			this.iterationsPerSecond = IterationCalibration.iterationsPerSecond
+			(
+				game, 
+				this.friendlyName, 
+				new IterationCalibration.Setup
+				(
+					(final NodePool p, final int current) -> ucb1Select(p, current, this.explorationConstant), 
+					PlayoutEngine.maxPlayoutMoves(game, PlayoutEngine.DEFAULT_MAX_PLAYOUT_MOVES), 
+					this.checkpointInterval, 
+					this.transpositionTableSize, 
+					this.numLeafPlayouts, 
+					1, 
+					false
+				)
+			);
+		}
+	}
+	
+	@Override
+	public void closeAI()
+	{
+		if (this.ponderer != null)
+		{
+			this.ponderer.stop();
+			this.ponderer = null;
+		}
 		
-		/**
-		 * Constructor
-		 * 
-		 * @param parent
-		 * @param moveFromParent
-		 * @param context
-		 */
-		public Node(final Node parent, final Move moveFromParent, final Context context)
+		if (this.leafPlayouts != null)
 		{
-			this.parent = parent;
-			this.moveFromParent = moveFromParent;
-			this.context = context;
-			final Game game = context.game();
-			scoreSums = new double[game.players().count() + 1];
-			
-			// For simplicity, we just take ALL legal moves. 
-			// This means we do not support simultaneous-move games.
-			unexpandedMoves = new FastArrayList<Move>(game.moves(context).moves());
-			
-			if (parent != null)
-				parent.children.add(this);
+			this.leafPlayouts.close();
+			this.leafPlayouts = null;
 		}
 		
+		this.previousPool = null;
+	}
+	
+	@Override
+	public boolean supportsGame(final Game game)
+	{
+		if (game.isStochasticGame())
+			return false;
+		
+		if (!game.isAlternatingMoveGame())
+			return false;
+		
+		return true;
+	}
+	
+	@Override
+	public boolean supportsConcurrentSearches()
+	{
+		// Our tree (and pondering in it) carries over from one search to the next, our transposition 
+		// table belongs to a single game, and a batch of leaf playouts uses buffers of our own
+		return !this.reuseTree && !this.ponder && this.transpositionTableSize <= 0 && this.numLeafPlayouts <= 1;
 	}
 	
 	//-------------------------------------------------------------------------
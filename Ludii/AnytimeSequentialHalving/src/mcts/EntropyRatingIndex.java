@@ -0,0 +1,273 @@
+package mcts;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the entropy ratings (see EntropySHUCTAnytime.getRating()) of the children of the root up to
+ * date while we search, with the arms which are still being searched sorted by rating. The agent
+ * updates the rating of an arm after every iteration below it, which only moves that arm a few places
+ * (one playout barely changes a rating), so halving simply reads off the top of the order instead of
+ * rating and sorting all arms again.
+ *
+ * The entropy is computed from a table of c * ln(c) for all counts c up to TABLE_SIZE, so a rating
+ * needs no Math.log() calls: with n visits and counts c_i, the sum of p_i * ln(p_i) with
+ * p_i = c_i / n is (sum of c_i * ln(c_i)) / n - (sum of c_i) / n * ln(n).
+ *
+ * Arms are identified by their index in the array of root children. Arms with equal ratings are
+ * ordered by index, like in Halving.
+ *
+ * @author Sashank Chapala
+ */
+public final class EntropyRatingIndex
+{
+
+	//-------------------------------------------------------------------------
+
+	/** Number of counts for which c * ln(c) is looked up rather than computed */
+	private static final int TABLE_SIZE = 1 << 16;
+
+	/** For every count c below TABLE_SIZE, c * ln(c) (and 0 for c = 0) */
+	private static final double[] C_LOG_C = new double[TABLE_SIZE];
+	static
+	{
+		for (int c = 1; c < TABLE_SIZE; ++c)
+		{
+			C_LOG_C[c] = c * Math.log(c);
+		}
+	}
+
+	/** ln(2), to turn the entropy into bits */
+	private static final double LOG_2 = Math.log(2);
+
+	//-------------------------------------------------------------------------
+
+	/** The pool our tree is stored in */
+	private NodePool pool;
+
+	/** All children of the root, in the order in which they were expanded */
+	private int[] rootChildren;
+
+	/** The player to move in the root, whose outcomes we rate */
+	private final int mover;
+
+	/** How much the entropy counts in a rating */
+	private final double entropyWeight;
+
+	/** For every arm, its current rating */
+	private final double[] ratings;
+
+	/** All arms, the ones we are still searching first (best to worst), followed by the pruned ones */
+	private final int[] order;
+
+	/** For every arm, its index in order */
+	private final int[] positions;
+
+	/** Number of arms we are still searching (the first numActive entries of order) */
+	private int numActive;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor, which rates all arms and starts out searching all of them.
+	 *
+	 * @param pool
+	 * @param rootNode
+	 * @param rootChildren All children of the root node, in the order in which they were expanded
+	 * @param entropyWeight
+	 */
+	public EntropyRatingIndex(final NodePool pool, final int rootNode, final int[] rootChildren, final double entropyWeight)
+	{
+		this.pool = pool;
+		this.rootChildren = rootChildren;
+		this.mover = pool.mover(rootNode);
+		this.entropyWeight = entropyWeight;
+		this.ratings = new double[rootChildren.length];
+		this.order = new int[rootChildren.length];
+		this.positions = new int[rootChildren.length];
+
+		for (int arm = 0; arm < rootChildren.length; ++arm)
+		{
+			ratings[arm] = rate(arm);
+		}
+		reset();
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Continues with a copy of our tree (see NodePool.evictSubtrees()), in which the arms have the same 
+	 * indices and statistics, so all ratings and the order stay as they are.
+	 *
+	 * @param newPool
+	 * @param newRootChildren All children of the root in the new pool
+	 */
+	public void setTree(final NodePool newPool, final int[] newRootChildren)
+	{
+		this.pool = newPool;
+		this.rootChildren = newRootChildren;
+	}
+
+	/**
+	 * Starts searching all arms again.
+	 *
+	 * @return Number of arms we search
+	 */
+	public int reset()
+	{
+		numActive = order.length;
+
+		// The pruned arms kept their ratings while they were not searched, so we only have to sort once
+		final double[] sortedRatings = new double[order.length];
+		for (int arm = 0; arm < order.length; ++arm)
+		{
+			order[arm] = arm;
+			sortedRatings[arm] = ratings[arm];
+		}
+		ClusterSplit.sortDescending(sortedRatings, order, order.length);
+
+		for (int i = 0; i < order.length; ++i)
+		{
+			positions[order[i]] = i;
+		}
+
+		return numActive;
+	}
+
+	/**
+	 * Rates the given arm again, after its statistics have changed. Only needed for arms we are still
+	 * searching, since the statistics of the others do not change.
+	 *
+	 * @param arm Index of the arm in the root children
+	 */
+	public void update(final int arm)
+	{
+		ratings[arm] = rate(arm);
+
+		// Move the arm up while it is better than the one in front of it...
+		int pos = positions[arm];
+		while (pos > 0 && better(arm, order[pos - 1]))
+		{
+			place(order[pos - 1], pos);
+			--pos;
+		}
+
+		// ... or down while it is worse than the one behind it
+		while (pos + 1 < numActive && better(order[pos + 1], arm))
+		{
+			place(order[pos + 1], pos);
+			++pos;
+		}
+
+		place(arm, pos);
+	}
+
+	/**
+	 * Stops searching all but the given number of best arms.
+	 *
+	 * @param numKept Number of arms to keep searching
+	 * @param currentChildrenIndexes Array to write the indices of the arms we keep into, in ascending order
+	 * @return Number of arms we keep searching
+	 */
+	public int keepBest(final int numKept, final int[] currentChildrenIndexes)
+	{
+		numActive = Math.min(numKept, numActive);
+
+		System.arraycopy(order, 0, currentChildrenIndexes, 0, numActive);
+		Arrays.sort(currentChildrenIndexes, 0, numActive);
+
+		return numActive;
+	}
+
+	/**
+	 * @param arm
+	 * @return The current rating of the given arm
+	 */
+	public double rating(final int arm)
+	{
+		return ratings[arm];
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Combines the shannon entropy and win rate of an arm into a rating, like
+	 * EntropySHUCTAnytime.getRating().
+	 *
+	 * @param wins
+	 * @param losses
+	 * @param draws
+	 * @param visitCount
+	 * @param entropyWeight
+	 * @return The rating (0.0 if there are no visits)
+	 */
+	public static double rating(final int wins, final int losses, final int draws, final int visitCount, final double entropyWeight)
+	{
+		//If node has not been visited, return rating as 0.0
+		if (visitCount == 0)
+			return 0.0;
+
+		// Sum of p * ln(p) over the win, loss and draw rates
+		final double sumPLogP =
+				(cLogC(wins) + cLogC(losses) + cLogC(draws)) / visitCount -
+				((double) (wins + losses + draws) / visitCount) * (cLogC(visitCount) / visitCount);
+
+		final double shannonEntropy = -sumPLogP / LOG_2;
+		final double winRate = (double) wins / visitCount;
+
+		return winRate + (shannonEntropy * entropyWeight);
+	}
+
+	/**
+	 * @param c
+	 * @return c * ln(c) (0 for c = 0)
+	 */
+	private static double cLogC(final int c)
+	{
+		return (c < TABLE_SIZE) ? C_LOG_C[c] : c * Math.log(c);
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @param arm
+	 * @return The rating of the given arm, computed from the statistics in the pool
+	 */
+	private double rate(final int arm)
+	{
+		final int child = rootChildren[arm];
+		return rating
+		(
+			pool.outcomeCount(child, mover, 0),
+			pool.outcomeCount(child, mover, 1),
+			pool.outcomeCount(child, mover, 2),
+			pool.visitCount(child),
+			entropyWeight
+		);
+	}
+
+	/**
+	 * @param a
+	 * @param b
+	 * @return Whether arm a comes before arm b
+	 */
+	private boolean better(final int a, final int b)
+	{
+		final int cmp = Double.compare(ratings[a], ratings[b]);
+		return cmp > 0 || (cmp == 0 && a < b);
+	}
+
+	/**
+	 * Puts the given arm at the given position in the order
+	 *
+	 * @param arm
+	 * @param pos
+	 */
+	private void place(final int arm, final int pos)
+	{
+		order[pos] = arm;
+		positions[arm] = pos;
+	}
+
+	//-------------------------------------------------------------------------
+
+}
@@ -1,13 +1,16 @@
 package mcts;
 
 import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import game.Game;
 import main.collections.FastArrayList;
 import other.AI;
-import other.RankUtils;
 import other.context.Context;
 import other.move.Move;
 
@@ -18,16 +21,34 @@ import other.move.Move;
  * 
  * @author Dennis Soemers, modified by Sashank Chapala - i6317806
  */
-public class ExampleUCT extends AI
+public class ExampleUCT extends AI implements SearchReporter, ConcurrentAgent
 {
 	
 	//-------------------------------------------------------------------------
 	
-	/** Our player index */
-	protected int player = -1;
+	/** 
+	 * Every how many plies a tree node keeps its own copy of the game state (1 means every node does, 
+	 * 0 means only the root does). The other nodes rebuild their state by replaying moves when needed.
+	 */
+	public int checkpointInterval = 1;
+
+	/** Number of playouts run at once (on separate threads) from every newly expanded node, 1 means a single playout */
+	public int numLeafPlayouts = 1;
+
+	/** Runs our batches of playouts, created on first use */
+	private LeafParallelPlayouts leafPlayouts = null;
+
+	/** Whoever wants a report of every search we run */
+	private final SearchListeners searchListeners = new SearchListeners();
 
 	//Value of exploration constant used in UCB1
 	public double explorationConstant;
+
+	/** Number of threads searching in the shared tree (1 means no multithreading) */
+	public int numThreads = 1;
+
+	/** Pool of worker threads used for tree-parallel search, created on first use */
+	private ExecutorService searchExecutor = null;
 	
 	//-------------------------------------------------------------------------
 	
@@ -35,8 +56,19 @@ public class ExampleUCT extends AI
 	 * Constructor
 	 */
 	public ExampleUCT(double explorationConstant)
+	{
+		this(explorationConstant, 1);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param numThreads Number of threads searching in the shared tree
+	 */
+	public ExampleUCT(double explorationConstant, int numThreads)
 	{
 		this.friendlyName = "Example UCT";
+		this.numThreads = Math.max(1, numThreads);
 
 		if(explorationConstant == -1.0){
 			//default value is sqrt(2)
@@ -60,82 +92,113 @@ public class ExampleUCT extends AI
 	)
 	{
 		// Start out by creating a new root node (no tree reuse in this example)
-		final Node root = new Node(null, null, context);
+		final NodePool pool = new NodePool(game.players().count(), false, this.checkpointInterval);
+		final int root = pool.allocate(NodePool.NONE, null, context);
+		
+		// Only collected if someone listens to our searches
+		final SearchMetrics metrics = this.searchListeners.start(pool, root);
 		
 		// We'll respect any limitations on max seconds and max iterations (don't care about max depth)
-		final long stopTime = (maxSeconds > 0.0) ? System.currentTimeMillis() + (long) (maxSeconds * 1000L) : Long.MAX_VALUE;
+		final SearchDeadline deadline = new SearchDeadline(maxSeconds);
 		final int maxIts = (maxIterations >= 0) ? maxIterations : Integer.MAX_VALUE;
+		
+		// No cap on our playouts unless one is configured for this game, but they stop at the deadline
+		final PlayoutEngine playouts = new PlayoutEngine(PlayoutEngine.maxPlayoutMoves(game, -1), deadline);
 				
+		if (this.numThreads > 1)
+		{
+			searchParallel(pool, root, deadline, playouts, maxIts);
+			final Move move = finalMoveSelection(pool, root);
+			this.searchListeners.finish(metrics, this.friendlyName, move, pool, root, deadline);
+			return move;
+		}
+		
+		// Runs our iterations, reusing the same buffers for all of them
+		final SearchKernel kernel = new SearchKernel
+		(
+			pool, 
+			(final NodePool p, final int current) -> select(p, current, this.explorationConstant), 
+			playouts, 
+			(this.numLeafPlayouts > 1) ? leafPlayouts() : null
+		);
+		kernel.setMetrics(metrics);
+		
 		int numIterations = 0;
 		
 		// Our main loop through MCTS iterations
 		while 
 		(
 			numIterations < maxIts && 					// Respect iteration limit
-			System.currentTimeMillis() < stopTime && 	// Respect time limit
-			!wantsInterrupt								// Respect GUI user clicking the pause button
+			!deadline.expired() && 						// Respect time limit
+			!wantsInterrupt &&							// Respect GUI user clicking the pause button
+			!Thread.currentThread().isInterrupted()		// Respect our thread being interrupted (e.g. an experiment shutting down)
 		)
 		{
 			// Start in root node
-			Node current = root;
+			kernel.iteration(root);
 			
-			// Traverse tree
-			while (true)
+			// Increment iteration count
+			++numIterations;
+		}
+		
+		// Return the move we wish to play
+		final Move move = finalMoveSelection(pool, root);
+		this.searchListeners.finish(metrics, this.friendlyName, move, pool, root, deadline);
+		return move;
+	}
+	
+	/**
+	 * Runs MCTS iterations on all our threads at once, all in the same tree, until the iteration 
+	 * or time limit is reached. Only returns once all threads are done.
+	 * 
+	 * @param pool
+	 * @param root
+	 * @param deadline
+	 * @param playouts
+	 * @param maxIts
+	 */
+	private void searchParallel(final NodePool pool, final int root, final SearchDeadline deadline, final PlayoutEngine playouts, final int maxIts)
+	{
+		final ExecutorService executor = searchExecutor();
+		
+		// Every thread claims its iterations from this counter, so we respect the iteration limit exactly
+		final AtomicInteger numIterations = new AtomicInteger(0);
+		
+		final ArrayList<Future<?>> futures = new ArrayList<Future<?>>(this.numThreads);
+		for (int t = 0; t < this.numThreads; ++t)
+		{
+			futures.add(executor.submit(() -> 
 			{
-				if (current.context.trial().over())
-				{
-					// We've reached a terminal state
-					break;
-				}
-				
-				current = select(current, explorationConstant);
+				final double[] utilities = new double[pool.numPlayers() + 1];
 				
-				if (current.visitCount == 0)
+				while 
+				(
+					!deadline.passed() && 						// Respect time limit
+					!wantsInterrupt &&							// Respect GUI user clicking the pause button
+					numIterations.getAndIncrement() < maxIts	// Respect iteration limit
+				)
 				{
-					// We've expanded a new node, time for playout!
-					break;
+					TreeParallelSearch.iteration(pool, root, NodePool.NONE, explorationConstant, playouts, utilities);
 				}
+			}));
+		}
+		
+		for (final Future<?> future : futures)
+		{
+			try
+			{
+				future.get();
 			}
-			
-			Context contextEnd = current.context;
-			
-			if (!contextEnd.trial().over())
+			catch (final InterruptedException e)
 			{
-				// Run a playout if we don't already have a terminal game state in node
-				contextEnd = new Context(contextEnd);
-				game.playout
-				(
-					contextEnd, 
-					null, 
-					-1.0, 
-					null, 
-					0, 
-					-1, 
-					ThreadLocalRandom.current()
-				);
+				Thread.currentThread().interrupt();
+				this.wantsInterrupt = true;
 			}
-			
-			// This computes utilities for all players at the of the playout,
-			// which will all be values in [-1.0, 1.0]
-			final double[] utilities = RankUtils.utilities(contextEnd);
-			
-			// Backpropagate utilities through the tree
-			while (current != null)
+			catch (final ExecutionException e)
 			{
-				current.visitCount += 1;
-				for (int p = 1; p <= game.players().count(); ++p)
-				{
-					current.scoreSums[p] += utilities[p];
-				}
-				current = current.parent;
+				throw new RuntimeException(e.getCause());
 			}
-			
-			// Increment iteration count
-			++numIterations;
 		}
-		
-		// Return the move we wish to play
-		return finalMoveSelection(root);
 	}
 	
 	/**
@@ -143,43 +206,53 @@ public class ExampleUCT extends AI
 	 * This method also implements the "Expansion" phase of MCTS, and creates
 	 * a new node if the given current node has unexpanded moves.
 	 * 
+	 * @param pool
 	 * @param current
 	 * @return Selected node (if it has 0 visits, it will be a newly-expanded node).
 	 */
-	public static Node select(final Node current, final double explorationConstant)
+	public static int select(final NodePool pool, final int current, final double explorationConstant)
 	{
-		if (!current.unexpandedMoves.isEmpty())
+		final FastArrayList<Move> unexpandedMoves = pool.unexpandedMoves(current);
+		
+		if (!unexpandedMoves.isEmpty())
 		{
 			// randomly select an unexpanded move
-			final Move move = current.unexpandedMoves.remove(
-					ThreadLocalRandom.current().nextInt(current.unexpandedMoves.size()));
+			final Move move = unexpandedMoves.remove(
+					ThreadLocalRandom.current().nextInt(unexpandedMoves.size()));
 			
 			// create a copy of context
-			final Context context = new Context(current.context);
+			final Context context = pool.copyContext(current);
 			
 			// apply the move
 			context.game().apply(context, move);
 			
 			// create new node and return it
-			return new Node(current, move, context);
+			return pool.allocate(current, move, context);
 		}
 		
 		// use UCB1 equation to select from all children, with random tie-breaking
-		Node bestChild = null;
+		int bestChild = NodePool.NONE;
         double bestValue = Double.NEGATIVE_INFINITY;
-        final double twoParentLog = Math.log(Math.max(1, current.visitCount));
+        final double twoParentLog = Math.log(Math.max(1, pool.visitCount(current)));
         int numBestFound = 0;
         
-        final int numChildren = current.children.size();
-        final int mover = current.context.state().mover();
+        final int mover = pool.mover(current);
 
-        for (int i = 0; i < numChildren; ++i) 
+        for (int child = pool.firstChild(current); child != NodePool.NONE; child = pool.nextSibling(child)) 
         {
-        	final Node child = current.children.get(i);
-        	final double exploit = child.scoreSums[mover] / child.visitCount;
-        	final double explore = explorationConstant * Math.sqrt(twoParentLog / child.visitCount);
-        
-            final double ucb1Value = exploit + explore;
+        	final int childVisits = pool.visitCount(child);
+        	final double ucb1Value;
+        	if (childVisits == 0)
+        	{
+        		// Its only playout was cut off by the deadline, so we know nothing about it yet
+        		ucb1Value = Double.POSITIVE_INFINITY;
+        	}
+        	else
+        	{
+        		final double exploit = pool.scoreSum(child, mover) / childVisits;
+        		final double explore = explorationConstant * Math.sqrt(twoParentLog / childVisits);
+        		ucb1Value = exploit + explore;
+        	}
             
             if (ucb1Value > bestValue)
             {
@@ -206,21 +279,19 @@ public class ExampleUCT extends AI
 	 * (meaning that we play the move leading to the child of the root node
 	 * with the highest visit count).
 	 * 
+	 * @param pool
 	 * @param rootNode
 	 * @return
 	 */
-	public static Move finalMoveSelection(final Node rootNode)
+	public static Move finalMoveSelection(final NodePool pool, final int rootNode)
 	{
-		Node bestChild = null;
+		int bestChild = NodePool.NONE;
         int bestVisitCount = Integer.MIN_VALUE;
         int numBestFound = 0;
-        
-        final int numChildren = rootNode.children.size();
 
-        for (int i = 0; i < numChildren; ++i) 
+        for (int child = pool.firstChild(rootNode); child != NodePool.NONE; child = pool.nextSibling(child)) 
         {
-        	final Node child = rootNode.children.get(i);
-        	final int visitCount = child.visitCount;
+        	final int visitCount = pool.visitCount(child);
             
             if (visitCount > bestVisitCount)
             {
@@ -239,13 +310,82 @@ public class ExampleUCT extends AI
             }
         }
         
-        return bestChild.moveFromParent;
+        return pool.moveFromParent(bestChild);
+	}
+	
+	/**
+	 * @return Our pool of worker threads for tree-parallel search (created on first use)
+	 */
+	private synchronized ExecutorService searchExecutor()
+	{
+		if (this.searchExecutor == null)
+		{
+			this.searchExecutor = Executors.newFixedThreadPool(this.numThreads, (final Runnable r) -> 
+			{
+				final Thread thread = new Thread(r, this.friendlyName + " search worker");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		
+		return this.searchExecutor;
+	}
+	
+	/**
+	 * @return The runner for our batches of playouts from newly expanded nodes (created on first use)
+	 */
+	private synchronized LeafParallelPlayouts leafPlayouts()
+	{
+		if (this.leafPlayouts == null)
+		{
+			this.leafPlayouts = new LeafParallelPlayouts(this.numLeafPlayouts, this.friendlyName + " playout worker");
+		}
+		
+		return this.leafPlayouts;
+	}
+	
+	/**
+	 * Makes us report every search we run to the given listener
+	 * 
+	 * @param listener
+	 */
+	@Override
+	public void addSearchListener(final SearchListener listener)
+	{
+		this.searchListeners.add(listener);
+	}
+	
+	/**
+	 * Stops reporting our searches to the given listener
+	 * 
+	 * @param listener
+	 */
+	@Override
+	public void removeSearchListener(final SearchListener listener)
+	{
+		this.searchListeners.remove(listener);
 	}
 	
 	@Override
 	public void initAI(final Game game, final int playerID)
 	{
-		this.player = playerID;
+		// Nothing to set up, we keep nothing between searches
+	}
+	
+	@Override
+	public void closeAI()
+	{
+		if (this.leafPlayouts != null)
+		{
+			this.leafPlayouts.close();
+			this.leafPlayouts = null;
+		}
+		
+		if (this.searchExecutor != null)
+		{
+			this.searchExecutor.shutdownNow();
+			this.searchExecutor = null;
+		}
 	}
 	
 	@Override
@@ -260,59 +400,11 @@ public class ExampleUCT extends AI
 		return true;
 	}
 	
-	//-------------------------------------------------------------------------
-	
-	/**
-	 * Inner class for nodes used by example UCT
-	 * 
-	 * @author Dennis Soemers
-	 */
-	private static class Node
+	@Override
+	public boolean supportsConcurrentSearches()
 	{
-		/** Our parent node */
-		private final Node parent;
-		
-		/** The move that led from parent to this node */
-		private final Move moveFromParent;
-		
-		/** This objects contains the game state for this node (this is why we don't support stochastic games) */
-		private final Context context;
-		
-		/** Visit count for this node */
-		private int visitCount = 0;
-		
-		/** For every player, sum of utilities / scores backpropagated through this node */
-		private final double[] scoreSums;
-		
-		/** Child nodes */
-		private final List<Node> children = new ArrayList<Node>();
-		
-		/** List of moves for which we did not yet create a child node */
-		private final FastArrayList<Move> unexpandedMoves;
-		
-		/**
-		 * Constructor
-		 * 
-		 * @param parent
-		 * @param moveFromParent
-		 * @param context
-		 */
-		public Node(final Node parent, final Move moveFromParent, final Context context)
-		{
-			this.parent = parent;
-			this.moveFromParent = moveFromParent;
-			this.context = context;
-			final Game game = context.game();
-			scoreSums = new double[game.players().count() + 1];
-			
-			// For simplicity, we just take ALL legal moves. 
-			// This means we do not support simultaneous-move games.
-			unexpandedMoves = new FastArrayList<Move>(game.moves(context).moves());
-			
-			if (parent != null)
-				parent.children.add(this);
-		}
-		
+		// A batch of leaf playouts uses buffers of our own, everything else of a search is local to it
+		return this.numLeafPlayouts <= 1;
 	}
 	
 	//-------------------------------------------------------------------------
@@ -0,0 +1,221 @@
+package mcts;
+
+import java.util.Arrays;
+
+/**
+ * The halving step shared by our Sequential Halving agents: keeps the arms with the best scores,
+ * without sorting all of them. The best arms are found with in-place partial selection (introselect:
+ * quickselect with a median-of-three pivot, which falls back to heapsort on the part it still has to
+ * look at if the partitions keep being unbalanced), so a halving takes expected linear time and only
+ * works on the given primitive arrays.
+ *
+ * Arms are ordered by their score (higher is better), and arms with equal scores by their id (lower
+ * is better), so the arms we keep never depend on the order in which they happen to be given.
+ *
+ * @author Sashank Chapala
+ */
+public final class Halving
+{
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor (not used, this class only has static methods)
+	 */
+	private Halving()
+	{
+		// Do nothing
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Frees the memory of the subtrees of the arms of the root which we are no longer searching (see 
+	 * NodePool.evictSubtrees()), for agents which identify the arms by their index in the children of 
+	 * the root. Those indices stay the same in the new pool.
+	 *
+	 * @param pool
+	 * @param root
+	 * @param currentChildrenIndexes Indices (among the children of the root) of the arms we are still searching
+	 * @param numCurrent Number of arms we are still searching
+	 * @return A new pool, in which only the arms we are still searching have a subtree
+	 */
+	public static NodePool evictPrunedArms(final NodePool pool, final int root, final int[] currentChildrenIndexes, final int numCurrent)
+	{
+		final boolean[] keepSubtree = new boolean[pool.numChildren(root)];
+		for (int i = 0; i < numCurrent; ++i)
+		{
+			keepSubtree[currentChildrenIndexes[i]] = true;
+		}
+
+		return pool.evictSubtrees(root, keepSubtree);
+	}
+
+	/**
+	 * Reorders the first n arms such that the first numKept entries are the numKept best arms, in
+	 * ascending order of id. If all arms are kept, they are left as they are.
+	 *
+	 * @param ids Ids of the arms (all different)
+	 * @param scores Score of every arm (used as scratch space, so its order is undefined afterwards)
+	 * @param n Number of arms
+	 * @param numKept Number of arms to keep
+	 * @return numKept (or n, if we have to keep at least as many arms as there are)
+	 */
+	public static int keepBest(final int[] ids, final double[] scores, final int n, final int numKept)
+	{
+		if (numKept >= n)
+			return n;
+
+		if (numKept > 0)
+		{
+			select(ids, scores, 0, n - 1, numKept - 1);
+			Arrays.sort(ids, 0, numKept);
+		}
+
+		return numKept;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Moves the arm which belongs at index k (in order from best to worst) to index k, all better arms
+	 * in front of it and all worse arms behind it, only looking at the range [lo, hi].
+	 *
+	 * @param ids
+	 * @param scores
+	 * @param lo
+	 * @param hi
+	 * @param k
+	 */
+	private static void select(final int[] ids, final double[] scores, int lo, int hi, final int k)
+	{
+		// Once the partitions have been unbalanced this often, we stop relying on the pivots
+		int depthLimit = 2 * (32 - Integer.numberOfLeadingZeros(hi - lo + 1));
+
+		while (hi > lo)
+		{
+			if (depthLimit-- == 0)
+			{
+				heapSort(ids, scores, lo, hi);
+				return;
+			}
+
+			// Median of three as pivot, moved to hi
+			final int mid = (lo + hi) >>> 1;
+			if (better(ids, scores, mid, lo))
+				swap(ids, scores, mid, lo);
+			if (better(ids, scores, hi, lo))
+				swap(ids, scores, hi, lo);
+			if (better(ids, scores, mid, hi))
+				swap(ids, scores, mid, hi);
+
+			// Partition: everything better than the pivot goes in front of it
+			int store = lo;
+			for (int i = lo; i < hi; ++i)
+			{
+				if (better(ids, scores, i, hi))
+					swap(ids, scores, i, store++);
+			}
+			swap(ids, scores, store, hi);
+
+			if (store == k)
+				return;
+			else if (store < k)
+				lo = store + 1;
+			else
+				hi = store - 1;
+		}
+	}
+
+	/**
+	 * Sorts the range [lo, hi] from best to worst.
+	 *
+	 * @param ids
+	 * @param scores
+	 * @param lo
+	 * @param hi
+	 */
+	private static void heapSort(final int[] ids, final double[] scores, final int lo, final int hi)
+	{
+		final int n = hi - lo + 1;
+
+		// Build a heap with the worst arm on top
+		for (int i = n / 2 - 1; i >= 0; --i)
+		{
+			siftDown(ids, scores, lo, i, n);
+		}
+
+		// Repeatedly move the worst arm left to the back
+		for (int end = n - 1; end > 0; --end)
+		{
+			swap(ids, scores, lo, lo + end);
+			siftDown(ids, scores, lo, 0, end);
+		}
+	}
+
+	/**
+	 * Restores the heap property (no arm worse than its children) below the given node
+	 *
+	 * @param ids
+	 * @param scores
+	 * @param offset Index of the root of the heap
+	 * @param node Node to start at (relative to offset)
+	 * @param size Number of arms in the heap
+	 */
+	private static void siftDown(final int[] ids, final double[] scores, final int offset, final int node, final int size)
+	{
+		int parent = node;
+		while (true)
+		{
+			int worst = parent;
+			final int left = 2 * parent + 1;
+			final int right = left + 1;
+
+			if (left < size && better(ids, scores, offset + worst, offset + left))
+				worst = left;
+			if (right < size && better(ids, scores, offset + worst, offset + right))
+				worst = right;
+
+			if (worst == parent)
+				return;
+
+			swap(ids, scores, offset + parent, offset + worst);
+			parent = worst;
+		}
+	}
+
+	/**
+	 * @param ids
+	 * @param scores
+	 * @param i
+	 * @param j
+	 * @return Whether the arm at index i is better than the arm at index j
+	 */
+	private static boolean better(final int[] ids, final double[] scores, final int i, final int j)
+	{
+		final int cmp = Double.compare(scores[i], scores[j]);
+		return cmp > 0 || (cmp == 0 && ids[i] < ids[j]);
+	}
+
+	/**
+	 * Swaps the arms at indices i and j
+	 *
+	 * @param ids
+	 * @param scores
+	 * @param i
+	 * @param j
+	 */
+	private static void swap(final int[] ids, final double[] scores, final int i, final int j)
+	{
+		final int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+
+		final double score = scores[i];
+		scores[i] = scores[j];
+		scores[j] = score;
+	}
+
+	//-------------------------------------------------------------------------
+
+}
@@ -0,0 +1,432 @@
+package mcts;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Properties;
+
+import game.Game;
+import other.context.Context;
+import other.trial.Trial;
+
+/**
+ * Translates a time budget into an iteration budget, for agents which search with a fixed number of
+ * iterations (like SHUCT). The number of iterations per second is measured per game (with its options,
+ * which includes the ruleset) and agent, by running the same iterations as the agent from the initial
+ * game state for a few seconds. The results are kept in a local cache file, so every combination of
+ * game and agent only needs to be measured once per machine.
+ *
+ * Everything about the search of an agent which changes how many iterations it runs per second (see
+ * Setup) is part of the key in the cache file, and we measure with the same settings: the same
+ * playout cap, checkpoint interval and transposition table size, batches of leaf playouts, and one
+ * tree per thread with several threads. For agents which count the iterations of all their threads
+ * (tree parallelisation) we measure the iterations of all threads together, for agents which count
+ * per tree (root parallelisation) those of a single tree while the others search at the same time.
+ * Threads searching a shared tree also wait for each other now and then, which this does not measure.
+ *
+ * Several experiments (JVMs) may share the cache file. While one of them looks up or measures a
+ * number, it holds a lock on a file next to the cache, so the others wait for it rather than
+ * measuring at the same time (which would slow all measurements down), and do not overwrite what it
+ * stored. The cache file itself is replaced atomically, so it can never be read half-written.
+ *
+ * The agents measure in initAI(), so this happens during the warm-up of an experiment rather than
+ * while they are thinking about a move.
+ *
+ * @author Sashank Chapala
+ */
+public final class IterationCalibration
+{
+
+	//-------------------------------------------------------------------------
+
+	/** File in which we keep the measured numbers of iterations per second */
+	public static String cacheFilepath = "iteration-calibration.properties";
+
+	/** Number of seconds for which we measure (the first quarter of which is not counted, to warm up) */
+	public static double calibrationSeconds = 4.0;
+
+	/** Number of iterations per second we assume if we cannot measure (what the agents used to assume) */
+	public static final double DEFAULT_ITERATIONS_PER_SECOND = 1000.0;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * The settings of the search of an agent which change how many iterations it runs per second
+	 */
+	public static final class Setup
+	{
+		/** Selection step used by the agent */
+		public final Selection selection;
+
+		/** Maximum number of moves in a playout of the agent (-1 for no limit) */
+		public final int maxPlayoutMoves;
+
+		/** Every how many plies a node keeps its own game state (see NodePool) */
+		public final int checkpointInterval;
+
+		/** Maximum number of states in the transposition table of the agent (0 for none) */
+		public final int transpositionTableSize;
+
+		/** Number of playouts run at once from every new node (only with a single thread, like in our agents) */
+		public final int numLeafPlayouts;
+
+		/** Number of threads the agent searches on */
+		public final int numThreads;
+
+		/** Whether the agent counts the iterations per tree (root parallelisation) rather than of all threads */
+		public final boolean rootParallel;
+
+		/**
+		 * Constructor
+		 *
+		 * @param selection
+		 * @param maxPlayoutMoves
+		 * @param checkpointInterval
+		 * @param transpositionTableSize
+		 * @param numLeafPlayouts
+		 * @param numThreads
+		 * @param rootParallel
+		 */
+		public Setup
+		(
+			final Selection selection,
+			final int maxPlayoutMoves,
+			final int checkpointInterval,
+			final int transpositionTableSize,
+			final int numLeafPlayouts,
+			final int numThreads,
+			final boolean rootParallel
+		)
+		{
+			this.selection = selection;
+			this.maxPlayoutMoves = maxPlayoutMoves;
+			this.checkpointInterval = checkpointInterval;
+			this.transpositionTableSize = transpositionTableSize;
+			this.numThreads = Math.max(1, numThreads);
+			this.numLeafPlayouts = (this.numThreads > 1) ? 1 : Math.max(1, numLeafPlayouts);
+			this.rootParallel = rootParallel && this.numThreads > 1;
+		}
+
+		/**
+		 * @return Description of these settings, for the key in the cache file
+		 */
+		String describe()
+		{
+			return 
+				"cap=" + maxPlayoutMoves + ",checkpoints=" + checkpointInterval + ",tt=" + transpositionTableSize + 
+				",leaf=" + numLeafPlayouts + ",threads=" + numThreads + (rootParallel ? "/root" : "");
+		}
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor (not used, this class only has static methods)
+	 */
+	private IterationCalibration()
+	{
+		// Do nothing
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Looks up the number of iterations per second of the given agent in the given game,
+	 * and measures it (and stores it in the cache file) if we do not know it yet.
+	 *
+	 * @param game
+	 * @param agentName Name of the agent (see AI.friendlyName())
+	 * @param setup How the agent searches
+	 * @return Number of iterations per second
+	 */
+	public static synchronized double iterationsPerSecond(final Game game, final String agentName, final Setup setup)
+	{
+		// Other JVMs wait here until we have stored what we measured
+		final FileChannel lock = lockCache();
+		try
+		{
+			return lookUpOrMeasure(game, agentName, setup);
+		}
+		finally
+		{
+			unlockCache(lock);
+		}
+	}
+
+	/**
+	 * @param maxSeconds
+	 * @param iterationsPerSecond
+	 * @return Number of iterations which fit in the given number of seconds (at least 1)
+	 */
+	public static int iterationBudget(final double maxSeconds, final double iterationsPerSecond)
+	{
+		return (int) Math.max(1L, Math.min(Integer.MAX_VALUE, Math.round(maxSeconds * iterationsPerSecond)));
+	}
+
+	/**
+	 * Measures how many iterations an agent with the given setup can run per second from the initial 
+	 * state of the given game.
+	 *
+	 * @param game
+	 * @param setup
+	 * @param seconds Number of seconds to measure for
+	 * @return Number of iterations per second (0 if we did not get to run any)
+	 */
+	public static double measure(final Game game, final Setup setup, final double seconds)
+	{
+		// Like in root parallelisation, every thread searches its own tree (sharing the transposition table)
+		final TranspositionTable transpositions = 
+			(setup.transpositionTableSize > 0) ? new TranspositionTable(game.players().count(), setup.transpositionTableSize) : null;
+		final double[] rates = new double[setup.numThreads];
+		final Thread[] threads = new Thread[setup.numThreads];
+		for (int t = 0; t < threads.length; ++t)
+		{
+			final int index = t;
+			threads[t] = new Thread(() -> rates[index] = measureTree(game, setup, transpositions, seconds), "Iteration calibration worker");
+			threads[t].setDaemon(true);
+			threads[t].start();
+		}
+
+		double rate = 0.0;
+		for (int t = 0; t < threads.length; ++t)
+		{
+			try
+			{
+				threads[t].join();
+			}
+			catch (final InterruptedException e)
+			{
+				// Whatever the threads measured so far is lost, so we do not trust any of it
+				Thread.currentThread().interrupt();
+				return 0.0;
+			}
+			rate += rates[t];
+		}
+
+		return setup.rootParallel ? rate / setup.numThreads : rate;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Like iterationsPerSecond(), but expects the caller to hold the lock on the cache file
+	 *
+	 * @param game
+	 * @param agentName
+	 * @param setup
+	 * @return Number of iterations per second
+	 */
+	private static double lookUpOrMeasure(final Game game, final String agentName, final Setup setup)
+	{
+		final String key = key(game, agentName, setup);
+		final Properties cache = loadCache();
+
+		final String cached = cache.getProperty(key);
+		if (cached != null)
+		{
+			try
+			{
+				return Double.parseDouble(cached);
+			}
+			catch (final NumberFormatException e)
+			{
+				// Measure again below
+			}
+		}
+
+		final double measured = measure(game, setup, calibrationSeconds);
+		if (measured <= 0.0)
+			return DEFAULT_ITERATIONS_PER_SECOND;
+
+		cache.setProperty(key, Double.toString(measured));
+		storeCache(cache);
+		return measured;
+	}
+
+	/**
+	 * Measures how many iterations we can run per second in a single tree, from the initial state 
+	 * of the given game.
+	 *
+	 * @param game
+	 * @param setup
+	 * @param transpositions Table shared by the trees of all threads (null for none)
+	 * @param seconds Number of seconds to measure for
+	 * @return Number of iterations per second (0 if we did not get to run any)
+	 */
+	private static double measureTree
+	(
+		final Game game, 
+		final Setup setup, 
+		final TranspositionTable transpositions, 
+		final double seconds
+	)
+	{
+		final Context context = new Context(game, new Trial(game));
+		game.start(context);
+
+		final NodePool pool = new NodePool(game.players().count(), false, setup.checkpointInterval, transpositions);
+		final int root = pool.allocate(NodePool.NONE, null, context);
+		final LeafParallelPlayouts leafPlayouts = 
+			(setup.numLeafPlayouts > 1) ? new LeafParallelPlayouts(setup.numLeafPlayouts, "Iteration calibration playout worker") : null;
+		final SearchKernel kernel = new SearchKernel(pool, setup.selection, new PlayoutEngine(setup.maxPlayoutMoves, null), leafPlayouts);
+
+		try
+		{
+			// Warm up first, so we do not measure the interpreter
+			final SearchDeadline warmUp = new SearchDeadline(seconds / 4.0);
+			while (!warmUp.expired() && !Thread.currentThread().isInterrupted())
+			{
+				kernel.iteration(root);
+			}
+
+			final long start = System.nanoTime();
+			final SearchDeadline deadline = new SearchDeadline(seconds * 3.0 / 4.0);
+			long numIterations = 0L;
+			while (!deadline.expired() && !Thread.currentThread().isInterrupted())
+			{
+				if (kernel.iteration(root))
+					++numIterations;
+			}
+
+			final long elapsed = System.nanoTime() - start;
+			return (elapsed > 0L) ? numIterations * 1e9 / elapsed : 0.0;
+		}
+		finally
+		{
+			if (leafPlayouts != null)
+				leafPlayouts.close();
+		}
+	}
+
+	/**
+	 * @param game
+	 * @param agentName
+	 * @param setup
+	 * @return The key of the given game, agent and setup in the cache file
+	 */
+	private static String key(final Game game, final String agentName, final Setup setup)
+	{
+		final StringBuilder sb = new StringBuilder();
+		sb.append(game.name());
+
+		final List<String> options = game.getOptions();
+		if (options != null)
+		{
+			for (final String option : options)
+			{
+				sb.append('|').append(option);
+			}
+		}
+
+		sb.append('|').append(agentName);
+		sb.append('|').append(setup.describe());
+		return sb.toString();
+	}
+
+	/**
+	 * @return Everything in our cache file (empty if there is no cache file yet)
+	 */
+	private static Properties loadCache()
+	{
+		final Properties cache = new Properties();
+		final File file = new File(cacheFilepath);
+		if (file.exists())
+		{
+			try (final Reader reader = new FileReader(file))
+			{
+				cache.load(reader);
+			}
+			catch (final IOException e)
+			{
+				System.err.println("Could not read iteration calibration cache " + cacheFilepath + ": " + e.getMessage());
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Writes the given cache to our cache file, by writing it to a temporary file next to it first 
+	 * and then moving that over the cache file in one go
+	 *
+	 * @param cache
+	 */
+	private static void storeCache(final Properties cache)
+	{
+		final Path target = new File(cacheFilepath).getAbsoluteFile().toPath();
+		Path temp = null;
+		try
+		{
+			temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+			try (final Writer writer = new FileWriter(temp.toFile()))
+			{
+				cache.store(writer, "Measured MCTS iterations per second, per game (with options) and agent");
+			}
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (final IOException e)
+		{
+			System.err.println("Could not write iteration calibration cache " + cacheFilepath + ": " + e.getMessage());
+			if (temp != null)
+				temp.toFile().delete();
+		}
+	}
+
+	/**
+	 * Waits until no other JVM uses our cache file, and keeps it to ourselves until unlockCache()
+	 *
+	 * @return The open lock file, which holds the lock (null if we could not lock, then we go ahead without)
+	 */
+	private static FileChannel lockCache()
+	{
+		FileChannel channel = null;
+		try
+		{
+			channel = FileChannel.open
+			(
+				new File(cacheFilepath + ".lock").toPath(), 
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE
+			);
+			channel.lock();
+			return channel;
+		}
+		catch (final IOException e)
+		{
+			System.err.println("Could not lock iteration calibration cache " + cacheFilepath + ": " + e.getMessage());
+			unlockCache(channel);
+			return null;
+		}
+	}
+
+	/**
+	 * Releases the lock taken by lockCache()
+	 *
+	 * @param channel The lock file lockCache() returned (may be null)
+	 */
+	private static void unlockCache(final FileChannel channel)
+	{
+		if (channel == null)
+			return;
+
+		try
+		{
+			// Closing the channel releases its lock
+			channel.close();
+		}
+		catch (final IOException e)
+		{
+			System.err.println("Could not unlock iteration calibration cache " + cacheFilepath + ": " + e.getMessage());
+		}
+	}
+
+	//-------------------------------------------------------------------------
+
+}
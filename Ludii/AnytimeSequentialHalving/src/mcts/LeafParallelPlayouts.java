@@ -0,0 +1,189 @@
+package mcts;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import other.context.Context;
+
+/**
+ * Leaf parallelisation: runs a batch of playouts from the same (newly expanded) node at once, one
+ * on the calling thread and the others on a pool of worker threads. The results are meant to be
+ * backpropagated in one go with NodePool.backpropagateBatch(), so the cost of selection and
+ * expansion is shared by all playouts of the batch. The buffers for the results are reused for
+ * every batch.
+ *
+ * Only supports deterministic, alternating-move games.
+ *
+ * @author Sashank Chapala
+ */
+public final class LeafParallelPlayouts
+{
+
+	//-------------------------------------------------------------------------
+
+	/** Number of playouts in every batch */
+	private final int numPlayouts;
+
+	/** Threads running all playouts of a batch except for the first one */
+	private final ExecutorService executor;
+
+	/** For every playout of the current batch, the utilities of all players */
+	private final double[][] results;
+
+	/** For every playout of the current batch except for the first one, the task running it */
+	private final Future<Boolean>[] futures;
+
+	/** For every playout of the current batch, whether it was finished (rather than cut short) */
+	private final boolean[] finished;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor
+	 *
+	 * @param numPlayouts Number of playouts in every batch (at least 2)
+	 * @param threadName Name of our worker threads
+	 */
+	public LeafParallelPlayouts(final int numPlayouts, final String threadName)
+	{
+		if (numPlayouts < 2)
+			throw new IllegalArgumentException("A batch needs at least 2 playouts, but got: " + numPlayouts);
+
+		this.numPlayouts = numPlayouts;
+		this.results = new double[numPlayouts][];
+		@SuppressWarnings("unchecked")
+		final Future<Boolean>[] tasks = new Future[numPlayouts - 1];
+		this.futures = tasks;
+		this.finished = new boolean[numPlayouts];
+		this.executor = Executors.newFixedThreadPool(numPlayouts - 1, (final Runnable r) ->
+		{
+			final Thread thread = new Thread(r, threadName);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Runs a batch of playouts from the given game state. If the state is terminal, every playout of
+	 * the batch simply gets its utilities.
+	 *
+	 * @param context The state to start from (used for one of the playouts, so it is modified)
+	 * @param playouts Runs the playouts (and cuts them short at the deadline of the search)
+	 * @return The number of playouts we finished (fewer than the batch size if we were interrupted or 
+	 * 	ran out of time), of which the utilities are in the first rows of results()
+	 */
+	public int run(final Context context, final PlayoutEngine playouts)
+	{
+		final int numPlayers = context.game().players().count();
+		if (results[0] == null || results[0].length != numPlayers + 1)
+		{
+			for (int i = 0; i < numPlayouts; ++i)
+			{
+				results[i] = new double[numPlayers + 1];
+			}
+		}
+
+		if (context.trial().over())
+		{
+			// No need to play anything, all playouts end here
+			SearchKernel.utilities(context, results[0]);
+			for (int i = 1; i < numPlayouts; ++i)
+			{
+				System.arraycopy(results[0], 0, results[i], 0, numPlayers + 1);
+			}
+			return numPlayouts;
+		}
+
+		// The copies have to be made before we start the playout in the given context ourselves
+		for (int i = 0; i < futures.length; ++i)
+		{
+			final Context copy = new Context(context);
+			final double[] utilities = results[i + 1];
+			futures[i] = executor.submit(() -> Boolean.valueOf(playout(copy, playouts, utilities)));
+		}
+
+		finished[0] = playout(context, playouts, results[0]);
+
+		for (int i = 0; i < futures.length; ++i)
+		{
+			try
+			{
+				finished[i + 1] = futures[i].get().booleanValue();
+			}
+			catch (final InterruptedException e)
+			{
+				// Just backpropagate what we already have
+				Thread.currentThread().interrupt();
+				for (int j = i; j < futures.length; ++j)
+				{
+					futures[j].cancel(true);
+					finished[j + 1] = false;
+				}
+				break;
+			}
+			catch (final ExecutionException e)
+			{
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		// Move the utilities of the playouts we finished to the front
+		int numDone = 0;
+		for (int i = 0; i < numPlayouts; ++i)
+		{
+			if (finished[i])
+			{
+				final double[] utilities = results[i];
+				results[i] = results[numDone];
+				results[numDone++] = utilities;
+			}
+		}
+
+		return numDone;
+	}
+
+	/**
+	 * @return For every playout of the last batch, the utilities of all players (players are indexed 
+	 * 	from 1). Only valid until the next batch.
+	 */
+	public double[][] results()
+	{
+		return results;
+	}
+
+	/**
+	 * Stops our worker threads
+	 */
+	public void close()
+	{
+		executor.shutdownNow();
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Runs a single playout
+	 *
+	 * @param context
+	 * @param playouts
+	 * @param utilities Array to write the utilities of all players at the end of the playout into
+	 * @return Whether we finished the playout (if not, the utilities are not written)
+	 */
+	private static boolean playout(final Context context, final PlayoutEngine playouts, final double[] utilities)
+	{
+		if (!playouts.run(context))
+			return false;
+
+		// This computes utilities for all players at the of the playout,
+		// which will all be values in [-1.0, 1.0]
+		SearchKernel.utilities(context, utilities);
+		return true;
+	}
+
+	//-------------------------------------------------------------------------
+
+}
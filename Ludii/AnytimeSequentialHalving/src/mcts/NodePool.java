@@ -0,0 +1,1096 @@
+package mcts;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+import game.Game;
+import main.collections.FastArrayList;
+import other.context.Context;
+import other.move.Move;
+import other.trial.Trial;
+
+/**
+ * A node store shared by all of our agents. Rather than creating one object per node (with its own
+ * scoreSums array, children list, etc.), this keeps the statistics of every node in flat primitive
+ * arrays, and nodes are addressed by int node IDs.
+ *
+ * The arrays are split up in pages of PAGE_SIZE nodes, and new pages are only allocated once the
+ * previous ones are full. This means that nodes never move once allocated, so worker threads can keep
+ * working on their own nodes while another thread makes the pool grow.
+ *
+ * Children of a node are stored as a linked list (first child, next sibling), in the order in which
+ * they were expanded.
+ *
+ * By default every node can keep a copy of its game state (Context), just like the old per-agent Node
+ * classes did. Since that is by far the largest memory cost of the tree, the pool can also be told to
+ * only keep a Context for the root and for every k-th ply below it ("checkpoints"). The state of any
+ * other node is then rebuilt when needed, by copying the closest checkpoint above it and replaying
+ * the moves from there. The mover and whether the state is terminal are always stored per node, so
+ * selection through the tree never needs a Context.
+ *
+ * The Context a node is allocated with is handed over to whoever runs the playout from that node
+ * (see takeContext()), so an iteration does not have to copy the state again for its playout. The 
+ * Context a checkpoint keeps is only built the first time we expand a child below it, which most 
+ * leaf nodes never get. For the same reason, the legal moves of a node (other than the root) are 
+ * only generated the first time selection asks for its unexpanded moves (see unexpandedMoves()),
+ * since most leaves only ever get the one playout they were created for.
+ *
+ * Several threads may search in the same pool at once (tree parallelisation). Allocation is done under
+ * the lock of the pool, new children are published with release / acquire semantics, and the 
+ * *Concurrent() methods update the statistics with atomic VarHandle operations. Threads descending 
+ * in parallel can add a virtual loss to the nodes they select, which is removed again when they
+ * backpropagate, so that other threads are steered towards different parts of the tree.
+ *
+ * A pool can also be re-rooted on a subtree for tree reuse between turns (see reroot()), which
+ * copies that subtree into a fresh pool and leaves the rest of the tree behind.
+ *
+ * Optionally, nodes with the same game state share their statistics through a TranspositionTable:
+ * every node then remembers the full hash of its state, everything backpropagated through a node is
+ * also added to the entry of its state, and exploit() and sharedVisitCount() use the statistics of 
+ * the state rather than those of the node.
+ *
+ * Only supports deterministic, alternating-move games.
+ *
+ * @author Sashank Chapala
+ */
+public final class NodePool
+{
+
+	//-------------------------------------------------------------------------
+
+	/** Node ID used to indicate that there is no node (e.g. the parent of the root) */
+	public static final int NONE = -1;
+
+	/** Node ID of the root, which is always the first node allocated in a pool */
+	public static final int ROOT = 0;
+
+	/** Number of bits of a node ID used to index within a page */
+	private static final int PAGE_BITS = 12;
+
+	/** Number of nodes stored in each page */
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+	/** Mask to extract the index within a page from a node ID */
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	/** Maximum number of pages (which bounds the number of nodes in a single pool) */
+	private static final int MAX_PAGES = 1 << 15;
+
+	/** Atomic access to the elements of our int[] arrays */
+	private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+	/** Atomic access to the elements of our double[] arrays */
+	private static final VarHandle DOUBLES = MethodHandles.arrayElementVarHandle(double[].class);
+
+	/** Atomic access to the elements of our Context[] arrays */
+	private static final VarHandle CONTEXTS = MethodHandles.arrayElementVarHandle(Context[].class);
+
+	/** Atomic access to the elements of our Object[] arrays */
+	private static final VarHandle OBJECTS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+	//-------------------------------------------------------------------------
+
+	/** Number of players in the game we are searching */
+	private final int numPlayers;
+
+	/** Number of doubles we store per node for the score sums (players are indexed from 1) */
+	private final int scoreStride;
+
+	/** Whether we also keep track of win / loss / draw counts for every player */
+	private final boolean trackOutcomes;
+
+	/**
+	 * Every how many plies a node keeps its Context (1 means every node does, 0 means only the root does).
+	 * Nodes in between only store the move that led to them.
+	 */
+	private final int checkpointInterval;
+
+	/** Statistics shared by all nodes with the same game state (null if we do not share them) */
+	private final TranspositionTable transpositions;
+
+	/** For a batch of playouts, the sum of utilities of every player (only used with a transposition table) */
+	private final double[] batchSums;
+
+	/** All pages allocated so far (the directory is never resized, so threads can safely share it) */
+	private final Page[] pages = new Page[MAX_PAGES];
+
+	/** Number of nodes allocated so far */
+	private int size = 0;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor
+	 *
+	 * @param numPlayers
+	 */
+	public NodePool(final int numPlayers)
+	{
+		this(numPlayers, false);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param numPlayers
+	 * @param trackOutcomes Whether to keep win / loss / draw counts per player (used by the entropy agent)
+	 */
+	public NodePool(final int numPlayers, final boolean trackOutcomes)
+	{
+		this(numPlayers, trackOutcomes, 1);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param numPlayers
+	 * @param trackOutcomes Whether to keep win / loss / draw counts per player (used by the entropy agent)
+	 * @param checkpointInterval Every how many plies a node keeps its Context (1 for every node, 0 for only the root)
+	 */
+	public NodePool(final int numPlayers, final boolean trackOutcomes, final int checkpointInterval)
+	{
+		this(numPlayers, trackOutcomes, checkpointInterval, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param numPlayers
+	 * @param trackOutcomes Whether to keep win / loss / draw counts per player (used by the entropy agent)
+	 * @param checkpointInterval Every how many plies a node keeps its Context (1 for every node, 0 for only the root)
+	 * @param transpositions Table through which nodes with the same state share statistics (null for none)
+	 */
+	public NodePool
+	(
+		final int numPlayers, 
+		final boolean trackOutcomes, 
+		final int checkpointInterval, 
+		final TranspositionTable transpositions
+	)
+	{
+		if (checkpointInterval < 0)
+			throw new IllegalArgumentException("Checkpoint interval must be >= 0, but was: " + checkpointInterval);
+
+		this.numPlayers = numPlayers;
+		this.scoreStride = numPlayers + 1;
+		this.trackOutcomes = trackOutcomes;
+		this.checkpointInterval = checkpointInterval;
+		this.transpositions = transpositions;
+		this.batchSums = (transpositions != null) ? new double[scoreStride] : null;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Allocates a new node and, if it has a parent, adds it as the last child of that parent.
+	 * For the root, all the legal moves in the given context are stored as unexpanded moves right 
+	 * away. For other nodes, that only happens once they are asked for (see unexpandedMoves()).
+	 *
+	 * The pool takes ownership of the given context. For the root, it is kept as the checkpoint of the
+	 * root. For other nodes, it is only kept until it is handed out again by takeContext() (normally 
+	 * for the playout).
+	 *
+	 * @param parent Parent node ID (or NONE for the root)
+	 * @param moveFromParent The move that led from parent to this node
+	 * @param context The game state of this node
+	 * @return ID of the new node
+	 */
+	public int allocate(final int parent, final Move moveFromParent, final Context context)
+	{
+		// The root is always expanded, so there is no point in waiting with its moves
+		final FastArrayList<Move> unexpandedMoves = (parent == NONE) ? legalMoves(context) : null;
+
+		synchronized (this)
+		{
+			final int node = newNode(parent, (parent == NONE) ? 0 : depth(parent) + 1);
+
+			final Page page = page(node);
+			final int i = node & PAGE_MASK;
+			page.movers[i] = context.state().mover();
+			page.terminal[i] = context.trial().over();
+			if (transpositions != null)
+				page.hashes[i] = context.state().fullHash();
+			page.moves[i] = moveFromParent;
+			if (parent == NONE)
+				page.contexts[i] = context;
+			else
+				page.freshContexts[i] = context;
+			page.unexpandedMoves[i] = unexpandedMoves;
+
+			if (parent != NONE)
+				linkChild(parent, node);
+
+			return node;
+		}
+	}
+
+	/**
+	 * Reserves the storage for a new node, and sets its parent and depth. Must be called while 
+	 * holding the lock of this pool.
+	 *
+	 * @param parent
+	 * @param depth
+	 * @return ID of the new node
+	 */
+	private int newNode(final int parent, final int depth)
+	{
+		final int node = size;
+		final int pageIdx = node >>> PAGE_BITS;
+
+		if (pageIdx >= MAX_PAGES)
+			throw new IllegalStateException("NodePool cannot store more than " + (MAX_PAGES * PAGE_SIZE) + " nodes!");
+
+		if (pages[pageIdx] == null)
+			pages[pageIdx] = new Page(scoreStride, trackOutcomes, transpositions != null);
+
+		++size;
+
+		final Page page = pages[pageIdx];
+		final int i = node & PAGE_MASK;
+		page.parents[i] = parent;
+		page.depths[i] = depth;
+		return node;
+	}
+
+	/**
+	 * Adds the given node as the last child of the given parent. Must be called while holding 
+	 * the lock of this pool, and only once all the other data of the node has been set.
+	 *
+	 * @param parent
+	 * @param node
+	 */
+	private void linkChild(final int parent, final int node)
+	{
+		final Page parentPage = page(parent);
+		final int parentIdx = parent & PAGE_MASK;
+
+		// Release stores, so a thread which finds the new node through these links also sees all its data
+		if (parentPage.lastChild[parentIdx] == NONE)
+			INTS.setRelease(parentPage.firstChild, parentIdx, node);
+		else
+			INTS.setRelease(page(parentPage.lastChild[parentIdx]).nextSibling, parentPage.lastChild[parentIdx] & PAGE_MASK, node);
+
+		parentPage.lastChild[parentIdx] = node;
+		++parentPage.numChildren[parentIdx];
+	}
+
+	/**
+	 * Appends a copy of a node of another pool (with the same number of players) to this pool, 
+	 * including all its statistics, but not its children.
+	 *
+	 * @param other The pool to copy from
+	 * @param otherNode The node to copy
+	 * @param parent Parent of the copy in this pool (or NONE for the root)
+	 * @param depth Depth of the copy in this pool
+	 * @param context The Context the copy should keep (null if it is not a checkpoint)
+	 */
+	private synchronized void copyNode
+	(
+		final NodePool other, 
+		final int otherNode, 
+		final int parent, 
+		final int depth, 
+		final Context context
+	)
+	{
+		final int node = newNode(parent, depth);
+
+		final Page page = page(node);
+		final int i = node & PAGE_MASK;
+		final Page otherPage = other.page(otherNode);
+		final int j = otherNode & PAGE_MASK;
+
+		page.visitCounts[i] = otherPage.visitCounts[j];
+		System.arraycopy(otherPage.scoreSums, j * scoreStride, page.scoreSums, i * scoreStride, scoreStride);
+		if (trackOutcomes)
+			System.arraycopy(otherPage.outcomeCounts, j * scoreStride * 3, page.outcomeCounts, i * scoreStride * 3, scoreStride * 3);
+
+		page.movers[i] = otherPage.movers[j];
+		page.terminal[i] = otherPage.terminal[j];
+		if (transpositions != null)
+			page.hashes[i] = otherPage.hashes[j];
+		page.moves[i] = otherPage.moves[j];
+		page.contexts[i] = context;
+		page.unexpandedMoves[i] = otherPage.unexpandedMoves[j];
+
+		if (parent != NONE)
+			linkChild(parent, node);
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Used for tree reuse between turns. Starting from the given node (normally the root we searched 
+	 * on our previous turn), follows the moves that have been played since then in the given context.
+	 * If all of them are in the tree, the subtree we end up in is copied into a new pool (with all 
+	 * its statistics), with its root at ROOT. The rest of the tree is left behind in this pool,
+	 * so it can be garbage collected as soon as the caller drops this pool.
+	 *
+	 * @param node The node in which the given number of moves had been played
+	 * @param numMovesAtNode Number of moves in the trial of the game state of the given node
+	 * @param context The current game state, which becomes the Context of the new root
+	 * @return A new pool with the subtree for the current game state, or null if it is not in this tree
+	 */
+	public NodePool reroot(final int node, final int numMovesAtNode, final Context context)
+	{
+		final Trial trial = context.trial();
+		if (trial.numMoves() < numMovesAtNode)
+			return null;
+
+		// Walk down along the moves played since then
+		int newRoot = node;
+		for (int m = numMovesAtNode; m < trial.numMoves(); ++m)
+		{
+			final Move move = trial.getMove(m);
+
+			int child = firstChild(newRoot);
+			while (child != NONE && !move.equals(moveFromParent(child)))
+			{
+				child = nextSibling(child);
+			}
+
+			if (child == NONE)
+				return null;
+
+			newRoot = child;
+		}
+
+		return copySubtree(newRoot, context, null);
+	}
+
+	/**
+	 * Frees the memory taken by the subtrees of the given children of the root, for agents which stop 
+	 * searching some children of the root (like Sequential Halving). The tree is copied into a new pool 
+	 * (with its root at ROOT), in which those children keep their own statistics, but lose their 
+	 * children. If they are ever searched again, they regrow their subtree from scratch: their legal 
+	 * moves are generated again the first time they are expanded (see unexpandedMoves()).
+	 * 
+	 * The children of the root keep their order, so the i-th child of the root in this pool is the 
+	 * i-th child of the root in the new pool.
+	 *
+	 * @param root The root of the tree
+	 * @param keepSubtree For every child of the root (in order), whether to keep its subtree
+	 * @return A new pool with the tree without the evicted subtrees
+	 */
+	public NodePool evictSubtrees(final int root, final boolean[] keepSubtree)
+	{
+		return copySubtree(root, context(root), keepSubtree);
+	}
+
+	/**
+	 * Copies the subtree of the given node into a new pool, with its root at ROOT
+	 *
+	 * @param subtreeRoot The node which becomes the root of the new pool
+	 * @param rootContext The Context of the new root
+	 * @param keepSubtree For every child of subtreeRoot (in order), whether to copy its children as well
+	 * 	(null to copy everything)
+	 * @return The new pool
+	 */
+	private NodePool copySubtree(final int subtreeRoot, final Context rootContext, final boolean[] keepSubtree)
+	{
+		final NodePool subtree = new NodePool(numPlayers, trackOutcomes, checkpointInterval, transpositions);
+
+		// Copy breadth-first, so that every node is copied after its parent and children keep their order.
+		// All descendants of a node were allocated after it, so they have higher node IDs.
+		final int[] oldNodes = new int[size() - subtreeRoot];
+		final int[] newParents = new int[oldNodes.length];
+		oldNodes[0] = subtreeRoot;
+		newParents[0] = NONE;
+		int numQueued = 1;
+
+		for (int n = 0; n < numQueued; ++n)
+		{
+			final int oldNode = oldNodes[n];
+			final int newParent = newParents[n];
+			final int newDepth = (newParent == NONE) ? 0 : subtree.depth(newParent) + 1;
+
+			// Only the new checkpoints keep a Context (the others are built when needed, like they always are)
+			final Context newContext;
+			if (newParent == NONE)
+				newContext = rootContext;
+			else if (!subtree.isCheckpoint(newDepth))
+				newContext = null;
+			else
+				newContext = context(oldNode);
+
+			subtree.copyNode(this, oldNode, newParent, newDepth, newContext);
+
+			if (keepSubtree != null && newParent == ROOT && !keepSubtree[n - 1])
+			{
+				// The children of the root were queued right after it, so this is child n - 1. Its moves 
+				// are generated again if it ever gets expanded again.
+				subtree.page(n).unexpandedMoves[n & PAGE_MASK] = null;
+				continue;
+			}
+
+			for (int child = firstChild(oldNode); child != NONE; child = nextSibling(child))
+			{
+				oldNodes[numQueued] = child;
+				newParents[numQueued] = n;
+				++numQueued;
+			}
+		}
+
+		return subtree;
+	}
+
+	/**
+	 * Creates a new copy of the game state of the given node. If the node is not a checkpoint, we copy 
+	 * the closest checkpoint above it and replay the moves from there. If the node still holds a 
+	 * Context of its own (see unexpandedMoves()), the pool gives that one up instead.
+	 *
+	 * @param node
+	 * @return A Context for the given node, which the caller is free to modify
+	 */
+	public Context copyContext(final int node)
+	{
+		// Atomically, so that only one thread can ever get this Context
+		final Context spare = (Context) CONTEXTS.getAndSet(page(node).freshContexts, node & PAGE_MASK, (Context) null);
+		if (spare != null)
+			return spare;
+
+		// Walk up until we find a checkpoint (we never copy from a Context a node holds of its own, 
+		// since another thread may already have taken it)
+		int checkpoint = node;
+		while (!isCheckpoint(depth(checkpoint)))
+		{
+			checkpoint = parent(checkpoint);
+		}
+
+		final Context context = new Context(checkpointContext(checkpoint));
+		replay(context, node, checkpoint);
+		return context;
+	}
+
+	/**
+	 * Hands out the game state of the given node to run a playout in. If the node still holds the 
+	 * Context it was allocated with, the pool gives that Context up rather than copying it. 
+	 * This is exactly what copyContext() does, but playouts use this name to make it clear that 
+	 * they take over the Context of a new node.
+	 *
+	 * @param node
+	 * @return A Context for the given node, which the caller is free to modify
+	 */
+	public Context takeContext(final int node)
+	{
+		return copyContext(node);
+	}
+
+	/**
+	 * @param checkpoint A checkpoint node
+	 * @return The Context kept by the given checkpoint, which is built first if we did not need it before.
+	 * 	This Context is shared, so it must never be modified.
+	 */
+	private Context checkpointContext(final int checkpoint)
+	{
+		final Page page = page(checkpoint);
+		final int i = checkpoint & PAGE_MASK;
+
+		final Context context = (Context) CONTEXTS.getAcquire(page.contexts, i);
+		if (context != null)
+			return context;
+
+		// Build it from the checkpoint above us (never the root, since that one always has a Context)
+		final Context built = copyContext(page.parents[i]);
+		built.game().apply(built, page.moves[i]);
+
+		// If another thread built it at the same time, we use theirs
+		final Context existing = (Context) CONTEXTS.compareAndExchangeRelease(page.contexts, i, (Context) null, built);
+		return (existing != null) ? existing : built;
+	}
+
+	/**
+	 * Applies the moves from the given ancestor down to the given node to the given context
+	 * (which must be in the state of the ancestor).
+	 *
+	 * @param context
+	 * @param node
+	 * @param ancestor
+	 */
+	private void replay(final Context context, final int node, final int ancestor)
+	{
+		if (node == ancestor)
+			return;
+
+		// Recursion applies the moves top-down, without collecting them first
+		replay(context, parent(node), ancestor);
+		context.game().apply(context, moveFromParent(node));
+	}
+
+	/**
+	 * @param depth
+	 * @return Whether nodes at the given depth keep their Context
+	 */
+	private boolean isCheckpoint(final int depth)
+	{
+		if (depth == 0)
+			return true;
+
+		return checkpointInterval > 0 && depth % checkpointInterval == 0;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Backpropagates the given utilities from the given node up to (but not including) stopAt.
+	 *
+	 * @param node Node to start backpropagating from
+	 * @param stopAt Node at which we stop (NONE to backpropagate all the way through the root)
+	 * @param utilities For every player, the utility obtained in the playout
+	 */
+	public void backpropagate(final int node, final int stopAt, final double[] utilities)
+	{
+		int current = node;
+
+		while (current != stopAt)
+		{
+			final Page page = page(current);
+			final int i = current & PAGE_MASK;
+
+			page.visitCounts[i] += 1;
+
+			final int offset = i * scoreStride;
+			for (int p = 1; p <= numPlayers; ++p)
+			{
+				page.scoreSums[offset + p] += utilities[p];
+			}
+
+			if (trackOutcomes)
+			{
+				final int outcomeOffset = i * scoreStride * 3;
+				for (int p = 1; p <= numPlayers; ++p)
+				{
+					if (utilities[p] == 1.0)
+						page.outcomeCounts[outcomeOffset + p * 3] += 1;			// win
+					else if (utilities[p] == -1.0)
+						page.outcomeCounts[outcomeOffset + p * 3 + 1] += 1;		// loss
+					else if (utilities[p] == 0.0)
+						page.outcomeCounts[outcomeOffset + p * 3 + 2] += 1;		// draw
+				}
+			}
+
+			if (transpositions != null)
+				transpositions.add(page.hashes[i], 1, utilities);
+
+			current = page.parents[i];
+		}
+	}
+
+	/**
+	 * Backpropagates the results of a batch of playouts (which were all run from the given node) 
+	 * in one go, from the given node up to (but not including) stopAt. Every node on the way gets 
+	 * one visit per playout.
+	 *
+	 * @param node Node to start backpropagating from
+	 * @param stopAt Node at which we stop (NONE to backpropagate all the way through the root)
+	 * @param utilities For every playout, for every player, the utility obtained in that playout
+	 * @param numPlayouts Number of playouts in the batch (the first rows of utilities)
+	 */
+	public void backpropagateBatch(final int node, final int stopAt, final double[][] utilities, final int numPlayouts)
+	{
+		if (transpositions != null)
+		{
+			// Every state on the way gets the same sums
+			Arrays.fill(batchSums, 0.0);
+			for (int k = 0; k < numPlayouts; ++k)
+			{
+				for (int p = 1; p <= numPlayers; ++p)
+				{
+					batchSums[p] += utilities[k][p];
+				}
+			}
+		}
+
+		int current = node;
+
+		while (current != stopAt)
+		{
+			final Page page = page(current);
+			final int i = current & PAGE_MASK;
+
+			page.visitCounts[i] += numPlayouts;
+
+			final int offset = i * scoreStride;
+			final int outcomeOffset = offset * 3;
+			for (int k = 0; k < numPlayouts; ++k)
+			{
+				final double[] playoutUtilities = utilities[k];
+				for (int p = 1; p <= numPlayers; ++p)
+				{
+					page.scoreSums[offset + p] += playoutUtilities[p];
+
+					if (trackOutcomes)
+					{
+						if (playoutUtilities[p] == 1.0)
+							page.outcomeCounts[outcomeOffset + p * 3] += 1;			// win
+						else if (playoutUtilities[p] == -1.0)
+							page.outcomeCounts[outcomeOffset + p * 3 + 1] += 1;		// loss
+						else if (playoutUtilities[p] == 0.0)
+							page.outcomeCounts[outcomeOffset + p * 3 + 2] += 1;		// draw
+					}
+				}
+			}
+
+			if (transpositions != null)
+				transpositions.add(page.hashes[i], numPlayouts, batchSums);
+
+			current = page.parents[i];
+		}
+	}
+
+	/**
+	 * Adds the given number of visits and the given score sums to a single node,
+	 * without touching any of its ancestors.
+	 *
+	 * @param node
+	 * @param visits
+	 * @param scoreSums For every player, the sum of utilities to add
+	 */
+	public void addStatistics(final int node, final int visits, final double[] scoreSums)
+	{
+		final Page page = page(node);
+		final int i = node & PAGE_MASK;
+
+		page.visitCounts[i] += visits;
+
+		final int offset = i * scoreStride;
+		for (int p = 1; p <= numPlayers; ++p)
+		{
+			page.scoreSums[offset + p] += scoreSums[p];
+		}
+	}
+
+	/**
+	 * Overwrites the visit count and score sums of a single node (used to store statistics merged
+	 * from several independent trees).
+	 *
+	 * @param node
+	 * @param visits
+	 * @param scoreSums For every player, the new sum of utilities
+	 */
+	public void setStatistics(final int node, final int visits, final double[] scoreSums)
+	{
+		final Page page = page(node);
+		final int i = node & PAGE_MASK;
+
+		page.visitCounts[i] = visits;
+		System.arraycopy(scoreSums, 1, page.scoreSums, i * scoreStride + 1, numPlayers);
+	}
+
+	/**
+	 * Adds a virtual loss to the given node, which a thread does for every node it selects while
+	 * descending in a tree searched by multiple threads. Removed again by backpropagateConcurrent().
+	 *
+	 * @param node
+	 */
+	public void addVirtualLoss(final int node)
+	{
+		INTS.getAndAdd(page(node).virtualLosses, node & PAGE_MASK, 1);
+	}
+
+	/**
+	 * Like backpropagate(), but safe to use while other threads update the same nodes. Also removes
+	 * the virtual loss which was added to every node on the way.
+	 *
+	 * @param node Node to start backpropagating from
+	 * @param stopAt Node at which we stop (NONE to backpropagate all the way through the root)
+	 * @param utilities For every player, the utility obtained in the playout
+	 */
+	public void backpropagateConcurrent(final int node, final int stopAt, final double[] utilities)
+	{
+		int current = node;
+
+		while (current != stopAt)
+		{
+			final Page page = page(current);
+			final int i = current & PAGE_MASK;
+
+			INTS.getAndAdd(page.visitCounts, i, 1);
+
+			final int offset = i * scoreStride;
+			for (int p = 1; p <= numPlayers; ++p)
+			{
+				DOUBLES.getAndAdd(page.scoreSums, offset + p, utilities[p]);
+			}
+
+			if (trackOutcomes)
+			{
+				final int outcomeOffset = i * scoreStride * 3;
+				for (int p = 1; p <= numPlayers; ++p)
+				{
+					if (utilities[p] == 1.0)
+						INTS.getAndAdd(page.outcomeCounts, outcomeOffset + p * 3, 1);		// win
+					else if (utilities[p] == -1.0)
+						INTS.getAndAdd(page.outcomeCounts, outcomeOffset + p * 3 + 1, 1);	// loss
+					else if (utilities[p] == 0.0)
+						INTS.getAndAdd(page.outcomeCounts, outcomeOffset + p * 3 + 2, 1);	// draw
+				}
+			}
+
+			INTS.getAndAdd(page.virtualLosses, i, -1);
+
+			if (transpositions != null)
+				transpositions.add(page.hashes[i], 1, utilities);
+
+			current = page.parents[i];
+		}
+	}
+
+	/**
+	 * Removes the virtual losses a thread added on its way down, without backpropagating anything
+	 * (for iterations which could not be completed).
+	 *
+	 * @param node Node at which the thread stopped descending
+	 * @param stopAt Node at which we stop (NONE to go all the way through the root)
+	 */
+	public void removeVirtualLosses(final int node, final int stopAt)
+	{
+		int current = node;
+
+		while (current != stopAt)
+		{
+			final Page page = page(current);
+			final int i = current & PAGE_MASK;
+			INTS.getAndAdd(page.virtualLosses, i, -1);
+			current = page.parents[i];
+		}
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @param node
+	 * @return IDs of all the children of the given node, in the order in which they were expanded
+	 */
+	public int[] children(final int node)
+	{
+		final int[] children = new int[numChildren(node)];
+		int i = 0;
+		for (int child = firstChild(node); child != NONE; child = nextSibling(child))
+		{
+			children[i++] = child;
+		}
+		return children;
+	}
+
+	/**
+	 * @param node
+	 * @param player
+	 * @return Average utility of the given player in the given node (or in its state, if that has been 
+	 * 	visited more often through all nodes sharing it). -1.0, the lowest possible utility, if nothing 
+	 * 	has been visited yet (after a playout cut off by the deadline), so such a node comes last.
+	 */
+	public double exploit(final int node, final int player)
+	{
+		final Page page = page(node);
+		final int i = node & PAGE_MASK;
+
+		if (transpositions != null)
+		{
+			// The entry of the state has all our visits, unless it has been replaced in the meantime
+			final double shared = transpositions.exploit(page.hashes[i], player, page.visitCounts[i]);
+			if (!Double.isNaN(shared))
+				return shared;
+		}
+
+		if (page.visitCounts[i] == 0)
+			return -1.0;
+
+		return page.scoreSums[i * scoreStride + player] / page.visitCounts[i];
+	}
+
+	/**
+	 * @param node
+	 * @return Number of visits exploit() is based on for the given node: those of its state if that has 
+	 * 	been visited more often through all nodes sharing it, and otherwise its own
+	 */
+	public int sharedVisitCount(final int node)
+	{
+		final Page page = page(node);
+		final int i = node & PAGE_MASK;
+
+		if (transpositions != null)
+			return Math.max(page.visitCounts[i], transpositions.visitCount(page.hashes[i]));
+
+		return page.visitCounts[i];
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @return Number of nodes allocated so far
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return Number of players in the game we are searching
+	 */
+	public int numPlayers()
+	{
+		return numPlayers;
+	}
+
+	/**
+	 * @param node
+	 * @return Parent of the given node (NONE for the root)
+	 */
+	public int parent(final int node)
+	{
+		return page(node).parents[node & PAGE_MASK];
+	}
+
+	/**
+	 * @param node
+	 * @return The move that led from the parent to the given node
+	 */
+	public Move moveFromParent(final int node)
+	{
+		return page(node).moves[node & PAGE_MASK];
+	}
+
+	/**
+	 * @param node
+	 * @return The game state kept by the given node (null if it is not a checkpoint, or if it has not 
+	 * 	been needed yet). This Context is shared, so it must never be modified.
+	 */
+	public Context context(final int node)
+	{
+		return page(node).contexts[node & PAGE_MASK];
+	}
+
+	/**
+	 * @param node
+	 * @return Depth of the given node (0 for the root)
+	 */
+	public int depth(final int node)
+	{
+		return page(node).depths[node & PAGE_MASK];
+	}
+
+	/**
+	 * @param node
+	 * @return The player to move in the game state of the given node
+	 */
+	public int mover(final int node)
+	{
+		return page(node).movers[node & PAGE_MASK];
+	}
+
+	/**
+	 * @param node
+	 * @return Whether the game state of the given node is terminal
+	 */
+	public boolean isTerminal(final int node)
+	{
+		return page(node).terminal[node & PAGE_MASK];
+	}
+
+	/**
+	 * @param node
+	 * @return Visit count of the given node
+	 */
+	public int visitCount(final int node)
+	{
+		return page(node).visitCounts[node & PAGE_MASK];
+	}
+
+	/**
+	 * @param node
+	 * @return Number of threads which currently have the given node on their path (see addVirtualLoss())
+	 */
+	public int virtualLoss(final int node)
+	{
+		return page(node).virtualLosses[node & PAGE_MASK];
+	}
+
+	/**
+	 * @param node
+	 * @param player
+	 * @return Sum of the utilities of the given player backpropagated through the given node
+	 */
+	public double scoreSum(final int node, final int player)
+	{
+		return page(node).scoreSums[(node & PAGE_MASK) * scoreStride + player];
+	}
+
+	/**
+	 * @param node
+	 * @param player
+	 * @param outcome 0 for wins, 1 for losses, 2 for draws
+	 * @return Number of times the given outcome was backpropagated through the node for the given player
+	 */
+	public int outcomeCount(final int node, final int player, final int outcome)
+	{
+		return page(node).outcomeCounts[(node & PAGE_MASK) * scoreStride * 3 + player * 3 + outcome];
+	}
+
+	/**
+	 * @param node
+	 * @return First child of the given node (NONE if it has no children)
+	 */
+	public int firstChild(final int node)
+	{
+		return (int) INTS.getAcquire(page(node).firstChild, node & PAGE_MASK);
+	}
+
+	/**
+	 * @param node
+	 * @return Next sibling of the given node (NONE if it is the last child of its parent)
+	 */
+	public int nextSibling(final int node)
+	{
+		return (int) INTS.getAcquire(page(node).nextSibling, node & PAGE_MASK);
+	}
+
+	/**
+	 * @param node
+	 * @return Number of children of the given node
+	 */
+	public int numChildren(final int node)
+	{
+		return page(node).numChildren[node & PAGE_MASK];
+	}
+
+	/**
+	 * Generates the legal moves of the given node if this is the first time they are asked for.
+	 * The Context we generate them in is kept (like the Context a node is allocated with), so the
+	 * expansion that normally follows can take it rather than copy the state again.
+	 *
+	 * @param node
+	 * @return List of moves for which we did not yet create a child node
+	 */
+	@SuppressWarnings("unchecked")
+	public FastArrayList<Move> unexpandedMoves(final int node)
+	{
+		final Page page = page(node);
+		final int i = node & PAGE_MASK;
+
+		final FastArrayList<Move> unexpandedMoves = (FastArrayList<Move>) OBJECTS.getAcquire(page.unexpandedMoves, i);
+		if (unexpandedMoves != null)
+			return unexpandedMoves;
+
+		final FastArrayList<Move> generated;
+		if (page.terminal[i])
+		{
+			generated = new FastArrayList<Move>(0);
+		}
+		else
+		{
+			final Context context = copyContext(node);
+			generated = legalMoves(context);
+			CONTEXTS.compareAndSet(page.freshContexts, i, (Context) null, context);
+		}
+
+		// If another thread generated them at the same time, we use theirs
+		final Object existing = OBJECTS.compareAndExchangeRelease(page.unexpandedMoves, i, (Object) null, generated);
+		return (existing != null) ? (FastArrayList<Move>) existing : generated;
+	}
+
+	/**
+	 * @param context
+	 * @return A new list with all legal moves in the given context
+	 */
+	private static FastArrayList<Move> legalMoves(final Context context)
+	{
+		// For simplicity, we just take ALL legal moves.
+		// This means we do not support simultaneous-move games.
+		final Game game = context.game();
+		return new FastArrayList<Move>(game.moves(context).moves());
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @param node
+	 * @return The page in which the given node is stored
+	 */
+	private Page page(final int node)
+	{
+		return pages[node >>> PAGE_BITS];
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * One page of nodes. For node ID n, all the data is stored at index (n & PAGE_MASK)
+	 * (times the stride for the arrays that store multiple values per node).
+	 */
+	private static final class Page
+	{
+		/** Visit count for every node */
+		protected final int[] visitCounts = new int[PAGE_SIZE];
+
+		/** Virtual loss of every node (number of threads currently descending through it) */
+		protected final int[] virtualLosses = new int[PAGE_SIZE];
+
+		/** For every node, for every player, sum of utilities / scores backpropagated through the node */
+		protected final double[] scoreSums;
+
+		/** For every node, for every player, # of wins, # of losses and # of draws (null if not tracked) */
+		protected final int[] outcomeCounts;
+
+		/** Parent of every node */
+		protected final int[] parents = new int[PAGE_SIZE];
+
+		/** Depth of every node (0 for the root) */
+		protected final int[] depths = new int[PAGE_SIZE];
+
+		/** The player to move in every node */
+		protected final int[] movers = new int[PAGE_SIZE];
+
+		/** Whether the game state of every node is terminal */
+		protected final boolean[] terminal = new boolean[PAGE_SIZE];
+
+		/** Full hash of the game state of every node (null if we do not share statistics between states) */
+		protected final long[] hashes;
+
+		/** First child of every node */
+		protected final int[] firstChild = new int[PAGE_SIZE];
+
+		/** Last child of every node (so we can append new children in constant time) */
+		protected final int[] lastChild = new int[PAGE_SIZE];
+
+		/** Next sibling of every node */
+		protected final int[] nextSibling = new int[PAGE_SIZE];
+
+		/** Number of children of every node */
+		protected final int[] numChildren = new int[PAGE_SIZE];
+
+		/** The move that led from the parent to every node */
+		protected final Move[] moves = new Move[PAGE_SIZE];
+
+		/** The game state of every checkpoint, or null if it is (re)built from a checkpoint above when needed (this is why we don't support stochastic games) */
+		protected final Context[] contexts = new Context[PAGE_SIZE];
+
+		/** For every node, the Context it was allocated with, until that is taken for a playout (or the one its legal moves were generated in, until that is taken for an expansion) */
+		protected final Context[] freshContexts = new Context[PAGE_SIZE];
+
+		/** For every node, a FastArrayList of moves for which we did not yet create a child node (null until they are generated) */
+		protected final Object[] unexpandedMoves = new Object[PAGE_SIZE];
+
+		/**
+		 * Constructor
+		 *
+		 * @param scoreStride
+		 * @param trackOutcomes
+		 * @param trackHashes Whether to keep the hash of the state of every node
+		 */
+		public Page(final int scoreStride, final boolean trackOutcomes, final boolean trackHashes)
+		{
+			scoreSums = new double[PAGE_SIZE * scoreStride];
+			outcomeCounts = trackOutcomes ? new int[PAGE_SIZE * scoreStride * 3] : null;
+			hashes = trackHashes ? new long[PAGE_SIZE] : null;
+
+			Arrays.fill(firstChild, NONE);
+			Arrays.fill(lastChild, NONE);
+			Arrays.fill(nextSibling, NONE);
+		}
+	}
+
+	//-------------------------------------------------------------------------
+
+}
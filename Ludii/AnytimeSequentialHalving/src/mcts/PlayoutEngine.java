@@ -0,0 +1,179 @@
+package mcts;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BooleanSupplier;
+
+import game.Game;
+import main.collections.FastArrayList;
+import other.context.Context;
+import other.move.Move;
+
+/**
+ * Runs the (uniformly random) playouts of our searches. With a deadline (or a stop request, like the
+ * one of pondering), we step through the moves ourselves rather than calling Game.playout(), so a
+ * playout can be cut short: every CHECK_INTERVAL plies we check whether the deadline of the search
+ * has passed, we have been asked to stop, or the thread has been interrupted, and if so we give up
+ * on the playout rather than finishing it. This keeps time-mode searches from
+ * overrunning their deadline in games with long playouts, like Amazons.
+ *
+ * Without either, we leave the playout to Game.playout(), which uses the faster playout
+ * implementations Ludii has for some games. Ludii generates a new list of moves in every state, so
+ * stepping ourselves has no buffers we could reuse that would make up for those.
+ *
+ * An engine only holds the settings of a single search, so it may be used by all threads of that
+ * search at once.
+ *
+ * The maximum number of moves in a playout can be configured per game (see setMaxPlayoutMoves()).
+ *
+ * Only supports deterministic, alternating-move games.
+ *
+ * @author Sashank Chapala
+ */
+public final class PlayoutEngine
+{
+
+	//-------------------------------------------------------------------------
+
+	/** Maximum number of moves in a playout of our SH agents, unless configured otherwise for a game */
+	public static final int DEFAULT_MAX_PLAYOUT_MOVES = 200;
+
+	/** Every how many plies we check whether we have to stop */
+	private static final int CHECK_INTERVAL = 16;
+
+	/** For every game (by name) for which it has been configured, the maximum number of moves in a playout */
+	private static final Map<String, Integer> maxPlayoutMovesPerGame = new ConcurrentHashMap<String, Integer>();
+
+	//-------------------------------------------------------------------------
+
+	/** Maximum number of moves in a playout (-1 for no limit) */
+	private final int maxPlayoutMoves;
+
+	/** Deadline at which we stop running playouts (null for none) */
+	private final SearchDeadline deadline;
+
+	/** Tells us whoever runs the search wants us to stop, without a deadline (null for never) */
+	private final BooleanSupplier stopRequested;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxPlayoutMoves Maximum number of moves in a playout (-1 for no limit)
+	 * @param deadline Deadline at which playouts are cut short (null to always finish them)
+	 */
+	public PlayoutEngine(final int maxPlayoutMoves, final SearchDeadline deadline)
+	{
+		this(maxPlayoutMoves, deadline, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxPlayoutMoves Maximum number of moves in a playout (-1 for no limit)
+	 * @param deadline Deadline at which playouts are cut short (null for none)
+	 * @param stopRequested Tells us when to cut playouts short regardless of the deadline (null for never)
+	 */
+	public PlayoutEngine(final int maxPlayoutMoves, final SearchDeadline deadline, final BooleanSupplier stopRequested)
+	{
+		this.maxPlayoutMoves = maxPlayoutMoves;
+		this.deadline = (deadline != null && deadline.isLimited()) ? deadline : null;
+		this.stopRequested = stopRequested;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Sets the maximum number of moves in a playout in the given game, for all agents
+	 *
+	 * @param gameName Name of the game (see Game.name())
+	 * @param maxPlayoutMoves Maximum number of moves in a playout (-1 for no limit)
+	 */
+	public static void setMaxPlayoutMoves(final String gameName, final int maxPlayoutMoves)
+	{
+		maxPlayoutMovesPerGame.put(gameName, Integer.valueOf(maxPlayoutMoves));
+	}
+
+	/**
+	 * @param game
+	 * @param defaultMaxPlayoutMoves What the agent uses if nothing has been configured for this game
+	 * @return Maximum number of moves in a playout in the given game (-1 for no limit)
+	 */
+	public static int maxPlayoutMoves(final Game game, final int defaultMaxPlayoutMoves)
+	{
+		final Integer configured = maxPlayoutMovesPerGame.get(game.name());
+		return (configured != null) ? configured.intValue() : defaultMaxPlayoutMoves;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Plays random moves from the given state until the game is over, we reach the maximum number
+	 * of moves, or we have to stop.
+	 *
+	 * @param context The state to start from (which is modified)
+	 * @return Whether we finished the playout (false if it was cut short by the deadline, a stop request 
+	 * 	or an interrupt, which only happens if we have a deadline or a stop request)
+	 */
+	public boolean run(final Context context)
+	{
+		final Game game = context.game();
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final SearchEvents.PlayoutEvent event = SearchEvents.playoutStarted();
+
+		if (deadline == null && stopRequested == null)
+		{
+			// Nothing to cut the playout short for
+			final int numMovesBefore = context.trial().numMoves();
+			game.playout(context, null, -1.0, null, 0, maxPlayoutMoves, random);
+			SearchEvents.playoutEnded(event, context.trial().numMoves() - numMovesBefore, true);
+			return true;
+		}
+
+		int numMoves = 0;
+		while (!context.trial().over() && numMoves != maxPlayoutMoves)
+		{
+			if (numMoves % CHECK_INTERVAL == 0 && mustStop())
+			{
+				SearchEvents.playoutEnded(event, numMoves, false);
+				return false;
+			}
+
+			final FastArrayList<Move> legalMoves = game.moves(context).moves();
+			if (legalMoves.isEmpty())
+				break;
+
+			game.apply(context, legalMoves.get(random.nextInt(legalMoves.size())));
+			++numMoves;
+		}
+
+		SearchEvents.playoutEnded(event, numMoves, true);
+		return true;
+	}
+
+	/**
+	 * @return Maximum number of moves in a playout (-1 for no limit)
+	 */
+	public int maxPlayoutMoves()
+	{
+		return maxPlayoutMoves;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @return Whether the playout we are running should be given up on
+	 */
+	private boolean mustStop()
+	{
+		return 
+			(deadline != null && deadline.passed()) || 
+			(stopRequested != null && stopRequested.getAsBoolean()) || 
+			Thread.currentThread().isInterrupted();
+	}
+
+	//-------------------------------------------------------------------------
+
+}
@@ -0,0 +1,160 @@
+package mcts;
+
+import other.move.Move;
+
+/**
+ * Pondering: keeps searching on a background thread while the opponent is thinking. After an agent
+ * has picked its move, the ponderer runs iterations below the node of that move (so the replies of
+ * the opponent get searched), in the tree the agent keeps for tree reuse. On its next turn, the agent
+ * stops the ponderer before it re-roots that tree, so it continues with everything we found while
+ * waiting.
+ *
+ * The iterations are backpropagated up to the node of our move, so the statistics of the root we
+ * searched (and of the moves we did not play) stay as they were when we picked our move.
+ *
+ * @author Sashank Chapala
+ */
+public final class Ponderer
+{
+
+	//-------------------------------------------------------------------------
+
+	/** Most nodes we let the tree grow to while pondering, so a long wait cannot use up all memory */
+	public static final int MAX_PONDER_NODES = 1 << 21;
+
+	/** Every how many iterations we check the size of the tree */
+	private static final int SIZE_CHECK_INTERVAL = 64;
+
+	//-------------------------------------------------------------------------
+
+	/** Name of our background thread */
+	private final String threadName;
+
+	/** The thread we are pondering on (null if we are not pondering) */
+	private Thread thread = null;
+
+	/** Set when the agent wants its tree back */
+	private volatile boolean stopRequested = false;
+
+	/** Number of iterations we ran since we were last started */
+	private volatile int numIterations = 0;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor
+	 *
+	 * @param threadName Name of our background thread
+	 */
+	public Ponderer(final String threadName)
+	{
+		this.threadName = threadName;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Starts pondering below the child of the given root for the given move, if that child is in the
+	 * tree and the game is not over there. Until stop() is called, the tree must not be used by anyone else.
+	 *
+	 * @param pool The tree the agent keeps for its next turn
+	 * @param root The root the agent just searched
+	 * @param move The move the agent picked
+	 * @param selection Selection step of the agent
+	 * @param maxPlayoutMoves Maximum number of moves in a playout (-1 for no limit)
+	 */
+	public void start
+	(
+		final NodePool pool,
+		final int root,
+		final Move move,
+		final Selection selection,
+		final int maxPlayoutMoves
+	)
+	{
+		stop();
+
+		int node = pool.firstChild(root);
+		while (node != NodePool.NONE && !move.equals(pool.moveFromParent(node)))
+		{
+			node = pool.nextSibling(node);
+		}
+
+		if (node == NodePool.NONE || pool.isTerminal(node))
+			return;
+
+		// No deadline: we stop when we are told to, also in the middle of a playout, so stop() does not have to
+		// wait for a long (or uncapped) playout. The node of a playout we cut short keeps 0 visits, which the
+		// agents' selection and final move selection are prepared for.
+		final SearchKernel kernel = new SearchKernel
+		(
+			pool, 
+			selection, 
+			new PlayoutEngine(maxPlayoutMoves, null, () -> stopRequested), 
+			null
+		);
+		final int ponderRoot = node;
+
+		stopRequested = false;
+		numIterations = 0;
+		thread = new Thread(() ->
+		{
+			int iterations = 0;
+			while (!stopRequested)
+			{
+				if (iterations % SIZE_CHECK_INTERVAL == 0 && pool.size() >= MAX_PONDER_NODES)
+					break;
+
+				if (kernel.iteration(ponderRoot, root))
+					numIterations = ++iterations;
+			}
+		}, threadName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops pondering (cutting short the playout we are running), and only returns once our thread no 
+	 * longer touches the tree.
+	 *
+	 * @return Number of iterations we ran while pondering (0 if we were not pondering)
+	 */
+	public int stop()
+	{
+		if (thread == null)
+			return 0;
+
+		stopRequested = true;
+
+		boolean interrupted = false;
+		while (thread.isAlive())
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (final InterruptedException e)
+			{
+				// We still have to wait for the tree, but we pass the interrupt on afterwards
+				interrupted = true;
+			}
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		thread = null;
+		return numIterations;
+	}
+
+	/**
+	 * @return Whether we are currently pondering
+	 */
+	public boolean isPondering()
+	{
+		return thread != null;
+	}
+
+	//-------------------------------------------------------------------------
+
+}
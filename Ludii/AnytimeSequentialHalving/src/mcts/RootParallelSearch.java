@@ -0,0 +1,381 @@
+package mcts;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+import game.Game;
+import main.collections.FastArrayList;
+import other.context.Context;
+import other.move.Move;
+
+/**
+ * Root parallelisation for our Sequential Halving agents. Every thread grows its own independent
+ * tree (in its own NodePool) from the same root state, so nothing is shared while searching. After
+ * every round, the statistics of the root children of all trees are summed up into a small "merged"
+ * tree, which only consists of the root and one child per legal move. The agent halves based on
+ * that merged tree, and tells all trees which arms to continue with, so all trees prune the same
+ * arms while halving is based on the evidence of all of them.
+ *
+ * Iteration budgets are per tree: a round of k iterations runs k iterations in every tree. When the
+ * threads have to stop (out of time, or interrupted), a round returns fewer iterations than asked for.
+ *
+ * Only supports deterministic, alternating-move games.
+ *
+ * @author Sashank Chapala
+ */
+public final class RootParallelSearch
+{
+
+	//-------------------------------------------------------------------------
+
+	/** Tells us whether the agent wants us to stop (e.g. because the GUI user clicked the pause button) */
+	private final BooleanSupplier wantsInterrupt;
+
+	/** Set once we have been interrupted while waiting for our threads */
+	private volatile boolean interrupted = false;
+
+	/** The game we are searching in */
+	private final Game game;
+
+	/** Threads on which the trees are searched */
+	private final ExecutorService executor;
+
+	/** Selection step used within the trees */
+	private final Selection selection;
+
+	/** Runs the playouts in all trees */
+	private final PlayoutEngine playouts;
+
+	/** Pool with the merged statistics of all trees */
+	private final NodePool merged;
+
+	/** Root of the merged tree */
+	private final int mergedRoot;
+
+	/** Children of the merged root (one per legal move, in the order the game generated the moves) */
+	private final int[] mergedArms;
+
+	/** Our independent trees, one per thread */
+	private final Tree[] trees;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor
+	 *
+	 * @param wantsInterrupt Tells us whether the agent wants us to stop
+	 * @param executor Threads to search on (should have at least numTrees threads)
+	 * @param numTrees Number of independent trees to grow
+	 * @param game
+	 * @param context The root state
+	 * @param checkpointInterval Checkpoint interval of the trees (see NodePool)
+	 * @param transpositions Table through which all trees share the statistics of states (null for none)
+	 * @param selection Selection step used within the trees
+	 * @param playouts Runs the playouts in all trees
+	 */
+	public RootParallelSearch
+	(
+		final BooleanSupplier wantsInterrupt,
+		final ExecutorService executor,
+		final int numTrees,
+		final Game game,
+		final Context context,
+		final int checkpointInterval,
+		final TranspositionTable transpositions,
+		final Selection selection,
+		final PlayoutEngine playouts
+	)
+	{
+		this.wantsInterrupt = wantsInterrupt;
+		this.game = game;
+		this.executor = executor;
+		this.selection = selection;
+		this.playouts = playouts;
+
+		final int numPlayers = game.players().count();
+
+		// The merged tree is fully expanded right away, and its nodes only ever get merged statistics
+		this.merged = new NodePool(numPlayers);
+		this.mergedRoot = merged.allocate(NodePool.NONE, null, new Context(context));
+		final FastArrayList<Move> moves = merged.unexpandedMoves(mergedRoot);
+		this.mergedArms = new int[moves.size()];
+		for (int i = 0; i < mergedArms.length; ++i)
+		{
+			final Context childContext = merged.copyContext(mergedRoot);
+			game.apply(childContext, moves.get(i));
+			mergedArms[i] = merged.allocate(mergedRoot, moves.get(i), childContext);
+		}
+		moves.clear();
+
+		this.trees = new Tree[numTrees];
+		for (int t = 0; t < numTrees; ++t)
+		{
+			final NodePool pool = new NodePool(numPlayers, false, checkpointInterval, transpositions);
+			trees[t] = new Tree(pool, pool.allocate(NodePool.NONE, null, new Context(context)));
+		}
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Runs iterations from the root of every tree until all roots are fully expanded (or the
+	 * iteration budget is spent), and then merges the statistics.
+	 *
+	 * @param deadline Time budget of the search
+	 * @param maxIterations Most iterations to run in every tree
+	 * @return Number of iterations run per tree (the most any tree ran, if we had to stop early)
+	 */
+	public int expandRoots(final SearchDeadline deadline, final int maxIterations)
+	{
+		final ArrayList<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(trees.length);
+		for (final Tree tree : trees)
+		{
+			tasks.add(() ->
+			{
+				int iterationsDone = 0;
+				while 
+				(
+					iterationsDone < maxIterations && 
+					!tree.pool.unexpandedMoves(tree.root).isEmpty() && 
+					!mustStop(deadline)
+				)
+				{
+					// Every iteration from a root which is not yet fully expanded adds one root child
+					if (tree.runIteration(tree.root))
+						++iterationsDone;
+				}
+				tree.mapArms(merged, mergedArms);
+				return Integer.valueOf(iterationsDone);
+			});
+		}
+
+		return runAndMerge(tasks);
+	}
+
+	/**
+	 * Runs one round in every tree: the given number of iterations, spread round-robin over the
+	 * given arms. Afterwards, the statistics of all trees are merged.
+	 *
+	 * @param arms Arms to search, as children of the merged root (see mergedPool())
+	 * @param numArms Number of arms to search (the first numArms entries of arms)
+	 * @param roundIterations Number of iterations to run in every tree
+	 * @param deadline Time budget of the search
+	 * @return Number of iterations run per tree (the most any tree ran, if we had to stop early)
+	 */
+	public int searchRound(final int[] arms, final int numArms, final int roundIterations, final SearchDeadline deadline)
+	{
+		final ArrayList<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(trees.length);
+		for (final Tree tree : trees)
+		{
+			tasks.add(() ->
+			{
+				int iterationsDone = 0;
+				while (iterationsDone < roundIterations && !mustStop(deadline))
+				{
+					// The merged arms were allocated one after the other, so this gives us the index of the arm
+					final int arm = tree.arms[arms[iterationsDone % numArms] - mergedArms[0]];
+					if (arm == NodePool.NONE)
+						break;		// Only happens if we ran out of time or iterations while expanding the root
+
+					if (tree.runIteration(arm))
+						++iterationsDone;
+				}
+				return Integer.valueOf(iterationsDone);
+			});
+		}
+
+		return runAndMerge(tasks);
+	}
+
+	/**
+	 * @return The pool with the merged statistics of all trees (its root is fully expanded)
+	 */
+	public NodePool mergedPool()
+	{
+		return merged;
+	}
+
+	/**
+	 * @return The root of the merged tree
+	 */
+	public int mergedRoot()
+	{
+		return mergedRoot;
+	}
+
+	/**
+	 * @return A new array with all children of the merged root
+	 */
+	public int[] mergedArms()
+	{
+		return mergedArms.clone();
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Runs the given tasks (one per tree) on our threads, waits for all of them,
+	 * and then sums up the statistics of all trees into the merged tree.
+	 *
+	 * @param tasks
+	 * @return The highest number of iterations returned by a task
+	 */
+	private int runAndMerge(final ArrayList<Callable<Integer>> tasks)
+	{
+		final ArrayList<Future<Integer>> futures = new ArrayList<Future<Integer>>(tasks.size());
+		for (final Callable<Integer> task : tasks)
+		{
+			futures.add(executor.submit(task));
+		}
+
+		int iterationsDone = 0;
+		for (final Future<Integer> future : futures)
+		{
+			try
+			{
+				iterationsDone = Math.max(iterationsDone, future.get().intValue());
+			}
+			catch (final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				interrupted = true;
+			}
+			catch (final ExecutionException e)
+			{
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		final double[] scoreSums = new double[merged.numPlayers() + 1];
+
+		for (int i = 0; i < mergedArms.length; ++i)
+		{
+			int visits = 0;
+			for (int p = 1; p < scoreSums.length; ++p)
+			{
+				scoreSums[p] = 0.0;
+			}
+
+			for (final Tree tree : trees)
+			{
+				final int arm = tree.arms[i];
+				if (arm == NodePool.NONE)
+					continue;
+
+				visits += tree.pool.visitCount(arm);
+				for (int p = 1; p < scoreSums.length; ++p)
+				{
+					scoreSums[p] += tree.pool.scoreSum(arm, p);
+				}
+			}
+
+			merged.setStatistics(mergedArms[i], visits, scoreSums);
+		}
+
+		int rootVisits = 0;
+		for (int p = 1; p < scoreSums.length; ++p)
+		{
+			scoreSums[p] = 0.0;
+		}
+		for (final Tree tree : trees)
+		{
+			rootVisits += tree.pool.visitCount(tree.root);
+			for (int p = 1; p < scoreSums.length; ++p)
+			{
+				scoreSums[p] += tree.pool.scoreSum(tree.root, p);
+			}
+		}
+		merged.setStatistics(mergedRoot, rootVisits, scoreSums);
+
+		return iterationsDone;
+	}
+
+	/**
+	 * @param deadline
+	 * @return Whether the threads have to stop searching (also when the calling thread has been interrupted, 
+	 * 	e.g. by the agent shutting down our executor, since its playouts would all be cut short)
+	 */
+	private boolean mustStop(final SearchDeadline deadline)
+	{
+		return 
+			interrupted || wantsInterrupt.getAsBoolean() || deadline.passed() || 
+			Thread.currentThread().isInterrupted();
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * One of the independent trees, which is only ever searched by one thread at a time
+	 */
+	private final class Tree
+	{
+		/** The pool in which this tree is stored */
+		protected final NodePool pool;
+
+		/** Root of this tree */
+		protected final int root;
+
+		/** For every child of the merged root, the matching child of our root (NONE if not expanded) */
+		protected final int[] arms;
+
+		/** Runs the iterations in this tree */
+		private final SearchKernel kernel;
+
+		/**
+		 * Constructor
+		 *
+		 * @param pool
+		 * @param root
+		 */
+		public Tree(final NodePool pool, final int root)
+		{
+			this.pool = pool;
+			this.root = root;
+			this.arms = new int[pool.unexpandedMoves(root).size()];
+			this.kernel = new SearchKernel(pool, selection, playouts, null);
+		}
+
+		/**
+		 * Finds the matching child of our root for every child of the merged root.
+		 *
+		 * @param mergedPool
+		 * @param mergedChildren
+		 */
+		public void mapArms(final NodePool mergedPool, final int[] mergedChildren)
+		{
+			for (int i = 0; i < mergedChildren.length; ++i)
+			{
+				final Move move = mergedPool.moveFromParent(mergedChildren[i]);
+
+				arms[i] = NodePool.NONE;
+				for (int child = pool.firstChild(root); child != NodePool.NONE; child = pool.nextSibling(child))
+				{
+					if (move.equals(pool.moveFromParent(child)))
+					{
+						arms[i] = child;
+						break;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Runs a single MCTS iteration starting from the given node
+		 *
+		 * @param start
+		 * @return Whether the iteration was completed (rather than cut short at the deadline)
+		 */
+		public boolean runIteration(final int start)
+		{
+			// Backpropagates all the way to the root, which is our own
+			return kernel.iteration(start);
+		}
+	}
+
+	//-------------------------------------------------------------------------
+
+}
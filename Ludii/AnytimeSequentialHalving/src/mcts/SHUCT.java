@@ -1,15 +1,14 @@
 package mcts;
 
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
 
 import game.Game;
 import main.collections.FastArrayList;
 import other.AI;
-import other.RankUtils;
 import other.context.Context;
 import other.move.Move;
 
@@ -23,28 +22,74 @@ import other.move.Move;
  * This class is a modified version of the example code provided by Dennis Soemers.
  * @author Dominic Sagers
  */
-public class SHUCT extends AI
+public class SHUCT extends AI implements SearchReporter, ConcurrentAgent
 {
 	
 	//-------------------------------------------------------------------------
 	
-	/** Our player index */
-	protected int player = -1;
+	/** 
+	 * Every how many plies a tree node keeps its own copy of the game state (1 means every node does, 
+	 * 0 means only the root does). The other nodes rebuild their state by replaying moves when needed.
+	 */
+	public int checkpointInterval = 1;
+	
+	/** 
+	 * Maximum number of states in our transposition table, through which nodes with the same game state 
+	 * share their statistics (0 for no transposition table).
+	 */
+	public int transpositionTableSize = 0;
+	
+	/** Our transposition table for the current game (null if we do not use one) */
+	private TranspositionTable transpositions = null;
+
+	/** Number of playouts run at once (on separate threads) from every newly expanded node, 1 means a single playout */
+	public int numLeafPlayouts = 1;
+
+	/** Runs our batches of playouts, created on first use */
+	private LeafParallelPlayouts leafPlayouts = null;
+
+	/** Whoever wants a report of every search we run */
+	private final SearchListeners searchListeners = new SearchListeners();
+
+	/** 
+	 * Number of independent trees searched on separate threads, which only share their root statistics 
+	 * at every halving (1 means no multithreading). The iteration budget is per tree.
+	 */
+	public int numThreads = 1;
+
+	/** Pool of worker threads used for root-parallel search, created on first use */
+	private ExecutorService rootExecutor = null;
 	
 	//-------------------------------------------------------------------------
 
-	/** We use this because our command line arguments only include an option for seconds */
-	private final int iterationBudgetMultiplier = 1000;
+	/** Whether our iteration budget is derived from the seconds we get (our command line arguments only include an option for seconds) */
+	private final boolean budgetFromSeconds;
+	
+	/** Iterations per second in the current game, measured by IterationCalibration, to turn seconds into iterations */
+	private double iterationsPerSecond = IterationCalibration.DEFAULT_ITERATIONS_PER_SECOND;
 	
-	private int iterationBudget = -1;//How many iterations we are allotted during this search
+	/** How many iterations we are allotted in every search (-1 if derived from the seconds we get) */
+	private final int iterationBudget;
 
 	/**
 	 * Constructor
 	 */
 	public SHUCT(int budget)
+	{
+		this(budget, 1);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param numThreads Number of independent trees to search on separate threads
+	 */
+	public SHUCT(int budget, int numThreads)
 	{
 		this.friendlyName = "SHUCT";//Sequential Halving UCT
 		this.iterationBudget = budget;
+		this.budgetFromSeconds = (budget == -1);
+		this.numThreads = Math.max(1, numThreads);
 	}
 	
 	//-------------------------------------------------------------------------
@@ -60,12 +105,12 @@ public class SHUCT extends AI
 	)
 	{
 		// Start out by creating a new root node (no tree reuse in this example)
-		final Node root = new Node(null, null, context);
+		final NodePool pool = new NodePool(game.players().count(), false, this.checkpointInterval, this.transpositions);
+		final int root = pool.allocate(NodePool.NONE, null, context);
 		
-		if (this.iterationBudget == -1)
-		{
-			this.iterationBudget = Double.valueOf(maxSeconds).intValue() * iterationBudgetMultiplier;
-		}
+		// How many iterations we are allotted during this search
+		final int iterationBudget = 
+				this.budgetFromSeconds ? IterationCalibration.iterationBudget(maxSeconds, this.iterationsPerSecond) : this.iterationBudget;
 		
 		// Num iterations we have in the entire search
 		int numIterations = 0;
@@ -96,30 +141,59 @@ public class SHUCT extends AI
 		// Our main loop through MCTS iterations
 		//ArrayList<Integer> hist = new ArrayList<>();//
 		boolean rootFullyExpanded = false;
-		int numPossibleMoves = root.unexpandedMoves.size();
+		int numPossibleMoves = pool.unexpandedMoves(root).size();
 		// System.err.println("possible moves: " + numPossibleMoves);
 		
 		if (numPossibleMoves < 2)
 		{
 			// No need for any search, return immediately to avoid division by 0 crash
-			return root.unexpandedMoves.get(0);
+			final SearchEvents.SearchEndEvent searchEvent = SearchEvents.searchStarted(this.friendlyName, pool, root);
+			final Move move = pool.unexpandedMoves(root).get(0);
+			this.searchListeners.finish(this.searchListeners.start(pool, root), this.friendlyName, move, pool, root, null);
+			SearchEvents.searchEnded(searchEvent, move, pool, root);
+			return move;
 		}
 		
 		final int numHalvings = (int) Math.floor(Math.log(numPossibleMoves) / Math.log(2.0));
 		//System.out.println("can halve this many times: " + numHalvings);
 		// Num iterations we can do per round of Sequential Halving
 		// (this needs to be spread evenly among surviving arms in each round)
-		final int iterPerRound = (this.iterationBudget / (numHalvings));
+		final int iterPerRound = (iterationBudget / (numHalvings));
+		
+		if (this.numThreads > 1)
+		{
+			return searchRootParallel(game, context, iterationBudget, iterPerRound);
+		}
+		
+		// Runs our iterations, reusing the same buffers for all of them
+		final SearchKernel kernel = new SearchKernel
+		(
+			pool, 
+			SHUCT::ucb1Select, 
+			new PlayoutEngine(PlayoutEngine.maxPlayoutMoves(game, PlayoutEngine.DEFAULT_MAX_PLAYOUT_MOVES), null), 
+			(this.numLeafPlayouts > 1) ? leafPlayouts() : null
+		);
+		
+		// Only collected if someone listens to our searches
+		final SearchMetrics metrics = this.searchListeners.start(pool, root);
+		kernel.setMetrics(metrics);
+		
+		// Only recorded if JFR is recording our events (see SearchEvents)
+		final SearchEvents.SearchEndEvent searchEvent = SearchEvents.searchStarted(this.friendlyName, pool, root);
 		
 		int rootNodesVisited = 0;
 		int nodeIndex = 0;
+		
+		// The children of the root which survived halving so far (only set once the root is fully expanded)
+		int[] rootChildren = null;
 		// System.out.println("iterationBudget: " + this.iterationBudget + " \n numIterations: " + this.numIterations);
 		// System.out.println("Iter per round: " + this.iterPerRound);
 
 		while 
 		(
-			numIterations < (this.iterationBudget) && 					// Respect iteration limit
-			!wantsInterrupt								// Respect GUI user clicking the pause button
+			numIterations < iterationBudget && 					// Respect iteration limit
+			!wantsInterrupt &&							// Respect GUI user clicking the pause button
+			!Thread.currentThread().isInterrupted()		// Respect our thread being interrupted (e.g. an experiment shutting down)
 		)
 		{
 			// Start in root node
@@ -128,67 +202,21 @@ public class SHUCT extends AI
 				//System.out.println("starting root search");
 				//System.out.println(rootNodesVisited);
 
-				Node current = root;
-
-				// Traverse tree
-				while (true)
-				{
-					if (current.context.trial().over())
-					{
-						// We've reached a terminal state
-						break;
-					}
-
-					current = ucb1Select(current);
-
-					if (current.visitCount == 0)
-					{
-						// We've expanded a new node, time for playout!
-						break;
-					}
-				}
-
-				Context contextEnd = current.context;
-
-				if (!contextEnd.trial().over())
-				{
-					// Run a playout if we don't already have a terminal game state in node
-					contextEnd = new Context(contextEnd);
-					game.playout
-					(
-						contextEnd, 
-						null, 
-						-1.0, 
-						null, 
-						0, 
-						200, 
-						ThreadLocalRandom.current()
-					);
-				}
-
-				// This computes utilities for all players at the of the playout,
-				// which will all be values in [-1.0, 1.0]
-				final double[] utilities = RankUtils.utilities(contextEnd);
+				// The new child counts as expanded even if its playout was cut short, but not as an iteration
+				final boolean completed = kernel.iteration(root);
 
-				// Backpropagate utilities through the tree
-				while (current != null)
+				rootNodesVisited++;
+				if (completed)
 				{
-					current.visitCount += 1;
-					for (int p = 1; p <= game.players().count(); ++p)
-					{
-						current.scoreSums[p] += utilities[p];
-					}
-					current = current.parent;
+					numIterations += 1;
+					iterationsCurrRound += 1;
 				}
-
-				rootNodesVisited++;
-				numIterations += 1;
-				iterationsCurrRound += 1;
 				if (rootNodesVisited == numPossibleMoves)
 				{
 					//System.out.println("Root expansion over");
 					//System.out.println(rootNodesVisited);
 					rootFullyExpanded = true;
+					rootChildren = pool.children(root);
 				}
 
 			}
@@ -196,13 +224,14 @@ public class SHUCT extends AI
 			{
 				// All root children are added to the Node list, 
 				// so we can now continue the search with halving in mind.
-				Node currentChild = root.children.get(nodeIndex); 
+				int currentChild = rootChildren[nodeIndex];
 
 				while 
 				(
 					iterationsCurrRound < iterPerRound && 
-					numIterations < this.iterationBudget &&
-					!wantsInterrupt
+					numIterations < iterationBudget &&
+					!wantsInterrupt &&
+					!Thread.currentThread().isInterrupted()
 				)
 				{ //checks to see if we are ready to halve from the root
 					//System.out.println("running UCT on node: " + nodeIndex);
@@ -211,74 +240,24 @@ public class SHUCT extends AI
 
 					// if(firstRound && this.halvingIterations == 0){this.halvingIterations += 1;}
 
-					Node current = currentChild;
-
-					// Traverse tree
-					while (true)
-					{
-						if (current.context.trial().over())
-						{
-							// We've reached a terminal state
-							break;
-						}
-
-						current = ucb1Select(current);
-
-						if (current.visitCount == 0)
-						{
-							// We've expanded a new node, time for playout!
-							break;
-						}
-					}
-
-					Context contextEnd = current.context;
-
-					if (!contextEnd.trial().over())
-					{
-						// Run a playout if we don't already have a terminal game state in node
-						contextEnd = new Context(contextEnd);
-						game.playout
-						(
-							contextEnd, 
-							null, 
-							-1.0, 
-							null, 
-							0, 
-							200, 
-							ThreadLocalRandom.current()
-						);
-					}
-
-					// This computes utilities for all players at the of the playout,
-					// which will all be values in [-1.0, 1.0]
-					final double[] utilities = RankUtils.utilities(contextEnd);
-
-					// Backpropagate utilities through the tree
-					while (current != null)
+					// Increment iteration counts (a playout cut short does not count)
+					//hist.add(nodeIndex);
+					if (kernel.iteration(currentChild))
 					{
-						current.visitCount += 1;
-						for (int p = 1; p <= game.players().count(); ++p)
-						{
-							current.scoreSums[p] += utilities[p];
-						}
-						current = current.parent;
+						numIterations += 1;
+						iterationsCurrRound += 1;
 					}
-
-					// Increment iteration counts
-					//hist.add(nodeIndex);
-					numIterations += 1;
-					iterationsCurrRound += 1;
 					
 					// Cycle to next child again
 					if (nodeIndex + 1 >= numPossibleMoves)
 					{
 						nodeIndex = 0;
-						currentChild = root.children.get(nodeIndex);
+						currentChild = rootChildren[nodeIndex];
 					}
 					else
 					{
 						nodeIndex++;
-						currentChild = root.children.get(nodeIndex);
+						currentChild = rootChildren[nodeIndex];
 					}
 				}
 
@@ -286,10 +265,13 @@ public class SHUCT extends AI
 				iterationsCurrRound = 0;
 				//System.out.println("Halving root");
 				//System.out.println("numIterations: " + numIterations);
-				halveRoot(root);
+				final SearchEvents.HalvingEvent halvingEvent = SearchEvents.halvingStarted(numPossibleMoves);
+				numPossibleMoves = halveRoot(pool, root, rootChildren, numPossibleMoves);
+				SearchEvents.halvingEnded(halvingEvent, searchEvent, pool, root, rootChildren, numPossibleMoves);
+				if (metrics != null)
+					metrics.halved();
 				//hist.add(999);//Identifier for where halving occured in the hist
 
-				numPossibleMoves = root.children.size();
 				//System.out.println("numPossibleMoves = " + numPossibleMoves);
 
 				if (nodeIndex >= numPossibleMoves)
@@ -303,59 +285,118 @@ public class SHUCT extends AI
 		//System.out.println(hist.toString());
 		
 		// Return the move we wish to play
-		return finalMoveSelection(root);
+		if (rootChildren == null)
+		{
+			// We ran out of budget before the root was fully expanded
+			rootChildren = pool.children(root);
+			numPossibleMoves = rootChildren.length;
+		}
+		
+		final Move move = finalMoveSelection(pool, root, rootChildren, numPossibleMoves);
+		this.searchListeners.finish(metrics, this.friendlyName, move, pool, root, null);
+		SearchEvents.searchEnded(searchEvent, move, pool, root);
+		return move;
 	}
 
 	/**
-	 * This method takes the rootNode, sorts it's children by their exploit value, 
-	 * and then removes half of the worst children from the root.
-	 * @param rootNode
+	 * Runs the same Sequential Halving schedule as selectAction(), but in numThreads independent trees 
+	 * at once. The halving is based on the statistics of all trees together, so all trees keep 
+	 * searching the same arms.
+	 * 
+	 * @param game
+	 * @param context
+	 * @param iterationBudget Number of iterations we may run (in every tree)
+	 * @param iterPerRound Number of iterations per round of Sequential Halving (in every tree)
+	 * @return The move we wish to play
 	 */
-	public static void halveRoot(Node rootNode){
-		int numChildren = rootNode.children.size();
-		if (numChildren > 2)
+	private Move searchRootParallel(final Game game, final Context context, final int iterationBudget, final int iterPerRound)
+	{
+		final RootParallelSearch search = new RootParallelSearch
+		(
+			() -> this.wantsInterrupt, 
+			rootExecutor(), 
+			this.numThreads, 
+			game, 
+			context, 
+			this.checkpointInterval, 
+			this.transpositions, 
+			SHUCT::ucb1Select, 
+			new PlayoutEngine(PlayoutEngine.maxPlayoutMoves(game, PlayoutEngine.DEFAULT_MAX_PLAYOUT_MOVES), null)
+		);
+		
+		// We only have an iteration budget, no time limit
+		final SearchDeadline noDeadline = new SearchDeadline(0.0);
+		
+		// Only collected if someone listens to our searches (we report on the merged tree)
+		final SearchMetrics metrics = this.searchListeners.start(search.mergedPool(), search.mergedRoot());
+		
+		// Only recorded if JFR is recording our events (see SearchEvents)
+		final SearchEvents.SearchEndEvent searchEvent = SearchEvents.searchStarted(this.friendlyName, search.mergedPool(), search.mergedRoot());
+		
+		// Like the sequential search, expanding the root counts towards the first round
+		int numIterations = search.expandRoots(noDeadline, iterationBudget);
+		int iterationsCurrRound = numIterations;
+		
+		final int[] rootChildren = search.mergedArms();
+		int numChildren = rootChildren.length;
+		
+		while 
+		(
+			numIterations < iterationBudget && 	// Respect iteration limit
+			!wantsInterrupt &&							// Respect GUI user clicking the pause button
+			!Thread.currentThread().isInterrupted()		// Respect our thread being interrupted (e.g. an experiment shutting down)
+		)
 		{
-			final int mover = rootNode.context.state().mover();
-			//Make a list sorting each child node by value and then take the best half.
-
-			// A list of lists where the first index of the inner list is the node 
-			// index and the second index is the value of that node
-			ArrayList<ArrayList<Double>> nodeValues = new ArrayList<>();
-			
-			for (int i = 0; i < numChildren; ++i) 
+			final int roundIterations = Math.min(iterPerRound - iterationsCurrRound, iterationBudget - numIterations);
+			if (roundIterations > 0)
 			{
-				final Node child = rootNode.children.get(i);
-				final double exploit = child.scoreSums[mover] / child.visitCount;
+				final int iterationsDone = search.searchRound(rootChildren, numChildren, roundIterations, noDeadline);
+				if (iterationsDone == 0)
+					break;		// Our threads were interrupted
 				
-				ArrayList<Double> val = new ArrayList<>();
-
-				val.add((double) i);
-				val.add(exploit);
-				nodeValues.add(val);
+				numIterations += iterationsDone;
 			}
-
-			// sort in ascending order based on the value (second index) of each inner list:
-			nodeValues.sort(Comparator.comparingDouble((ArrayList<Double> list) -> list.get(1)));
-
-			//System.out.println("nodeValues after sorting descending: " + nodeValues.toString());
-
-			// make a new list which only contains the nodes we want to remove from the tree:
 			
-			// This is the number of nodes we're removing, so we round this down.
-			final int halfSize = (int) (nodeValues.size() / 2.0);
-			ArrayList<ArrayList<Double>> lowerHalf = new ArrayList<>(nodeValues.subList(0, halfSize));
+			// After children have been explored equally, we halve from the root (based on the statistics of all trees)
+			iterationsCurrRound = 0;
+			final SearchEvents.HalvingEvent halvingEvent = SearchEvents.halvingStarted(numChildren);
+			numChildren = halveRoot(search.mergedPool(), search.mergedRoot(), rootChildren, numChildren);
+			SearchEvents.halvingEnded(halvingEvent, searchEvent, search.mergedPool(), search.mergedRoot(), rootChildren, numChildren);
+			if (metrics != null)
+				metrics.halved();
+		}
+		
+		final Move move = finalMoveSelection(search.mergedPool(), search.mergedRoot(), rootChildren, numChildren);
+		this.searchListeners.finish(metrics, this.friendlyName, move, search.mergedPool(), search.mergedRoot(), null);
+		SearchEvents.searchEnded(searchEvent, move, search.mergedPool(), search.mergedRoot());
+		return move;
+	}
 
-			// Sort the worst half of nodes based on index in descending order
-			lowerHalf.sort(Comparator.comparingDouble((ArrayList<Double> list) -> list.get(0)).reversed());
-			//System.out.println("Worst nodes, sorted ascending: " + lowerHalf.toString());
+	/**
+	 * This method takes the rootNode, ranks it's children by their exploit value (see Halving), 
+	 * and then removes half of the worst children from the root.
+	 * @param pool
+	 * @param rootNode
+	 * @param rootChildren The children of the root which are still left (the survivors are moved to the front)
+	 * @param numChildren Number of children in rootChildren which are still left
+	 * @return Number of children left after halving
+	 */
+	public static int halveRoot(final NodePool pool, final int rootNode, final int[] rootChildren, final int numChildren){
+		if (numChildren > 2)
+		{
+			final int mover = pool.mover(rootNode);
 
-			// Remove the worst nodes from the list, by sorting first, this index based removal should happen in a way that doesn't break./
-			for (int i = 0; i < lowerHalf.size(); i++)
+			final double[] values = new double[numChildren];
+			for (int i = 0; i < numChildren; ++i) 
 			{
-				rootNode.children.remove(Double.valueOf(lowerHalf.get(i).get(0)).intValue());
+				values[i] = pool.exploit(rootChildren[i], mover);
 			}
+
+			// We remove the worst half, rounded down, so we keep the best half rounded up
+			return Halving.keepBest(rootChildren, values, numChildren, numChildren - numChildren / 2);
 		}
 	
+		return numChildren;
 	}
 
 	/**
@@ -388,43 +429,54 @@ public class SHUCT extends AI
 	 * This method also implements the "Expansion" phase of MCTS, and creates
 	 * a new node if the given current node has unexpanded moves.
 	 * 
+	 * @param pool
 	 * @param current
 	 * @return Selected node (if it has 0 visits, it will be a newly-expanded node).
 	 */
-	public static Node ucb1Select(final Node current)
+	public static int ucb1Select(final NodePool pool, final int current)
 	{
-		if (!current.unexpandedMoves.isEmpty())
+		final FastArrayList<Move> unexpandedMoves = pool.unexpandedMoves(current);
+		
+		if (!unexpandedMoves.isEmpty())
 		{
 			// randomly select an unexpanded move
-			final Move move = current.unexpandedMoves.remove(
-					ThreadLocalRandom.current().nextInt(current.unexpandedMoves.size()));
+			final Move move = unexpandedMoves.remove(
+					ThreadLocalRandom.current().nextInt(unexpandedMoves.size()));
 			
 			// create a copy of context
-			final Context context = new Context(current.context);
+			final Context context = pool.copyContext(current);
 			
 			// apply the move
 			context.game().apply(context, move);
 			
 			// create new node and return it
-			return new Node(current, move, context);
+			return pool.allocate(current, move, context);
 		}
 		
 		// use UCB1 equation to select from all children, with random tie-breaking
-		Node bestChild = null;
+		int bestChild = NodePool.NONE;
         double bestValue = Double.NEGATIVE_INFINITY;
-        final double twoParentLog = 2.0 * Math.log(Math.max(1, current.visitCount));
+        final double twoParentLog = 2.0 * Math.log(Math.max(1, pool.sharedVisitCount(current)));
         int numBestFound = 0;
         
-        final int numChildren = current.children.size();
-        final int mover = current.context.state().mover();
+        final int mover = pool.mover(current);
 
-        for (int i = 0; i < numChildren; ++i) 
+        for (int child = pool.firstChild(current); child != NodePool.NONE; child = pool.nextSibling(child)) 
         {
-        	final Node child = current.children.get(i);
-        	final double exploit = child.scoreSums[mover] / child.visitCount;
-        	final double explore = Math.sqrt(twoParentLog / child.visitCount);
-        
-            final double ucb1Value = exploit + explore;
+        	// With a transposition table, the statistics of the state (through all nodes sharing it)
+        	final int childVisits = pool.sharedVisitCount(child);
+        	final double ucb1Value;
+        	if (childVisits == 0)
+        	{
+        		// Its only playout was cut off by the deadline, so we know nothing about it yet
+        		ucb1Value = Double.POSITIVE_INFINITY;
+        	}
+        	else
+        	{
+        		final double exploit = pool.exploit(child, mover);
+        		final double explore = Math.sqrt(twoParentLog / childVisits);
+        		ucb1Value = exploit + explore;
+        	}
             
             if (ucb1Value > bestValue)
             {
@@ -449,21 +501,23 @@ public class SHUCT extends AI
 	/**
 	 * Selects best move based on the highest exploit value (rather than visit count, because SH will visit all root children equally regardless).
 	 * 
+	 * @param pool
 	 * @param rootNode
+	 * @param rootChildren The children of the root which survived halving
+	 * @param numChildren Number of children in rootChildren which survived halving
 	 * @return
 	 */
-	public static Move finalMoveSelection(final Node rootNode)
+	public static Move finalMoveSelection(final NodePool pool, final int rootNode, final int[] rootChildren, final int numChildren)
 	{
-		Node bestChild = null;
+		int bestChild = NodePool.NONE;
         double bestExploit = Double.NEGATIVE_INFINITY;
         int numBestFound = 0;
         
-        final int numChildren = rootNode.children.size();
-		final int mover = rootNode.context.state().mover();
+		final int mover = pool.mover(rootNode);
         for (int i = 0; i < numChildren; ++i) 
         {
-        	final Node child = rootNode.children.get(i);
-        	final double exploit = child.scoreSums[mover] / child.visitCount;
+        	final int child = rootChildren[i];
+        	final double exploit = pool.exploit(child, mover);
             
             if (exploit > bestExploit)
             {
@@ -482,13 +536,100 @@ public class SHUCT extends AI
             }
         }
         
-        return bestChild.moveFromParent;
+        return pool.moveFromParent(bestChild);
+	}
+	
+	/**
+	 * @return Our pool of worker threads for root-parallel search (created on first use)
+	 */
+	private synchronized ExecutorService rootExecutor()
+	{
+		if (this.rootExecutor == null)
+		{
+			this.rootExecutor = Executors.newFixedThreadPool(this.numThreads, (final Runnable r) -> 
+			{
+				final Thread thread = new Thread(r, this.friendlyName + " tree worker");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		
+		return this.rootExecutor;
+	}
+	
+	/**
+	 * @return The runner for our batches of playouts from newly expanded nodes (created on first use)
+	 */
+	private synchronized LeafParallelPlayouts leafPlayouts()
+	{
+		if (this.leafPlayouts == null)
+		{
+			this.leafPlayouts = new LeafParallelPlayouts(this.numLeafPlayouts, this.friendlyName + " playout worker");
+		}
+		
+		return this.leafPlayouts;
+	}
+	
+	/**
+	 * Makes us report every search we run to the given listener
+	 * 
+	 * @param listener
+	 */
+	@Override
+	public void addSearchListener(final SearchListener listener)
+	{
+		this.searchListeners.add(listener);
+	}
+	
+	/**
+	 * Stops reporting our searches to the given listener
+	 * 
+	 * @param listener
+	 */
+	@Override
+	public void removeSearchListener(final SearchListener listener)
+	{
+		this.searchListeners.remove(listener);
 	}
 	
 	@Override
 	public void initAI(final Game game, final int playerID)
 	{
-		this.player = playerID;
+		// Positions from a previous game are of no use
+		this.transpositions = 
+				(this.transpositionTableSize > 0) ? new TranspositionTable(game.players().count(), this.transpositionTableSize) : null;
+		
+		if (this.budgetFromSeconds)
+		{
+			// With several threads, we search one tree per thread and our budget counts the iterations of every tree
+			final IterationCalibration.Setup setup = new IterationCalibration.Setup
+			(
+				SHUCT::ucb1Select, 
+				PlayoutEngine.maxPlayoutMoves(game, PlayoutEngine.DEFAULT_MAX_PLAYOUT_MOVES), 
+				this.checkpointInterval, 
+				this.transpositionTableSize, 
+				this.numLeafPlayouts, 
+				this.numThreads, 
+				true
+			);
+			this.iterationsPerSecond = IterationCalibration.iterationsPerSecond(game, this.friendlyName, setup);
+		}
+	}
+	
+	@Override
+	public void closeAI()
+	{
+		if (this.leafPlayouts != null)
+		{
+			this.leafPlayouts.close();
+			this.leafPlayouts = null;
+		}
+		
+		if (this.rootExecutor != null)
+		{
+			this.rootExecutor.shutdownNow();
+			this.rootExecutor = null;
+		}
 	}
 	
 	@Override
@@ -503,59 +644,12 @@ public class SHUCT extends AI
 		return true;
 	}
 	
-	//-------------------------------------------------------------------------
-	
-	/**
-	 * Inner class for nodes used by example UCT
-	 * 
-	 * @author Dennis Soemers
-	 */
-	private static class Node
+	@Override
+	public boolean supportsConcurrentSearches()
 	{
-		/** Our parent node */
-		protected final Node parent;
-		
-		/** The move that led from parent to this node */
-		protected final Move moveFromParent;
-		
-		/** This objects contains the game state for this node (this is why we don't support stochastic games) */
-		protected final Context context;
-		
-		/** Visit count for this node */
-		protected int visitCount = 0;
-		
-		/** For every player, sum of utilities / scores backpropagated through this node */
-		protected final double[] scoreSums;
-		
-		/** Child nodes */
-		protected List<Node> children = new ArrayList<Node>();
-		
-		/** List of moves for which we did not yet create a child node */
-		protected final FastArrayList<Move> unexpandedMoves;
-		
-		/**
-		 * Constructor
-		 * 
-		 * @param parent
-		 * @param moveFromParent
-		 * @param context
-		 */
-		public Node(final Node parent, final Move moveFromParent, final Context context)
-		{
-			this.parent = parent;
-			this.moveFromParent = moveFromParent;
-			this.context = context;
-			final Game game = context.game();
-			scoreSums = new double[game.players().count() + 1];
-			
-			// For simplicity, we just take ALL legal moves. 
-			// This means we do not support simultaneous-move games.
-			unexpandedMoves = new FastArrayList<Move>(game.moves(context).moves());
-			
-			if (parent != null)
-				parent.children.add(this);
-		}
-		
+		// Our transposition table belongs to a single game, and a batch of leaf playouts uses buffers 
+		// of our own. Everything else of a search is local to it.
+		return this.transpositionTableSize <= 0 && this.numLeafPlayouts <= 1;
 	}
 	
 	//-------------------------------------------------------------------------
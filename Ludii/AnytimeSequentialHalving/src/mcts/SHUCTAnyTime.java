@@ -1,15 +1,18 @@
 package mcts;
 
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import game.Game;
 import main.collections.FastArrayList;
 import other.AI;
-import other.RankUtils;
 import other.context.Context;
 import other.move.Move;
 
@@ -22,21 +25,86 @@ import other.move.Move;
  * This class is a modified version of the example code provided by Dennis Soemers.
  * @author Dominic Sagers, modified by Sashank Chapala - i6317806
  */
-public class SHUCTAnyTime extends AI
+public class SHUCTAnyTime extends AI implements SearchReporter, ConcurrentAgent
 {
 	
 	//-------------------------------------------------------------------------
 	
-	/** Our player index */
-	protected int player = -1;
+	/** 
+	 * Every how many plies a tree node keeps its own copy of the game state (1 means every node does, 
+	 * 0 means only the root does). The other nodes rebuild their state by replaying moves when needed.
+	 */
+	public int checkpointInterval = 1;
+	
+	/** 
+	 * Maximum number of states in our transposition table, through which nodes with the same game state 
+	 * share their statistics (0 for no transposition table).
+	 */
+	public int transpositionTableSize = 0;
+	
+	/** Our transposition table for the current game (null if we do not use one) */
+	private TranspositionTable transpositions = null;
+
+	/** Number of playouts run at once (on separate threads) from every newly expanded node, 1 means a single playout */
+	public int numLeafPlayouts = 1;
+
+	/** Runs our batches of playouts, created on first use */
+	private LeafParallelPlayouts leafPlayouts = null;
+
+	/** Whoever wants a report of every search we run */
+	private final SearchListeners searchListeners = new SearchListeners();
+
+	/** 
+	 * Whether we keep our search tree between turns, and continue in the subtree of the game state we end up in 
+	 * (off by default, like in the agents which never reuse their tree, so their results stay comparable)
+	 */
+	public boolean reuseTree = false;
+
+	/** Whether we keep searching in our tree while the opponent is thinking (only with tree reuse) */
+	public boolean ponder = false;
+
+	/** Searches in our tree while the opponent is thinking, created on first use */
+	private Ponderer ponderer = null;
+
+	/** 
+	 * Maximum number of nodes in our tree (0 for no limit). Above it, we free the subtrees of the arms 
+	 * we no longer search after a halving, keeping only their own statistics (see NodePool.evictSubtrees()).
+	 */
+	public int maxNodes = 0;
+
+	/** Whether we search with an iteration budget (see iterBudget) rather than until the time for our move runs out */
 	public boolean iterMode;
-	public int totalIterations;
 
 	//Value of exploration constant used in UCB1
 	public double explorationConstant;
 	
 	/** We use this because our command line arguments only include an option for seconds */
 	public int iterBudget = -1;
+
+	/** Iterations per second in the current game, measured by IterationCalibration, to turn seconds into iterations */
+	private double iterationsPerSecond = IterationCalibration.DEFAULT_ITERATIONS_PER_SECOND;
+
+	/** Number of worker threads searching below the surviving root arms (1 means no multithreading) */
+	public int numThreads = 1;
+
+	/** 
+	 * Whether our threads should each search their own independent tree, and only share their root 
+	 * statistics at every halving (root parallelisation), rather than all searching in the same tree.
+	 * The iteration budget is per tree in this mode.
+	 */
+	public boolean rootParallel = false;
+
+	/** Pool of worker threads used for parallel search, created on first use */
+	private ExecutorService armExecutor = null;
+
+	/** The tree we searched on our previous turn (null if there is nothing to reuse) */
+	private NodePool previousPool = null;
+
+	/** Root of the tree we searched on our previous turn */
+	private int previousRoot = NodePool.NONE;
+
+	/** Number of moves in the trial of the game state we searched on our previous turn */
+	private int previousNumMoves = -1;
 	
 	//-------------------------------------------------------------------------
 	//Necessary variables for the SH algorithm.
@@ -44,9 +112,20 @@ public class SHUCTAnyTime extends AI
 	 * Constructor
 	 */
 	public SHUCTAnyTime(boolean iterMode, int iterBudget, double explorationConstant)
+	{
+		this(iterMode, iterBudget, explorationConstant, 1);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param numThreads Number of worker threads to search the surviving root arms on
+	 */
+	public SHUCTAnyTime(boolean iterMode, int iterBudget, double explorationConstant, int numThreads)
 	{
 		this.friendlyName = "SHUCTAnyTime";
 		this.iterMode = iterMode;
+		this.numThreads = Math.max(1, numThreads);
 
 		if(explorationConstant == -1.0){
 			//default value is sqrt(2)
@@ -63,17 +142,17 @@ public class SHUCTAnyTime extends AI
 		
 	}
 	
-	public boolean stopConditionMet(final long stopTime, final int iterationBudget){
+	public boolean stopConditionMet(final SearchSession session){
 		if (this.iterMode)
 		{
-			if (this.totalIterations < iterationBudget)
+			if (!session.budgetSpent())
 			{
 				return false;
 			}
 		}
 		else
 		{
-			if (System.currentTimeMillis() < stopTime)
+			if (!session.deadline().expired())
 			{
 				return false;
 			}
@@ -126,11 +205,28 @@ public class SHUCTAnyTime extends AI
 		final int maxDepth
 	)
 	{
-		// Start out by creating a new root node (no tree reuse in this example)
-		final Node root = new Node(null, null, context);
+		// Take our tree back from the ponderer, with everything it found while the opponent was thinking
+		if (this.ponderer != null)
+			this.ponderer.stop();
+		
+		// Continue in the subtree of our previous tree reached by the moves played since then, if it is there
+		NodePool pool = null;
+		if (this.reuseTree && this.previousPool != null)
+		{
+			pool = this.previousPool.reroot(this.previousRoot, this.previousNumMoves, context);
+			this.previousPool = null;
+		}
+		
+		if (pool == null)
+		{
+			// Start out by creating a new root node
+			pool = new NodePool(game.players().count(), false, this.checkpointInterval, this.transpositions);
+			pool.allocate(NodePool.NONE, null, context);
+		}
+		
+		final int root = NodePool.ROOT;
 		
 		// We'll respect any limitations on max seconds and max iterations (don't care about max depth)
-		int iterationBudgetMultiplier = 1000;
 		int iterationBudget;
 		if (this.iterBudget == -1)
 		{
@@ -140,7 +236,7 @@ public class SHUCTAnyTime extends AI
 			}
 			else
 			{
-				iterationBudget = Double.valueOf(maxSeconds).intValue() * iterationBudgetMultiplier;
+				iterationBudget = IterationCalibration.iterationBudget(maxSeconds, this.iterationsPerSecond);
 			}
 		}
 		else
@@ -149,190 +245,168 @@ public class SHUCTAnyTime extends AI
 		}
 		
 		// this.timeBudget = Double.valueOf(maxSeconds).intValue();
-		final long stopTime = (maxSeconds > 0.0) ? System.currentTimeMillis() + (long) (maxSeconds * 1000L) : Long.MAX_VALUE;
+		final SearchDeadline deadline = new SearchDeadline(maxSeconds);
+		
+		// Everything of this search which is not in our tree (nothing of it is kept in our fields)
+		final SearchSession session = new SearchSession(deadline, iterationBudget);
 
+		if (this.numThreads > 1 && this.rootParallel)
+		{
+			// Every thread grows its own tree in this mode, so we do not keep a tree to reuse
+			this.previousPool = null;
+			return searchRootParallel(game, context, session);
+		}
+
+		// Runs our iterations, reusing the same buffers for all of them
+		SearchKernel kernel = new SearchKernel
+		(
+			pool, 
+			(final NodePool p, final int current) -> ucb1Select(p, current, this.explorationConstant), 
+			new PlayoutEngine(PlayoutEngine.maxPlayoutMoves(game, PlayoutEngine.DEFAULT_MAX_PLAYOUT_MOVES), this.iterMode ? null : deadline), 
+			(this.numLeafPlayouts > 1) ? leafPlayouts() : null
+		);
+		
+		// Only collected if someone listens to our searches
+		final SearchMetrics metrics = this.searchListeners.start(pool, root);
+		kernel.setMetrics(metrics);
+		
+		// Only recorded if JFR is recording our events (see SearchEvents)
+		final SearchEvents.SearchEndEvent searchEvent = SearchEvents.searchStarted(this.friendlyName, pool, root);
+		
 		// Our main loop through MCTS iterations
 		//ArrayList<Integer> hist = new ArrayList<>();
-		boolean rootFullyExpanded = false;
-		int numPossibleMoves = root.unexpandedMoves.size();
-		Node currentChild;
-		int armVisitCount = 0;
-		
-		// A list containing the indices of the nodes we are searching from root.children
-		ArrayList<Integer> currentChildrenIdx = new ArrayList<Integer>();
-		for (int i = 0; i < root.children.size(); i++)
+		// In a reused tree, the root may already have been (partially) expanded on our previous turn
+		boolean rootFullyExpanded = pool.unexpandedMoves(root).isEmpty();
+		int numPossibleMoves = pool.numChildren(root) + pool.unexpandedMoves(root).size();
+		int currentChild;
+		
+		// All children of the root, in the order in which they were expanded (only set once the root is fully expanded)
+		int[] rootChildren = rootFullyExpanded ? pool.children(root) : null;
+		int armVisitCount = rootFullyExpanded ? 0 : pool.numChildren(root);
+		
+		// The indices (in rootChildren) of the nodes we are searching, in the first numCurrentChildren entries
+		final int[] currentChildrenIdx = new int[numPossibleMoves];
+		int numCurrentChildren = 0;
+		if (rootFullyExpanded)
 		{
-			currentChildrenIdx.add(i);
+			// The statistics we kept for these children are what the first halving is based on
+			for (int i = 0; i < pool.numChildren(root); i++)
+			{
+				currentChildrenIdx[i] = i;
+			}
+			numCurrentChildren = pool.numChildren(root);
 		}
 
 		// System.err.println("possible moves: " + numPossibleMoves);
-		int rootNodesVisited = 0;
+		int rootNodesVisited = pool.numChildren(root);
 		
 		int idx = 0;//keeps track of where we are in the index list
+		
+		// Whether some arms were halved away since we last freed the subtrees of the arms we do not search
+		boolean canEvict = false;
 
 		// System.out.println("iterationBudget: " + this.iterationBudget + " \n numIterations: " + this.numIterations);
 		// System.out.println("Iter per round: " + this.iterPerRound);
-		//System.currentTimeMillis() < stopTime && 
 		while 
 		(
-			!this.stopConditionMet(stopTime, iterationBudget) &&					
-			!wantsInterrupt								// Respect GUI user clicking the pause button
+			!this.stopConditionMet(session) &&					
+			!wantsInterrupt &&							// Respect GUI user clicking the pause button
+			!Thread.currentThread().isInterrupted()		// Respect our thread being interrupted (e.g. an experiment shutting down)
 		)
 		{
+			if (canEvict && this.maxNodes > 0 && pool.size() > this.maxNodes)
+			{
+				// The arms we halved away regrow their subtrees if a restart brings them back
+				final int sizeBefore = pool.size();
+				pool = Halving.evictPrunedArms(pool, root, currentChildrenIdx, numCurrentChildren);
+				kernel = kernel.forPool(pool);
+				rootChildren = pool.children(root);
+				if (metrics != null)
+					metrics.evicted(sizeBefore - pool.size());
+				
+				canEvict = false;
+			}
+			
 			// Start in root node
 			if (!rootFullyExpanded)
 			{
 				//System.out.println("starting root search");
 				//System.out.println(rootNodesVisited);
 
-				Node current = root;
-				
-				// Traverse tree
-				while (true)
-				{
-					if (current.context.trial().over())
-					{
-						// We've reached a terminal state
-						break;
-					}
-					
-					current = ucb1Select(current, explorationConstant);
-					
-					if (current.visitCount == 0)
-					{
-						// We've expanded a new node, time for playout!
-						break;
-					}
-				}
-				
-				Context contextEnd = current.context;
-				
-				if (!contextEnd.trial().over())
-				{
-					// Run a playout if we don't already have a terminal game state in node
-					contextEnd = new Context(contextEnd);
-					game.playout
-					(
-						contextEnd, 
-						null, 
-						-1.0, 
-						null, 
-						0, 
-						200, 
-						ThreadLocalRandom.current()
-					);
-				}
-				
-				// This computes utilities for all players at the of the playout,
-				// which will all be values in [-1.0, 1.0]
-				final double[] utilities = RankUtils.utilities(contextEnd);
-				
-				// Backpropagate utilities through the tree
-				while (current != null)
-				{
-					current.visitCount += 1;
-					for (int p = 1; p <= game.players().count(); ++p)
-					{
-						current.scoreSums[p] += utilities[p];
-					}
-					current = current.parent;
-				}
+				// The new child counts as expanded even if its playout was cut short, but not as an iteration
+				final boolean completed = kernel.iteration(root);
 				
 				rootNodesVisited++;
 				armVisitCount++;
-				this.totalIterations++;
+				if (completed)
+					session.addIterations(1);
 
 				if (rootNodesVisited == numPossibleMoves)
 				{
 					//System.out.println("First round over");
 					rootFullyExpanded = true;
-					currentChild = root.children.get(0); 
+					rootChildren = pool.children(root);
 				}
 			}
-			else 
+			else if (this.numThreads > 1)
 			{
-				currentChild = root.children.get(currentChildrenIdx.get(idx));
-				
-				Node current = currentChild;
-							
-				// Traverse tree
-				while (true)
+				// The arms of this round are searched on all threads at once (with several threads below the 
+				// same arm if there are more threads than arms). The halving below acts as the synchronization barrier.
+				int roundIterations = numPossibleMoves - armVisitCount;
+				if (this.iterMode)
 				{
-					if (current.context.trial().over())
-					{
-						// We've reached a terminal state
-						break;
-					}
-					
-					current = ucb1Select(current, explorationConstant);
-					
-					if (current.visitCount == 0)
-					{
-						// We've expanded a new node, time for playout!
-						break;
-					}
-				}
-				
-				Context contextEnd = current.context;
-				
-				if (!contextEnd.trial().over())
-				{
-					// Run a playout if we don't already have a terminal game state in node
-					contextEnd = new Context(contextEnd);
-					game.playout
-					(
-						contextEnd, 
-						null, 
-						-1.0, 
-						null, 
-						0, 
-						200, 
-						ThreadLocalRandom.current()
-					);
+					roundIterations = Math.min(roundIterations, session.iterationsLeft());
 				}
+
+				final int iterationsDone = searchArmsParallel(game, pool, root, rootChildren, currentChildrenIdx, numCurrentChildren, roundIterations, deadline);
 				
-				// This computes utilities for all players at the of the playout,
-				// which will all be values in [-1.0, 1.0]
-				final double[] utilities = RankUtils.utilities(contextEnd);
+				armVisitCount += iterationsDone;
+				session.addIterations(iterationsDone);
+				idx = 0;
+			}
+			else 
+			{
+				currentChild = rootChildren[currentChildrenIdx[idx]];
 				
-				// Backpropagate utilities through the tree
-				while (current != null)
+				// A playout cut short does not count, so the arm keeps its turn
+				if (kernel.iteration(currentChild))
 				{
-					current.visitCount += 1;
-					for (int p = 1; p <= game.players().count(); ++p)
-					{
-						current.scoreSums[p] += utilities[p];
-					}
-					current = current.parent;
-				}
-				
-				// Increment iteration counts
+					// Increment iteration counts
 
-				//hist.add(currentChildrenIdx.get(idx));
-				armVisitCount++;
-				this.totalIterations++;
-				idx++;
+					//hist.add(currentChildrenIdx[idx]);
+					armVisitCount++;
+					session.addIterations(1);
+					idx++;
+				}
 
 			}
 
 			if (armVisitCount == numPossibleMoves)
 			{ //if we have visited the all children before halving
 				armVisitCount = 0;
-				if (currentChildrenIdx.size() <= 2)
+				if (numCurrentChildren <= 2)
 				{ //if we have visited all children AND we have halved the amount of times required
-					currentChildrenIdx = new ArrayList<Integer>(); //reset the index list
-
-					for (int i = 0; i < root.children.size();i++)
+					//reset the index list
+					for (int i = 0; i < pool.numChildren(root);i++)
 					{
-						currentChildrenIdx.add(i);
+						currentChildrenIdx[i] = i;
 					}
+					numCurrentChildren = pool.numChildren(root);
+					if (metrics != null)
+						metrics.restarted();
 
+					canEvict = false;
 					idx = 0;
 				}
 				else
 				{ //We haven't finished halving, so we halve based on the current exploit values
 					//System.out.println("before: " + currentChildrenIdx.toString());
-					currentChildrenIdx = halveRoot(root, currentChildrenIdx);
+					final SearchEvents.HalvingEvent halvingEvent = SearchEvents.halvingStarted(numCurrentChildren);
+					numCurrentChildren = halveRoot(pool, root, rootChildren, currentChildrenIdx, numCurrentChildren);
+					SearchEvents.halvingEnded(halvingEvent, searchEvent, pool, root, rootChildren, currentChildrenIdx, numCurrentChildren);
+					if (metrics != null)
+						metrics.halved();
+					canEvict = true;
 					//hist.add(999);
 					//System.out.println("After: " + currentChildrenIdx.toString());
 					
@@ -340,69 +414,244 @@ public class SHUCTAnyTime extends AI
 				}
 			}
 
-			if (idx >= currentChildrenIdx.size())
+			if (idx >= numCurrentChildren)
 			{ 
 				idx = 0; 
 			}
 		}
 
 		// displayHist(hist, this);
-		// System.out.println("Iterations made: " + this.totalIterations);
-		this.totalIterations = 0;
+		// System.out.println("Iterations made: " + session.iterations());
 		//System.out.println(hist.toString());
 		
+		if (this.reuseTree)
+		{
+			// Keep the tree around, so we can continue in it on our next turn
+			this.previousPool = pool;
+			this.previousRoot = root;
+			this.previousNumMoves = context.trial().numMoves();
+		}
+		
 		// Return the move we wish to play
-		return finalMoveSelection(root);
+		final Move move = finalMoveSelection(pool, root);
+		this.searchListeners.finish(metrics, this.friendlyName, move, pool, root, deadline);
+		SearchEvents.searchEnded(searchEvent, move, pool, root);
+		
+		if (this.reuseTree && this.ponder)
+		{
+			// Keep searching below our move while the opponent thinks about their reply
+			ponderer().start(pool, root, move, (final NodePool p, final int current) -> ucb1Select(p, current, this.explorationConstant), PlayoutEngine.maxPlayoutMoves(game, PlayoutEngine.DEFAULT_MAX_PLAYOUT_MOVES));
+		}
+		
+		return move;
 	}
 
-	/**This method takes the rootNode, sorts it's children by their exploit value, and then removes half of the worst children from the root.
-	 * @param rootNode
+	/**
+	 * Spreads the given number of iterations round-robin over the arms in currentChildrenIndexes, 
+	 * and runs them on all the worker threads. Threads take turns claiming iterations of the arms, 
+	 * so when there are more threads than arms, several threads search below the same arm at once 
+	 * (with virtual loss). Only returns once all workers are done, after which the statistics the 
+	 * workers gathered are backpropagated into the root node.
+	 * 
+	 * @return Number of iterations which were actually run (less than requested if we ran out of time)
 	 */
-	public static ArrayList<Integer> halveRoot(final Node rootNode, final ArrayList<Integer> currentChildrenIndexes){
-		ArrayList<Integer> newIndexes = new ArrayList<>();
-
-		int numChildren = currentChildrenIndexes.size();
-		if (numChildren > 2)
+	private int searchArmsParallel
+	(
+		final Game game, 
+		final NodePool pool,
+		final int root, 
+		final int[] rootChildren,
+		final int[] currentChildrenIndexes, 
+		final int numArms, 
+		final int roundIterations, 
+		final SearchDeadline deadline
+	)
+	{
+		final int[] arms = new int[numArms];
+		final AtomicIntegerArray armIterations = new AtomicIntegerArray(numArms);
+		for (int i = 0; i < numArms; ++i)
 		{
-			final int mover = rootNode.context.state().mover();
-
-			//Make a list sorting each child node by value and then take the best half.
-
-			// A list of lists where the first index of the inner list is the node 
-			// index and the second index is the value of that node
-			ArrayList<ArrayList<Double>> nodeValues = new ArrayList<>();
+			arms[i] = rootChildren[currentChildrenIndexes[i]];
 			
-			for (int i = 0; i < numChildren; ++i) 
+			// Same split as the sequential round-robin: the first (roundIterations % numArms) arms get one extra visit
+			armIterations.set(i, roundIterations / numArms + ((i < roundIterations % numArms) ? 1 : 0));
+		}
+		
+		// Every worker starts at a different arm, so the threads are spread evenly over the arms
+		final ArrayList<Future<ArmWorker>> futures = new ArrayList<Future<ArmWorker>>(this.numThreads);
+		for (int w = 0; w < this.numThreads; ++w)
+		{
+			futures.add(armExecutor().submit(new ArmWorker(this, game, pool, root, arms, armIterations, w % numArms, deadline)));
+		}
+		
+		int iterationsDone = 0;
+		for (final Future<ArmWorker> future : futures)
+		{
+			final ArmWorker worker;
+			try
 			{
-				final Node child = rootNode.children.get(currentChildrenIndexes.get(i));
-				final double exploit = child.scoreSums[mover] / child.visitCount;
-
-				ArrayList<Double> val = new ArrayList<>();
-
-				val.add((double) currentChildrenIndexes.get(i));
-				val.add(exploit);
-				nodeValues.add(val);
+				worker = future.get();
+			}
+			catch (final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				this.wantsInterrupt = true;
+				continue;
+			}
+			catch (final ExecutionException e)
+			{
+				throw new RuntimeException(e.getCause());
 			}
 
-			// sort in descending order based on the value (second index) of each inner list:
-			nodeValues.sort(Comparator.comparingDouble((ArrayList<Double> list) -> list.get(1)).reversed());
-
-			// System.out.println("nodeValues after sorting descending: " + nodeValues.toString());
-
-			// make a new list which only contains the nodes we want to keep in the tree:
+			// The workers stop backpropagating below the root, so we do the root here
+			pool.addStatistics(root, worker.iterationsDone, worker.scoreSums);
+			iterationsDone += worker.iterationsDone;
+		}
+		
+		return iterationsDone;
+	}
 
-			// This is the number of nodes we're keeping, so we round this up.
-			final int halfSize = (int) Math.ceil(nodeValues.size() / 2.0);
+	/**
+	 * Runs the same anytime Sequential Halving schedule as selectAction(), but in numThreads 
+	 * independent trees at once. The halving is based on the statistics of all trees together, 
+	 * so all trees keep searching the same arms.
+	 * 
+	 * @param game
+	 * @param context
+	 * @param session Our search (its iteration budget is for every tree, in iteration mode)
+	 * @return The move we wish to play
+	 */
+	private Move searchRootParallel(final Game game, final Context context, final SearchSession session)
+	{
+		final SearchDeadline deadline = session.deadline();
+		
+		final RootParallelSearch search = new RootParallelSearch
+		(
+			() -> this.wantsInterrupt, 
+			armExecutor(), 
+			this.numThreads, 
+			game, 
+			context, 
+			this.checkpointInterval, 
+			this.transpositions, 
+			(final NodePool pool, final int current) -> ucb1Select(pool, current, this.explorationConstant), 
+			new PlayoutEngine(PlayoutEngine.maxPlayoutMoves(game, PlayoutEngine.DEFAULT_MAX_PLAYOUT_MOVES), this.iterMode ? null : deadline)
+		);
+		
+		// Only collected if someone listens to our searches (we report on the merged tree)
+		final SearchMetrics metrics = this.searchListeners.start(search.mergedPool(), search.mergedRoot());
+		
+		// Only recorded if JFR is recording our events (see SearchEvents)
+		final SearchEvents.SearchEndEvent searchEvent = SearchEvents.searchStarted(this.friendlyName, search.mergedPool(), search.mergedRoot());
+		
+		// Only an iteration budget we have to respect limits the expansion, otherwise the deadline does
+		session.addIterations(search.expandRoots(deadline, this.iterMode ? session.iterationsLeft() : Integer.MAX_VALUE));
+		
+		final int[] rootChildren = search.mergedArms();
+		final int numPossibleMoves = rootChildren.length;
+		
+		// The indices of the arms we are searching from rootChildren, in the first numCurrentChildren entries
+		final int[] currentChildrenIdx = new int[numPossibleMoves];
+		for (int i = 0; i < numPossibleMoves; i++)
+		{
+			currentChildrenIdx[i] = i;
+		}
+		int numCurrentChildren = numPossibleMoves;
+		
+		final int[] arms = new int[numPossibleMoves];
+		
+		while 
+		(
+			!this.stopConditionMet(session) &&					
+			!wantsInterrupt &&							// Respect GUI user clicking the pause button
+			!Thread.currentThread().isInterrupted()		// Respect our thread being interrupted (e.g. an experiment shutting down)
+		)
+		{
+			// Every round has as many iterations as there are root children, like the sequential search
+			int roundIterations = numPossibleMoves;
+			if (this.iterMode)
+			{
+				roundIterations = Math.min(roundIterations, session.iterationsLeft());
+			}
+			
+			for (int i = 0; i < numCurrentChildren; i++)
+			{
+				arms[i] = rootChildren[currentChildrenIdx[i]];
+			}
+			
+			final int iterationsDone = search.searchRound(arms, numCurrentChildren, roundIterations, deadline);
+			if (iterationsDone == 0)
+				break;		// Out of time, or our threads were interrupted
+			
+			session.addIterations(iterationsDone);
+			
+			if (numCurrentChildren <= 2)
+			{ //if we have halved the amount of times required, we start again with all children
+				for (int i = 0; i < numPossibleMoves; i++)
+				{
+					currentChildrenIdx[i] = i;
+				}
+				numCurrentChildren = numPossibleMoves;
+				if (metrics != null)
+					metrics.restarted();
+			}
+			else
+			{ //We haven't finished halving, so we halve based on the exploit values of all trees together
+				final SearchEvents.HalvingEvent halvingEvent = SearchEvents.halvingStarted(numCurrentChildren);
+				numCurrentChildren = halveRoot(search.mergedPool(), search.mergedRoot(), rootChildren, currentChildrenIdx, numCurrentChildren);
+				SearchEvents.halvingEnded(halvingEvent, searchEvent, search.mergedPool(), search.mergedRoot(), rootChildren, currentChildrenIdx, numCurrentChildren);
+				if (metrics != null)
+					metrics.halved();
+			}
+		}
+		
+		final Move move = finalMoveSelection(search.mergedPool(), search.mergedRoot());
+		this.searchListeners.finish(metrics, this.friendlyName, move, search.mergedPool(), search.mergedRoot(), deadline);
+		SearchEvents.searchEnded(searchEvent, move, search.mergedPool(), search.mergedRoot());
+		return move;
+	}
+	
+	/**
+	 * @return Our pool of worker threads (created on first use)
+	 */
+	private synchronized ExecutorService armExecutor()
+	{
+		if (this.armExecutor == null)
+		{
+			this.armExecutor = Executors.newFixedThreadPool(this.numThreads, (final Runnable r) -> 
+			{
+				final Thread thread = new Thread(r, this.friendlyName + " worker");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		
+		return this.armExecutor;
+	}
 
-			ArrayList<ArrayList<Double>> upperHalf = new ArrayList<>(nodeValues.subList(0, halfSize));
+	/**This method takes the rootNode, ranks it's children by their exploit value (see Halving), and then removes half of the worst children from the root.
+	 * @param pool
+	 * @param rootNode
+	 * @param rootChildren All children of the root node, in the order in which they were expanded
+	 * @param currentChildrenIndexes Indices (in rootChildren) of the children which are still left (the survivors are written to the front)
+	 * @param numChildren Number of entries in currentChildrenIndexes which are still left
+	 * @return Number of children left afterwards
+	 */
+	public static int halveRoot(final NodePool pool, final int rootNode, final int[] rootChildren, final int[] currentChildrenIndexes, final int numChildren){
+		if (numChildren > 2)
+		{
+			final int mover = pool.mover(rootNode);
 
-			for (int i = 0; i < upperHalf.size(); i++)
+			final double[] values = new double[numChildren];
+			for (int i = 0; i < numChildren; ++i) 
 			{
-				newIndexes.add(Double.valueOf(upperHalf.get(i).get(0)).intValue());
+				values[i] = pool.exploit(rootChildren[currentChildrenIndexes[i]], mover);
 			}
-			
+
+			// This is the number of nodes we're keeping, so we round this up.
+			return Halving.keepBest(currentChildrenIndexes, values, numChildren, numChildren - numChildren / 2);
 		}
-		return newIndexes;
+		return numChildren;
 	}
 
 	/**
@@ -437,43 +686,54 @@ public class SHUCTAnyTime extends AI
 	 * This method also implements the "Expansion" phase of MCTS, and creates
 	 * a new node if the given current node has unexpanded moves.
 	 * 
+	 * @param pool
 	 * @param current
 	 * @return Selected node (if it has 0 visits, it will be a newly-expanded node).
 	 */
-	public static Node ucb1Select(final Node current, final double explorationConstant)
+	public static int ucb1Select(final NodePool pool, final int current, final double explorationConstant)
 	{
-		if (!current.unexpandedMoves.isEmpty())
+		final FastArrayList<Move> unexpandedMoves = pool.unexpandedMoves(current);
+		
+		if (!unexpandedMoves.isEmpty())
 		{
 			// randomly select an unexpanded move
-			final Move move = current.unexpandedMoves.remove(
-					ThreadLocalRandom.current().nextInt(current.unexpandedMoves.size()));
+			final Move move = unexpandedMoves.remove(
+					ThreadLocalRandom.current().nextInt(unexpandedMoves.size()));
 			
 			// create a copy of context
-			final Context context = new Context(current.context);
+			final Context context = pool.copyContext(current);
 			
 			// apply the move
 			context.game().apply(context, move);
 			
 			// create new node and return it
-			return new Node(current, move, context);
+			return pool.allocate(current, move, context);
 		}
 		
 		// use UCB1 equation to select from all children, with random tie-breaking
-		Node bestChild = null;
+		int bestChild = NodePool.NONE;
         double bestValue = Double.NEGATIVE_INFINITY;
-        final double twoParentLog = Math.log(Math.max(1, current.visitCount));
+        final double twoParentLog = Math.log(Math.max(1, pool.sharedVisitCount(current)));
         int numBestFound = 0;
         
-        final int numChildren = current.children.size();
-        final int mover = current.context.state().mover();
+        final int mover = pool.mover(current);
 
-        for (int i = 0; i < numChildren; ++i) 
+        for (int child = pool.firstChild(current); child != NodePool.NONE; child = pool.nextSibling(child)) 
         {
-        	final Node child = current.children.get(i);
-        	final double exploit = child.scoreSums[mover] / child.visitCount;
-        	final double explore = explorationConstant * Math.sqrt(twoParentLog / child.visitCount);
-        
-            final double ucb1Value = exploit + explore;
+        	// With a transposition table, the statistics of the state (through all nodes sharing it)
+        	final int childVisits = pool.sharedVisitCount(child);
+        	final double ucb1Value;
+        	if (childVisits == 0)
+        	{
+        		// Its only playout was cut off by the deadline, so we know nothing about it yet
+        		ucb1Value = Double.POSITIVE_INFINITY;
+        	}
+        	else
+        	{
+        		final double exploit = pool.exploit(child, mover);
+        		final double explore = explorationConstant * Math.sqrt(twoParentLog / childVisits);
+        		ucb1Value = exploit + explore;
+        	}
             
             if (ucb1Value > bestValue)
             {
@@ -498,21 +758,20 @@ public class SHUCTAnyTime extends AI
 	/**
 	 * Selects best move based on the highest exploit value
 	 * 
+	 * @param pool
 	 * @param rootNode
 	 * @return
 	 */
-	public static Move finalMoveSelection(final Node rootNode)
+	public static Move finalMoveSelection(final NodePool pool, final int rootNode)
 	{
-		Node bestChild = null;
+		int bestChild = NodePool.NONE;
         double bestExploit = Double.NEGATIVE_INFINITY;
         int numBestFound = 0;
         
-        final int numChildren = rootNode.children.size();
-		final int mover = rootNode.context.state().mover();
-        for (int i = 0; i < numChildren; ++i) 
+		final int mover = pool.mover(rootNode);
+        for (int child = pool.firstChild(rootNode); child != NodePool.NONE; child = pool.nextSibling(child)) 
         {
-        	final Node child = rootNode.children.get(i);
-        	final double exploit = child.scoreSums[mover] / child.visitCount;
+        	final double exploit = pool.exploit(child, mover);
             
             if (exploit > bestExploit)
             {
@@ -531,13 +790,112 @@ public class SHUCTAnyTime extends AI
             }
         }
         
-        return bestChild.moveFromParent;
+        return pool.moveFromParent(bestChild);
+	}
+	
+	/**
+	 * @return The runner for our batches of playouts from newly expanded nodes (created on first use)
+	 */
+	private synchronized LeafParallelPlayouts leafPlayouts()
+	{
+		if (this.leafPlayouts == null)
+		{
+			this.leafPlayouts = new LeafParallelPlayouts(this.numLeafPlayouts, this.friendlyName + " playout worker");
+		}
+		
+		return this.leafPlayouts;
+	}
+	
+	/**
+	 * @return Our ponderer (created on first use)
+	 */
+	private synchronized Ponderer ponderer()
+	{
+		if (this.ponderer == null)
+		{
+			this.ponderer = new Ponderer(this.friendlyName + " ponder worker");
+		}
+		
+		return this.ponderer;
+	}
+	
+	/**
+	 * Makes us report every search we run to the given listener
+	 * 
+	 * @param listener
+	 */
+	@Override
+	public void addSearchListener(final SearchListener listener)
+	{
+		this.searchListeners.add(listener);
+	}
+	
+	/**
+	 * Stops reporting our searches to the given listener
+	 * 
+	 * @param listener
+	 */
+	@Override
+	public void removeSearchListener(final SearchListener listener)
+	{
+		this.searchListeners.remove(listener);
 	}
 	
 	@Override
 	public void initAI(final Game game, final int playerID)
 	{
-		this.player = playerID;
+		// Positions from a previous game are of no use
+		this.transpositions = 
+				(this.transpositionTableSize > 0) ? new TranspositionTable(game.players().count(), this.transpositionTableSize) : null;
+		
+		// Never reuse a tree from a previous game
+		if (this.ponderer != null)
+			this.ponderer.stop();
+		this.previousPool = null;
+		
+		if (this.iterMode && this.iterBudget == -1)
+		{
+			// Measure (or look up) how many iterations fit in a second of this game
+			this.iterationsPerSecond = IterationCalibration.iterationsPerSecond
+			(
+				game, 
+				this.friendlyName, 
+				new IterationCalibration.Setup
+				(
+					(final NodePool p, final int current) -> ucb1Select(p, current, this.explorationConstant), 
+					PlayoutEngine.maxPlayoutMoves(game, PlayoutEngine.DEFAULT_MAX_PLAYOUT_MOVES), 
+					this.checkpointInterval, 
+					this.transpositionTableSize, 
+					this.numLeafPlayouts, 
+					this.numThreads, 
+					this.rootParallel
+				)
+			);
+		}
+	}
+	
+	@Override
+	public void closeAI()
+	{
+		if (this.ponderer != null)
+		{
+			this.ponderer.stop();
+			this.ponderer = null;
+		}
+		
+		if (this.leafPlayouts != null)
+		{
+			this.leafPlayouts.close();
+			this.leafPlayouts = null;
+		}
+		
+		this.previousPool = null;
+		
+		if (this.armExecutor != null)
+		{
+			this.armExecutor.shutdownNow();
+			this.armExecutor = null;
+		}
 	}
 	
 	@Override
@@ -552,59 +910,133 @@ public class SHUCTAnyTime extends AI
 		return true;
 	}
 	
+	@Override
+	public boolean supportsConcurrentSearches()
+	{
+		// Our tree (and pondering in it) carries over from one search to the next, our transposition 
+		// table belongs to a single game, and a batch of leaf playouts uses buffers of our own
+		return !this.reuseTree && !this.ponder && this.transpositionTableSize <= 0 && this.numLeafPlayouts <= 1;
+	}
+	
 	//-------------------------------------------------------------------------
 	
 	/**
-	 * Inner class for nodes used by example UCT
-	 * 
-	 * @author Dennis Soemers
+	 * Runs iterations of one round for the surviving root arms on a worker thread. The worker visits 
+	 * the arms round-robin, like the sequential search does, and claims one iteration at a time from 
+	 * the arms' shared budgets until all of them are used up. The iterations never touch any node 
+	 * outside of the subtrees of the arms, and use virtual loss and atomic updates since other 
+	 * workers may be searching below the same arm.
 	 */
-	private static class Node
+	private static class ArmWorker implements Callable<ArmWorker>
 	{
-		/** Our parent node */
-		protected final Node parent;
+		/** The agent we are searching for (used for the exploration constant and interrupts) */
+		private final SHUCTAnyTime agent;
 		
-		/** The move that led from parent to this node */
-		protected final Move moveFromParent;
+		/** Runs our playouts */
+		private final PlayoutEngine playouts;
 		
-		/** This objects contains the game state for this node (this is why we don't support stochastic games) */
-		protected final Context context;
+		/** The pool in which our tree is stored */
+		private final NodePool pool;
 		
-		/** Visit count for this node */
-		protected int visitCount = 0;
+		/** The root node, which we never backpropagate into ourselves */
+		private final int root;
 		
-		/** For every player, sum of utilities / scores backpropagated through this node */
-		protected final double[] scoreSums;
+		/** The root children which are searched this round */
+		private final int[] arms;
 		
-		/** Child nodes */
-		protected List<Node> children = new ArrayList<Node>();
+		/** Number of iterations left to run for each of the arms, shared by all workers */
+		private final AtomicIntegerArray armIterations;
 		
-		/** List of moves for which we did not yet create a child node */
-		protected final FastArrayList<Move> unexpandedMoves;
+		/** Index of the arm this worker starts with */
+		private final int firstArm;
+		
+		/** Time budget of the search */
+		private final SearchDeadline deadline;
+		
+		/** Number of iterations this worker has run */
+		protected int iterationsDone = 0;
+		
+		/** For every player, sum of the utilities which still have to be backpropagated into the root */
+		protected final double[] scoreSums;
+		
+		/** Utilities of the last playout of this worker */
+		private final double[] utilities;
 		
 		/**
 		 * Constructor
 		 * 
-		 * @param parent
-		 * @param moveFromParent
-		 * @param context
+		 * @param agent
+		 * @param game
+		 * @param pool
+		 * @param root
+		 * @param arms
+		 * @param armIterations
+		 * @param firstArm
+		 * @param deadline
 		 */
-		public Node(final Node parent, final Move moveFromParent, final Context context)
+		public ArmWorker
+		(
+			final SHUCTAnyTime agent, 
+			final Game game, 
+			final NodePool pool, 
+			final int root, 
+			final int[] arms,
+			final AtomicIntegerArray armIterations,
+			final int firstArm,
+			final SearchDeadline deadline
+		)
+		{
+			this.agent = agent;
+			this.playouts = new PlayoutEngine
+			(
+				PlayoutEngine.maxPlayoutMoves(game, PlayoutEngine.DEFAULT_MAX_PLAYOUT_MOVES), 
+				agent.iterMode ? null : deadline
+			);
+			this.pool = pool;
+			this.root = root;
+			this.arms = arms;
+			this.armIterations = armIterations;
+			this.firstArm = firstArm;
+			this.deadline = deadline;
+			this.scoreSums = new double[game.players().count() + 1];
+			this.utilities = new double[scoreSums.length];
+		}
+		
+		@Override
+		public ArmWorker call()
 		{
-			this.parent = parent;
-			this.moveFromParent = moveFromParent;
-			this.context = context;
-			final Game game = context.game();
-			scoreSums = new double[game.players().count() + 1];
+			// We stop once we have gone past all the arms without finding any iterations left
+			int numArmsWithoutIterations = 0;
+			int i = firstArm;
 			
-			// For simplicity, we just take ALL legal moves. 
-			// This means we do not support simultaneous-move games.
-			unexpandedMoves = new FastArrayList<Move>(game.moves(context).moves());
+			while (numArmsWithoutIterations < arms.length)
+			{
+				if (agent.wantsInterrupt || (!agent.iterMode && deadline.passed()))
+					return this;
+				
+				if (armIterations.getAndDecrement(i) > 0)
+				{
+					if (!TreeParallelSearch.iteration(pool, arms[i], root, agent.explorationConstant, playouts, utilities))
+						return this;	// Out of time
+					
+					for (int p = 1; p < scoreSums.length; ++p)
+					{
+						scoreSums[p] += utilities[p];
+					}
+					
+					++iterationsDone;
+					numArmsWithoutIterations = 0;
+				}
+				else
+				{
+					++numArmsWithoutIterations;
+				}
+				
+				i = (i + 1) % arms.length;
+			}
 			
-			if (parent != null)
-				parent.children.add(this);
+			return this;
 		}
-		
 	}
 	
 	//-------------------------------------------------------------------------
@@ -1,15 +1,12 @@
 package mcts;
 
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 
 import game.Game;
 import main.collections.FastArrayList;
 import other.AI;
-import other.RankUtils;
 import other.context.Context;
 import other.move.Move;
 
@@ -22,18 +19,42 @@ import other.move.Move;
  * This class is a modified version of the example code provided by Dennis Soemers.
  * @author Dominic Sagers
  */
-public class SHUCTTime extends AI
+public class SHUCTTime extends AI implements SearchReporter, ConcurrentAgent
 {
 	
 	//-------------------------------------------------------------------------
 	
-	/** Our player index */
-	protected int player = -1;
+	/** 
+	 * Every how many plies a tree node keeps its own copy of the game state (1 means every node does, 
+	 * 0 means only the root does). The other nodes rebuild their state by replaying moves when needed.
+	 */
+	public int checkpointInterval = 1;
+	
+	/** 
+	 * Maximum number of states in our transposition table, through which nodes with the same game state 
+	 * share their statistics (0 for no transposition table).
+	 */
+	public int transpositionTableSize = 0;
+	
+	/** Our transposition table for the current game (null if we do not use one) */
+	private TranspositionTable transpositions = null;
+
+	/** Number of playouts run at once (on separate threads) from every newly expanded node, 1 means a single playout */
+	public int numLeafPlayouts = 1;
+
+	/** Runs our batches of playouts, created on first use */
+	private LeafParallelPlayouts leafPlayouts = null;
+
+	/** Whoever wants a report of every search we run */
+	private final SearchListeners searchListeners = new SearchListeners();
 	
 	//-------------------------------------------------------------------------
 	//Necessary variables for the SH algorithm.
 	//private int timeBudget;
-	private int timePerRound;
+
+	/** Shortest time we give a round, in nanoseconds */
+	private static final long MIN_ROUND_NANOS = 2_000_000L;
+
 	/**
 	 * Constructor
 	 */
@@ -57,17 +78,34 @@ public class SHUCTTime extends AI
 		
 		
 		// Start out by creating a new root node (no tree reuse in this example)
-		final Node root = new Node(null, null, context);
+		final NodePool pool = new NodePool(game.players().count(), false, this.checkpointInterval, this.transpositions);
+		final int root = pool.allocate(NodePool.NONE, null, context);
 		
 		// We'll respect any limitations on max seconds and max iterations (don't care about max depth)
 		
 		
 		// this.timeBudget = Double.valueOf(maxSeconds).intValue();
-		this.timePerRound = (int) (Math.ceil(maxSeconds*1000L)/2);
-		final long stopTime = (maxSeconds > 0.0) ? System.currentTimeMillis() + (long) (maxSeconds * 1000L) : Long.MAX_VALUE;
-		// System.out.println(maxSeconds);
-		// System.out.println(this.timePerRound);
-		long halveTime = System.currentTimeMillis() + this.timePerRound;
+		final SearchDeadline deadline = new SearchDeadline(maxSeconds);
+		
+		// Runs our iterations, reusing the same buffers for all of them
+		final SearchKernel kernel = new SearchKernel
+		(
+			pool, 
+			SHUCTTime::ucb1Select, 
+			new PlayoutEngine(PlayoutEngine.maxPlayoutMoves(game, PlayoutEngine.DEFAULT_MAX_PLAYOUT_MOVES), deadline), 
+			(this.numLeafPlayouts > 1) ? leafPlayouts() : null
+		);
+		
+		// Only collected if someone listens to our searches
+		final SearchMetrics metrics = this.searchListeners.start(pool, root);
+		kernel.setMetrics(metrics);
+		
+		// Only recorded if JFR is recording our events (see SearchEvents)
+		final SearchEvents.SearchEndEvent searchEvent = SearchEvents.searchStarted(this.friendlyName, pool, root);
+		
+		// Every round gets half of the time we have left when it starts, so the first round gets half of 
+		// our time, the next one a quarter, and so on. A round which ran over makes the next ones shorter.
+		SearchDeadline roundDeadline = SearchDeadline.inNanos(Math.max(MIN_ROUND_NANOS, deadline.nanosLeft() / 2));
 		// final int maxIts = (maxIterations >= 0) ? maxIterations : Integer.MAX_VALUE;
 		
 
@@ -78,18 +116,20 @@ public class SHUCTTime extends AI
 		//ArrayList<Integer> hist = new ArrayList<>();
 		boolean rootFullyExpanded = false;
 		//boolean firstRound = true;
-		int numPossibleMoves = root.unexpandedMoves.size();
+		int numPossibleMoves = pool.unexpandedMoves(root).size();
 		// System.err.println("possible moves: " + numPossibleMoves);
 		int rootNodesVisited = 0;
 		int nodeIndex = 0;
+		
+		// The children of the root which survived halving so far (only set once the root is fully expanded)
+		int[] rootChildren = null;
 		// System.out.println("iterationBudget: " + this.iterationBudget + " \n numIterations: " + this.numIterations);
 		// System.out.println("Iter per round: " + this.iterPerRound);
-		//System.currentTimeMillis() < stopTime && 
 		while 
 		(
-			System.currentTimeMillis() < stopTime && 					// Respect iteration limit
-				// Respect time limit
-			!wantsInterrupt								// Respect GUI user clicking the pause button
+			!deadline.expired() && 					// Respect time limit
+			!wantsInterrupt &&							// Respect GUI user clicking the pause button
+			!Thread.currentThread().isInterrupted()		// Respect our thread being interrupted (e.g. an experiment shutting down)
 		)
 		{
 			// Start in root node
@@ -98,58 +138,7 @@ public class SHUCTTime extends AI
 				//System.out.println("starting root search");
 				//System.out.println(rootNodesVisited);
 
-				Node current = root;
-
-				// Traverse tree
-				while (true)
-				{
-					if (current.context.trial().over())
-					{
-						// We've reached a terminal state
-						break;
-					}
-
-					current = ucb1Select(current);
-
-					if (current.visitCount == 0)
-					{
-						// We've expanded a new node, time for playout!
-						break;
-					}
-				}
-
-				Context contextEnd = current.context;
-
-				if (!contextEnd.trial().over())
-				{
-					// Run a playout if we don't already have a terminal game state in node
-					contextEnd = new Context(contextEnd);
-					game.playout
-					(
-						contextEnd, 
-						null, 
-						-1.0, 
-						null, 
-						0, 
-						200, 
-						ThreadLocalRandom.current()
-					);
-				}
-
-				// This computes utilities for all players at the of the playout,
-				// which will all be values in [-1.0, 1.0]
-				final double[] utilities = RankUtils.utilities(contextEnd);
-
-				// Backpropagate utilities through the tree
-				while (current != null)
-				{
-					current.visitCount += 1;
-					for (int p = 1; p <= game.players().count(); ++p)
-					{
-						current.scoreSums[p] += utilities[p];
-					}
-					current = current.parent;
-				}
+				kernel.iteration(root);
 
 				rootNodesVisited++;
 				if (rootNodesVisited == numPossibleMoves)
@@ -157,6 +146,7 @@ public class SHUCTTime extends AI
 					//System.out.println("First round over");
 					//firstRound = true;
 					rootFullyExpanded = true;
+					rootChildren = pool.children(root);
 				}
 
 			}
@@ -164,10 +154,10 @@ public class SHUCTTime extends AI
 			{
 				//Exploring nodes still in List
 
-				Node currentChild = root.children.get(nodeIndex); 
+				int currentChild = rootChildren[nodeIndex];
 
 
-				while (System.currentTimeMillis() < halveTime)
+				while (!roundDeadline.expired())
 				{ //checks to see if we are ready to halve from the root
 					//System.out.println("running UCT on node: " + nodeIndex);
 					//System.out.println(this.halvingIterations);
@@ -176,58 +166,7 @@ public class SHUCTTime extends AI
 					// if(firstRound && this.halvingIterations == 0){this.halvingIterations += 1;}
 
 
-					Node current = currentChild;
-
-					// Traverse tree
-					while (true)
-					{
-						if (current.context.trial().over())
-						{
-							// We've reached a terminal state
-							break;
-						}
-
-						current = ucb1Select(current);
-
-						if (current.visitCount == 0)
-						{
-							// We've expanded a new node, time for playout!
-							break;
-						}
-					}
-
-					Context contextEnd = current.context;
-
-					if (!contextEnd.trial().over())
-					{
-						// Run a playout if we don't already have a terminal game state in node
-						contextEnd = new Context(contextEnd);
-						game.playout
-						(
-							contextEnd, 
-							null, 
-							-1.0, 
-							null, 
-							0, 
-							200, 
-							ThreadLocalRandom.current()
-						);
-					}
-
-					// This computes utilities for all players at the of the playout,
-					// which will all be values in [-1.0, 1.0]
-					final double[] utilities = RankUtils.utilities(contextEnd);
-
-					// Backpropagate utilities through the tree
-					while (current != null)
-					{
-						current.visitCount += 1;
-						for (int p = 1; p <= game.players().count(); ++p)
-						{
-							current.scoreSums[p] += utilities[p];
-						}
-						current = current.parent;
-					}
+					kernel.iteration(currentChild);
 
 					// Increment iteration counts
 
@@ -235,12 +174,12 @@ public class SHUCTTime extends AI
 					if (nodeIndex + 1 >= numPossibleMoves)
 					{
 						nodeIndex = 0;
-						currentChild = root.children.get(nodeIndex);
+						currentChild = rootChildren[nodeIndex];
 					}
 					else
 					{
 						nodeIndex++;
-						currentChild = root.children.get(nodeIndex);
+						currentChild = rootChildren[nodeIndex];
 					}
 
 
@@ -249,29 +188,27 @@ public class SHUCTTime extends AI
 				//After children have been explored equally, we halve from the root.
 				//System.out.println("Halving root");
 				//System.out.println("numIterations: " + this.numIterations);
-				halveRoot(root);
+				final SearchEvents.HalvingEvent halvingEvent = SearchEvents.halvingStarted(numPossibleMoves);
+				numPossibleMoves = halveRoot(pool, root, rootChildren, numPossibleMoves);
+				SearchEvents.halvingEnded(halvingEvent, searchEvent, pool, root, rootChildren, numPossibleMoves);
+				if (metrics != null)
+					metrics.halved();
 				//hist.add(999);
 
-				numPossibleMoves = root.children.size();
 				//System.out.println(numPossibleMoves);
-				this.timePerRound = Double.valueOf(Math.ceil(this.timePerRound / 2)).intValue();
 				// System.out.println("Iterperround: " + this.iterPerRound);
-				if (this.timePerRound < 1)
-				{ 
-					this.timePerRound = 2;
-				}
-				halveTime = System.currentTimeMillis() + this.timePerRound;
+				roundDeadline = SearchDeadline.inNanos(Math.max(MIN_ROUND_NANOS, deadline.nanosLeft() / 2));
 				//System.out.println("iterperround after halving: " + this.iterPerRound);
 
 				if (nodeIndex + 1 >= numPossibleMoves)
 				{
 					nodeIndex = 0;
-					currentChild = root.children.get(nodeIndex);
+					currentChild = rootChildren[nodeIndex];
 				}
 				else
 				{
 					nodeIndex++;
-					currentChild = root.children.get(nodeIndex);
+					currentChild = rootChildren[nodeIndex];
 				}
 				//firstRound = false;
 			}
@@ -281,61 +218,42 @@ public class SHUCTTime extends AI
 		// Return the move we wish to play
 		//displayHist(hist, this);
 		//System.out.println(hist.toString());
-		return finalMoveSelection(root);
+		if (rootChildren == null)
+		{
+			// We ran out of budget before the root was fully expanded
+			rootChildren = pool.children(root);
+			numPossibleMoves = rootChildren.length;
+		}
+		
+		final Move move = finalMoveSelection(pool, root, rootChildren, numPossibleMoves);
+		this.searchListeners.finish(metrics, this.friendlyName, move, pool, root, deadline);
+		SearchEvents.searchEnded(searchEvent, move, pool, root);
+		return move;
 	}
 
-	/**This method takes the rootNode, sorts it's children by their exploit value, and then removes half of the worst children from the root.
+	/**This method takes the rootNode, ranks it's children by their exploit value (see Halving), and then removes half of the worst children from the root.
+	 * @param pool
 	 * @param rootNode
+	 * @param rootChildren The children of the root which are still left (the survivors are moved to the front)
+	 * @param numChildren Number of children in rootChildren which are still left
+	 * @return Number of children left after halving
 	 */
-	public static void halveRoot(final Node rootNode)
+	public static int halveRoot(final NodePool pool, final int rootNode, final int[] rootChildren, final int numChildren)
 	{
-		int numChildren = rootNode.children.size();
 		if (numChildren > 2)
 		{
-			final int mover = rootNode.context.state().mover();
-			//double bestValue = Double.NEGATIVE_INFINITY;
-			//final double twoParentLog = 2.0 * Math.log(Math.max(1, rootNode.visitCount));
-			//Make a list sorting each child node by value and then take the best half.
-
-			// A list of lists where the first index of the inner list is the node 
-			//index and the second index is the value of that node
-			ArrayList<ArrayList<Double>> nodeValues = new ArrayList<>();
-			
+			final int mover = pool.mover(rootNode);
+
+			final double[] values = new double[numChildren];
 			for (int i = 0; i < numChildren; ++i) 
 			{
-				final Node child = rootNode.children.get(i);
-				final double exploit = child.scoreSums[mover] / child.visitCount;
-				// final double explore = Math.sqrt(twoParentLog / child.visitCount);
-				// final double ucb1Value = exploit + explore;
-				
-				ArrayList<Double> val = new ArrayList<>();
-
-				val.add((double) i);
-				val.add(exploit);
-				nodeValues.add(val);
-				
+				values[i] = pool.exploit(rootChildren[i], mover);
 			}
 
-
-			//sort descending based on the second index of each inner list:
-			nodeValues.sort(Comparator.comparingDouble((ArrayList<Double> list) -> list.get(1)).reversed());
-
-			//System.out.println("nodeValues after sorting descending: " + nodeValues.toString());
-
-			//make a new list which only contains the nodes we want to remove from the tree:
-			double halfSizeTemp = Math.ceil(nodeValues.size() / 2);
-			if(halfSizeTemp < 2){halfSizeTemp = 2;}
-			int halfSize = Double.valueOf(halfSizeTemp).intValue();
-			ArrayList<ArrayList<Double>> lowerHalf = new ArrayList<>(nodeValues.subList(halfSize, nodeValues.size()));
-
-			lowerHalf.sort(Comparator.comparingDouble((ArrayList<Double> list) -> list.get(0)).reversed());//sort based on index in descending order
-			//System.out.println("Worst nodes, sorted ascending: " + lowerHalf.toString());
-			//Remove the worst nodes from the list, by sorting first, this index based removal should happen in a way that doesn't break./
-			for (int i = 0; i < lowerHalf.size(); i++)
-			{
-				rootNode.children.remove(Double.valueOf(lowerHalf.get(i).get(0)).intValue());
-			}
+			// We keep the best half (rounded down), but never fewer than 2 children
+			return Halving.keepBest(rootChildren, values, numChildren, Math.max(2, numChildren / 2));
 		}
+		return numChildren;
 	}
 
 	/**
@@ -370,43 +288,54 @@ public class SHUCTTime extends AI
 	 * This method also implements the "Expansion" phase of MCTS, and creates
 	 * a new node if the given current node has unexpanded moves.
 	 * 
+	 * @param pool
 	 * @param current
 	 * @return Selected node (if it has 0 visits, it will be a newly-expanded node).
 	 */
-	public static Node ucb1Select(final Node current)
+	public static int ucb1Select(final NodePool pool, final int current)
 	{
-		if (!current.unexpandedMoves.isEmpty())
+		final FastArrayList<Move> unexpandedMoves = pool.unexpandedMoves(current);
+		
+		if (!unexpandedMoves.isEmpty())
 		{
 			// randomly select an unexpanded move
-			final Move move = current.unexpandedMoves.remove(
-					ThreadLocalRandom.current().nextInt(current.unexpandedMoves.size()));
+			final Move move = unexpandedMoves.remove(
+					ThreadLocalRandom.current().nextInt(unexpandedMoves.size()));
 			
 			// create a copy of context
-			final Context context = new Context(current.context);
+			final Context context = pool.copyContext(current);
 			
 			// apply the move
 			context.game().apply(context, move);
 			
 			// create new node and return it
-			return new Node(current, move, context);
+			return pool.allocate(current, move, context);
 		}
 		
 		// use UCB1 equation to select from all children, with random tie-breaking
-		Node bestChild = null;
+		int bestChild = NodePool.NONE;
         double bestValue = Double.NEGATIVE_INFINITY;
-        final double twoParentLog = 2.0 * Math.log(Math.max(1, current.visitCount));
+        final double twoParentLog = 2.0 * Math.log(Math.max(1, pool.sharedVisitCount(current)));
         int numBestFound = 0;
         
-        final int numChildren = current.children.size();
-        final int mover = current.context.state().mover();
+        final int mover = pool.mover(current);
 
-        for (int i = 0; i < numChildren; ++i) 
+        for (int child = pool.firstChild(current); child != NodePool.NONE; child = pool.nextSibling(child)) 
         {
-        	final Node child = current.children.get(i);
-        	final double exploit = child.scoreSums[mover] / child.visitCount;
-        	final double explore = Math.sqrt(twoParentLog / child.visitCount);
-        
-            final double ucb1Value = exploit + explore;
+        	// With a transposition table, the statistics of the state (through all nodes sharing it)
+        	final int childVisits = pool.sharedVisitCount(child);
+        	final double ucb1Value;
+        	if (childVisits == 0)
+        	{
+        		// Its only playout was cut off by the deadline, so we know nothing about it yet
+        		ucb1Value = Double.POSITIVE_INFINITY;
+        	}
+        	else
+        	{
+        		final double exploit = pool.exploit(child, mover);
+        		final double explore = Math.sqrt(twoParentLog / childVisits);
+        		ucb1Value = exploit + explore;
+        	}
             
             if (ucb1Value > bestValue)
             {
@@ -432,21 +361,23 @@ public class SHUCTTime extends AI
 	 * Selects best move based on the highest exploit value 
 	 * (rather than visit count, because SH will visit all root children equally regardless)
 	 * 
+	 * @param pool
 	 * @param rootNode
+	 * @param rootChildren The children of the root which survived halving
+	 * @param numChildren Number of children in rootChildren which survived halving
 	 * @return
 	 */
-	public static Move finalMoveSelection(final Node rootNode)
+	public static Move finalMoveSelection(final NodePool pool, final int rootNode, final int[] rootChildren, final int numChildren)
 	{
-		Node bestChild = null;
+		int bestChild = NodePool.NONE;
         double bestExploit = Integer.MIN_VALUE;
         int numBestFound = 0;
         
-        final int numChildren = rootNode.children.size();
-		final int mover = rootNode.context.state().mover();
+		final int mover = pool.mover(rootNode);
         for (int i = 0; i < numChildren; ++i) 
         {
-        	final Node child = rootNode.children.get(i);
-        	final double exploit = child.scoreSums[mover] / child.visitCount;
+        	final int child = rootChildren[i];
+        	final double exploit = pool.exploit(child, mover);
             
             if (exploit > bestExploit)
             {
@@ -465,13 +396,60 @@ public class SHUCTTime extends AI
             }
         }
         
-        return bestChild.moveFromParent;
+        return pool.moveFromParent(bestChild);
+	}
+	
+	/**
+	 * @return The runner for our batches of playouts from newly expanded nodes (created on first use)
+	 */
+	private synchronized LeafParallelPlayouts leafPlayouts()
+	{
+		if (this.leafPlayouts == null)
+		{
+			this.leafPlayouts = new LeafParallelPlayouts(this.numLeafPlayouts, this.friendlyName + " playout worker");
+		}
+		
+		return this.leafPlayouts;
+	}
+	
+	/**
+	 * Makes us report every search we run to the given listener
+	 * 
+	 * @param listener
+	 */
+	@Override
+	public void addSearchListener(final SearchListener listener)
+	{
+		this.searchListeners.add(listener);
+	}
+	
+	/**
+	 * Stops reporting our searches to the given listener
+	 * 
+	 * @param listener
+	 */
+	@Override
+	public void removeSearchListener(final SearchListener listener)
+	{
+		this.searchListeners.remove(listener);
 	}
 	
 	@Override
 	public void initAI(final Game game, final int playerID)
 	{
-		this.player = playerID;
+		// Positions from a previous game are of no use
+		this.transpositions = 
+				(this.transpositionTableSize > 0) ? new TranspositionTable(game.players().count(), this.transpositionTableSize) : null;
+	}
+	
+	@Override
+	public void closeAI()
+	{
+		if (this.leafPlayouts != null)
+		{
+			this.leafPlayouts.close();
+			this.leafPlayouts = null;
+		}
 	}
 	
 	@Override
@@ -486,59 +464,12 @@ public class SHUCTTime extends AI
 		return true;
 	}
 	
-	//-------------------------------------------------------------------------
-	
-	/**
-	 * Inner class for nodes used by example UCT
-	 * 
-	 * @author Dennis Soemers
-	 */
-	private static class Node
+	@Override
+	public boolean supportsConcurrentSearches()
 	{
-		/** Our parent node */
-		protected final Node parent;
-		
-		/** The move that led from parent to this node */
-		protected final Move moveFromParent;
-		
-		/** This objects contains the game state for this node (this is why we don't support stochastic games) */
-		protected final Context context;
-		
-		/** Visit count for this node */
-		protected int visitCount = 0;
-		
-		/** For every player, sum of utilities / scores backpropagated through this node */
-		protected final double[] scoreSums;
-		
-		/** Child nodes */
-		protected List<Node> children = new ArrayList<Node>();
-		
-		/** List of moves for which we did not yet create a child node */
-		protected final FastArrayList<Move> unexpandedMoves;
-		
-		/**
-		 * Constructor
-		 * 
-		 * @param parent
-		 * @param moveFromParent
-		 * @param context
-		 */
-		public Node(final Node parent, final Move moveFromParent, final Context context)
-		{
-			this.parent = parent;
-			this.moveFromParent = moveFromParent;
-			this.context = context;
-			final Game game = context.game();
-			scoreSums = new double[game.players().count() + 1];
-			
-			// For simplicity, we just take ALL legal moves. 
-			// This means we do not support simultaneous-move games.
-			unexpandedMoves = new FastArrayList<Move>(game.moves(context).moves());
-			
-			if (parent != null)
-				parent.children.add(this);
-		}
-		
+		// Our transposition table belongs to a single game, and a batch of leaf playouts uses buffers 
+		// of our own. Everything else of a search is local to it.
+		return this.transpositionTableSize <= 0 && this.numLeafPlayouts <= 1;
 	}
 	
 	//-------------------------------------------------------------------------
@@ -0,0 +1,177 @@
+package mcts;
+
+/**
+ * Keeps track of the time budget of a search. Rather than reading the clock before every iteration,
+ * expired() only reads System.nanoTime() every so many iterations, where that number is sized from the
+ * measured cost of an iteration such that the clock is read roughly every CHECK_PERIOD_NANOS, and
+ * shrinks as the deadline comes closer. Whenever it does read the clock, it also predicts whether
+ * another iteration still fits before the deadline, so we stop before overrunning it rather than after.
+ *
+ * expired() is meant to be called by a single thread, once per iteration. The other methods may be
+ * called by any thread.
+ *
+ * @author Sashank Chapala
+ */
+public final class SearchDeadline
+{
+
+	//-------------------------------------------------------------------------
+
+	/** How often we aim to read the clock, in nanoseconds */
+	private static final long CHECK_PERIOD_NANOS = 250_000L;
+
+	/** Most iterations we run between two reads of the clock */
+	private static final int MAX_CHECK_INTERVAL = 1024;
+
+	/** Weight of the newest measurement in our estimate of the cost of an iteration */
+	private static final double SMOOTHING = 0.25;
+
+	//-------------------------------------------------------------------------
+
+	/** Value of System.nanoTime() at which the budget runs out (only meaningful if limited) */
+	private final long deadlineNanos;
+
+	/** Whether we have a time limit at all */
+	private final boolean limited;
+
+	/** Value of System.nanoTime() the last time expired() read the clock */
+	private long lastCheckNanos;
+
+	/** Whether expired() has read the clock before (the first read only starts the measurement) */
+	private boolean started = false;
+
+	/** Number of calls to expired() since it last read the clock */
+	private int iterationsSinceCheck = 0;
+
+	/** Number of calls to expired() before it reads the clock again */
+	private int iterationsUntilCheck = 0;
+
+	/** Our estimate of the cost of an iteration, in nanoseconds (0 until we measured one) */
+	private double nanosPerIteration = 0.0;
+
+	/** Set once we found that the budget has run out */
+	private boolean expired = false;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxSeconds The time budget, in seconds (no limit if not positive)
+	 */
+	public SearchDeadline(final double maxSeconds)
+	{
+		this.limited = maxSeconds > 0.0;
+		this.lastCheckNanos = System.nanoTime();
+		this.deadlineNanos = limited ? lastCheckNanos + (long) (maxSeconds * 1e9) : 0L;
+	}
+
+	/**
+	 * @param nanos The time budget, in nanoseconds (must be positive)
+	 * @return A deadline the given number of nanoseconds from now
+	 */
+	public static SearchDeadline inNanos(final long nanos)
+	{
+		return new SearchDeadline(nanos / 1e9);
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Called once before every iteration.
+	 *
+	 * @return Whether we have to stop, because the next iteration would not finish before the deadline
+	 */
+	public boolean expired()
+	{
+		if (!limited || expired)
+			return expired;
+
+		++iterationsSinceCheck;
+		if (--iterationsUntilCheck > 0)
+			return false;
+
+		final long now = System.nanoTime();
+
+		if (started)
+		{
+			// The iterations since the last check tell us how expensive an iteration is
+			final double measured = (double) (now - lastCheckNanos) / iterationsSinceCheck;
+			nanosPerIteration = (nanosPerIteration == 0.0) ? measured : nanosPerIteration + SMOOTHING * (measured - nanosPerIteration);
+		}
+		started = true;
+		lastCheckNanos = now;
+		iterationsSinceCheck = 0;
+
+		final long nanosLeft = deadlineNanos - now;
+		if (nanosLeft <= nanosPerIteration)
+		{
+			// We would most likely overrun the deadline with another iteration
+			expired = true;
+			return true;
+		}
+
+		if (nanosPerIteration == 0.0)
+		{
+			// Nothing measured yet, so we check again after the first iteration
+			iterationsUntilCheck = 1;
+			return false;
+		}
+
+		// Check again after one check period, but at the latest when half of the time left has passed
+		final double interval = Math.min(CHECK_PERIOD_NANOS, nanosLeft / 2.0) / Math.max(nanosPerIteration, 1.0);
+		iterationsUntilCheck = (int) Math.max(1.0, Math.min(MAX_CHECK_INTERVAL, interval));
+		return false;
+	}
+
+	/**
+	 * Reads the clock every time it is called, so it can also be used by other threads.
+	 *
+	 * @return Whether the deadline has passed
+	 */
+	public boolean passed()
+	{
+		return limited && System.nanoTime() - deadlineNanos >= 0L;
+	}
+
+	/**
+	 * @return Number of nanoseconds until the deadline (0 if it has passed, Long.MAX_VALUE without a limit)
+	 */
+	public long nanosLeft()
+	{
+		if (!limited)
+			return Long.MAX_VALUE;
+
+		return Math.max(0L, deadlineNanos - System.nanoTime());
+	}
+
+	/**
+	 * @return Number of nanoseconds since the deadline passed (0 if it has not passed, or without a limit)
+	 */
+	public long nanosPast()
+	{
+		if (!limited)
+			return 0L;
+
+		return Math.max(0L, System.nanoTime() - deadlineNanos);
+	}
+
+	/**
+	 * @return Our estimate of the cost of an iteration, in nanoseconds (0 if we have not measured one yet)
+	 */
+	public double nanosPerIteration()
+	{
+		return nanosPerIteration;
+	}
+
+	/**
+	 * @return Whether we have a time limit at all
+	 */
+	public boolean isLimited()
+	{
+		return limited;
+	}
+
+	//-------------------------------------------------------------------------
+
+}
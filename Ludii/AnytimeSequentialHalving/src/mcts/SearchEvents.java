@@ -0,0 +1,349 @@
+package mcts;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import other.move.Move;
+
+/**
+ * Java Flight Recorder events of our SH agents, so that their searches show up in the same recording
+ * as GC and JIT activity. Record with e.g. "java -XX:StartFlightRecording=filename=run.jfr ...", and
+ * find the events under "MCTS" in JDK Mission Control.
+ *
+ * - mcts.SearchStart and mcts.SearchEnd for every selectAction() (the end event lasts for the whole search)
+ * - mcts.Halving for every halving (or split into clusters) of the arms of the root
+ * - mcts.Playout for one in every playoutSampleInterval playouts
+ *
+ * When JFR is not recording (or these events are disabled), the agents only create the event objects
+ * and check whether they are enabled, which the JIT compiles down to next to nothing.
+ *
+ * @author Sashank Chapala
+ */
+public final class SearchEvents
+{
+
+	//-------------------------------------------------------------------------
+
+	/** We record one in every this many playouts (recording all of them would flood the recording) */
+	public static int playoutSampleInterval = 100;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor (not used, this class only has static methods)
+	 */
+	private SearchEvents()
+	{
+		// Do nothing
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * The start of a search
+	 */
+	@Name("mcts.SearchStart")
+	@Label("Search Start")
+	@Category("MCTS")
+	@StackTrace(false)
+	public static final class SearchStartEvent extends Event
+	{
+		@Label("Agent")
+		public String agent;
+
+		@Label("Arms")
+		@Description("Number of legal moves in the root")
+		public int arms;
+
+		@Label("Reused Nodes")
+		@Description("Number of nodes kept from the previous search")
+		public int reusedNodes;
+	}
+
+	/**
+	 * A whole search, committed when it ends
+	 */
+	@Name("mcts.SearchEnd")
+	@Label("Search End")
+	@Category("MCTS")
+	@StackTrace(false)
+	public static final class SearchEndEvent extends Event
+	{
+		@Label("Agent")
+		public String agent;
+
+		@Label("Iterations")
+		@Description("Number of iterations backpropagated into the root")
+		public int iterations;
+
+		@Label("Halving Rounds")
+		public int halvingRounds;
+
+		@Label("Nodes")
+		@Description("Number of nodes in the tree at the end of the search")
+		public int nodes;
+
+		@Label("Move")
+		public String move;
+
+		/** Value of System.nanoTime() when the search started */
+		transient long startNanos;
+
+		/** Number of visits of the root when the search started */
+		transient int rootVisitsAtStart;
+	}
+
+	/**
+	 * A halving (or split into clusters) of the arms of the root
+	 */
+	@Name("mcts.Halving")
+	@Label("Halving")
+	@Category("MCTS")
+	@StackTrace(false)
+	public static final class HalvingEvent extends Event
+	{
+		@Label("Agent")
+		public String agent;
+
+		@Label("Arms Before")
+		public int armsBefore;
+
+		@Label("Arms After")
+		public int armsAfter;
+
+		@Label("Threshold")
+		@Description("Lowest average utility (for the mover in the root) among the arms which were kept")
+		public double threshold;
+
+		@Label("Elapsed")
+		@Description("Time since the start of the search")
+		@Timespan(Timespan.NANOSECONDS)
+		public long elapsed;
+	}
+
+	/**
+	 * A (sampled) playout
+	 */
+	@Name("mcts.Playout")
+	@Label("Playout")
+	@Category("MCTS")
+	@StackTrace(false)
+	public static final class PlayoutEvent extends Event
+	{
+		@Label("Plies")
+		public int plies;
+
+		@Label("Completed")
+		@Description("Whether the playout finished (rather than being cut short by the deadline)")
+		public boolean completed;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Records the start of a search, which has to be passed to searchEnded() when the search is over
+	 *
+	 * @param agent Name of the agent
+	 * @param pool The tree we search
+	 * @param root The root of our search
+	 * @return The end event of the search
+	 */
+	public static SearchEndEvent searchStarted(final String agent, final NodePool pool, final int root)
+	{
+		final SearchEndEvent end = new SearchEndEvent();
+		end.agent = agent;
+		end.startNanos = System.nanoTime();
+
+		final SearchStartEvent start = new SearchStartEvent();
+		if (start.isEnabled())
+		{
+			start.agent = agent;
+			start.arms = pool.numChildren(root) + pool.unexpandedMoves(root).size();
+			start.reusedNodes = pool.size() - 1;
+			start.commit();
+		}
+
+		if (!end.isEnabled())
+			return end;
+
+		end.rootVisitsAtStart = pool.visitCount(root);
+		end.begin();
+		return end;
+	}
+
+	/**
+	 * Records the end of a search
+	 *
+	 * @param end What searchStarted() gave us
+	 * @param move The move the agent picked
+	 * @param pool The tree we searched
+	 * @param root The root of our search
+	 */
+	public static void searchEnded(final SearchEndEvent end, final Move move, final NodePool pool, final int root)
+	{
+		if (!end.isEnabled())
+			return;
+
+		end.end();
+		if (end.shouldCommit())
+		{
+			end.iterations = pool.visitCount(root) - end.rootVisitsAtStart;
+			end.nodes = pool.size();
+			end.move = String.valueOf(move);
+			end.commit();
+		}
+	}
+
+	/**
+	 * Called right before the arms of the root are halved
+	 *
+	 * @param armsBefore Number of arms left before halving
+	 * @return The event to pass to halvingEnded()
+	 */
+	public static HalvingEvent halvingStarted(final int armsBefore)
+	{
+		final HalvingEvent event = new HalvingEvent();
+		if (event.isEnabled())
+		{
+			event.armsBefore = armsBefore;
+			event.begin();
+		}
+		return event;
+	}
+
+	/**
+	 * Called right after the arms of the root have been halved, for agents which keep the arms left
+	 * at the front of their array of root children.
+	 *
+	 * @param event What halvingStarted() gave us
+	 * @param search What searchStarted() gave us
+	 * @param pool
+	 * @param root
+	 * @param arms The arms left (at the front)
+	 * @param armsAfter Number of arms left
+	 */
+	public static void halvingEnded
+	(
+		final HalvingEvent event,
+		final SearchEndEvent search,
+		final NodePool pool,
+		final int root,
+		final int[] arms,
+		final int armsAfter
+	)
+	{
+		++search.halvingRounds;
+		if (!event.isEnabled())
+			return;
+
+		event.end();
+		if (event.shouldCommit())
+		{
+			final int mover = pool.mover(root);
+			double threshold = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < armsAfter; ++i)
+			{
+				threshold = Math.min(threshold, pool.exploit(arms[i], mover));
+			}
+			commitHalving(event, search, armsAfter, threshold);
+		}
+	}
+
+	/**
+	 * Called right after the arms of the root have been halved, for agents which keep the indices
+	 * (in rootChildren) of the arms left at the front of an array.
+	 *
+	 * @param event What halvingStarted() gave us
+	 * @param search What searchStarted() gave us
+	 * @param pool
+	 * @param root
+	 * @param rootChildren All children of the root
+	 * @param indexes Indices (in rootChildren) of the arms left (at the front)
+	 * @param armsAfter Number of arms left
+	 */
+	public static void halvingEnded
+	(
+		final HalvingEvent event,
+		final SearchEndEvent search,
+		final NodePool pool,
+		final int root,
+		final int[] rootChildren,
+		final int[] indexes,
+		final int armsAfter
+	)
+	{
+		++search.halvingRounds;
+		if (!event.isEnabled())
+			return;
+
+		event.end();
+		if (event.shouldCommit())
+		{
+			final int mover = pool.mover(root);
+			double threshold = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < armsAfter; ++i)
+			{
+				threshold = Math.min(threshold, pool.exploit(rootChildren[indexes[i]], mover));
+			}
+			commitHalving(event, search, armsAfter, threshold);
+		}
+	}
+
+	/**
+	 * @return An event to record the playout we are about to run, or null if we do not record this one
+	 */
+	public static PlayoutEvent playoutStarted()
+	{
+		final PlayoutEvent event = new PlayoutEvent();
+		if (!event.isEnabled() || ThreadLocalRandom.current().nextInt(playoutSampleInterval) != 0)
+			return null;
+
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param event What playoutStarted() gave us (nothing is recorded if null)
+	 * @param plies Number of moves played in the playout
+	 * @param completed Whether the playout finished
+	 */
+	public static void playoutEnded(final PlayoutEvent event, final int plies, final boolean completed)
+	{
+		if (event == null)
+			return;
+
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.plies = plies;
+			event.completed = completed;
+			event.commit();
+		}
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @param event
+	 * @param search
+	 * @param armsAfter
+	 * @param threshold
+	 */
+	private static void commitHalving(final HalvingEvent event, final SearchEndEvent search, final int armsAfter, final double threshold)
+	{
+		event.agent = search.agent;
+		event.armsAfter = armsAfter;
+		event.threshold = threshold;
+		event.elapsed = System.nanoTime() - search.startNanos;
+		event.commit();
+	}
+
+	//-------------------------------------------------------------------------
+
+}
@@ -0,0 +1,230 @@
+package mcts;
+
+import other.RankUtils;
+import other.context.Context;
+
+/**
+ * Runs the MCTS iterations (selection, expansion, playout and backpropagation) for our agents.
+ * A kernel belongs to a single search on a single thread, and keeps the buffers it needs between 
+ * iterations, so that an iteration only allocates what the tree itself needs (the Context of a 
+ * newly expanded node and its list of legal moves). The playout is run in the Context the new 
+ * node was allocated with (see NodePool.takeContext()) by our PlayoutEngine, and the utilities 
+ * are written into a buffer rather than a new array.
+ * 
+ * Only supports deterministic, alternating-move games.
+ * 
+ * @author Sashank Chapala
+ */
+public final class SearchKernel
+{
+
+	//-------------------------------------------------------------------------
+
+	/** The pool in which our tree is stored */
+	private final NodePool pool;
+
+	/** The selection step we use in the tree */
+	private final Selection selection;
+
+	/** Runs our playouts (and cuts them short at the deadline of the search) */
+	private final PlayoutEngine playouts;
+
+	/** Runs batches of playouts from every new node (null to run a single playout on this thread) */
+	private final LeafParallelPlayouts leafPlayouts;
+
+	/** Utilities of every player at the end of the last playout (players are indexed from 1) */
+	private final double[] utilities;
+
+	/** Where we add the time of every phase of our iterations (null if nobody wants to know) */
+	private SearchMetrics metrics = null;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor
+	 * 
+	 * @param pool
+	 * @param selection
+	 * @param playouts Runs our playouts
+	 * @param leafPlayouts Runs batches of playouts from every new node (null for a single playout)
+	 */
+	public SearchKernel
+	(
+		final NodePool pool, 
+		final Selection selection, 
+		final PlayoutEngine playouts, 
+		final LeafParallelPlayouts leafPlayouts
+	)
+	{
+		this.pool = pool;
+		this.selection = selection;
+		this.playouts = playouts;
+		this.leafPlayouts = leafPlayouts;
+		this.utilities = new double[pool.numPlayers() + 1];
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @param otherPool
+	 * @return A kernel with the same settings (and metrics) as this one, for the tree in the given pool 
+	 * 	(for example after it was copied by NodePool.evictSubtrees())
+	 */
+	public SearchKernel forPool(final NodePool otherPool)
+	{
+		final SearchKernel kernel = new SearchKernel(otherPool, selection, playouts, leafPlayouts);
+		kernel.setMetrics(metrics);
+		return kernel;
+	}
+
+	/**
+	 * Makes us measure the time of the selection, playout and backpropagation of every iteration
+	 * 
+	 * @param metrics Where to add the times (null to stop measuring)
+	 */
+	public void setMetrics(final SearchMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Runs a single MCTS iteration starting from the given node, and backpropagates 
+	 * all the way through the root.
+	 * 
+	 * @param start
+	 * @return Whether we completed the iteration (false if its playout was cut short, in which case 
+	 * 	nothing is backpropagated)
+	 */
+	public boolean iteration(final int start)
+	{
+		return iteration(start, NodePool.NONE);
+	}
+
+	/**
+	 * Runs a single MCTS iteration starting from the given node
+	 * 
+	 * @param start Node to start the selection in
+	 * @param stopAt Node at which backpropagation stops (NONE to backpropagate through the root)
+	 * @return Whether we completed the iteration (false if its playout was cut short, in which case 
+	 * 	nothing is backpropagated)
+	 */
+	public boolean iteration(final int start, final int stopAt)
+	{
+		final long selectStart = (metrics != null) ? System.nanoTime() : 0L;
+		int current = start;
+
+		// Traverse tree
+		while (true)
+		{
+			if (pool.isTerminal(current))
+			{
+				// We've reached a terminal state
+				break;
+			}
+
+			current = selection.select(pool, current);
+
+			if (pool.visitCount(current) == 0)
+			{
+				// We've expanded a new node, time for playout!
+				break;
+			}
+		}
+
+		// Normally the Context the node was allocated with, otherwise it is rebuilt from the closest checkpoint
+		final Context contextEnd = pool.takeContext(current);
+		final long playoutStart = (metrics != null) ? System.nanoTime() : 0L;
+
+		if (leafPlayouts != null)
+		{
+			// Run a batch of playouts from this node on our worker threads, and backpropagate them all at once
+			final int numPlayouts = leafPlayouts.run(contextEnd, playouts);
+			if (numPlayouts == 0)
+			{
+				measured(selectStart, playoutStart, 0L);
+				return false;
+			}
+			
+			final long backpropStart = (metrics != null) ? System.nanoTime() : 0L;
+			pool.backpropagateBatch(current, stopAt, leafPlayouts.results(), numPlayouts);
+			measured(selectStart, playoutStart, backpropStart);
+			return true;
+		}
+
+		// Run a playout if we don't already have a terminal game state in node
+		if (!playouts.run(contextEnd))
+		{
+			// Out of time, the node keeps its 0 visits
+			measured(selectStart, playoutStart, 0L);
+			return false;
+		}
+
+		// This computes utilities for all players at the of the playout,
+		// which will all be values in [-1.0, 1.0]
+		utilities(contextEnd, utilities);
+
+		// Backpropagate utilities through the tree
+		final long backpropStart = (metrics != null) ? System.nanoTime() : 0L;
+		pool.backpropagate(current, stopAt, utilities);
+		measured(selectStart, playoutStart, backpropStart);
+		return true;
+	}
+
+	/**
+	 * Adds the time of the phases of the iteration which just ended to our metrics (if we have any)
+	 * 
+	 * @param selectStart Value of System.nanoTime() when the selection started
+	 * @param playoutStart Value of System.nanoTime() when the playout started
+	 * @param backpropStart Value of System.nanoTime() when the backpropagation started (0 if there was none)
+	 */
+	private void measured(final long selectStart, final long playoutStart, final long backpropStart)
+	{
+		if (metrics == null)
+			return;
+
+		final long now = System.nanoTime();
+		if (backpropStart == 0L)
+			metrics.addPhaseNanos(playoutStart - selectStart, now - playoutStart, 0L);
+		else
+			metrics.addPhaseNanos(playoutStart - selectStart, backpropStart - playoutStart, now - backpropStart);
+	}
+
+	/**
+	 * @return Utilities of every player at the end of the last single playout (only valid until the 
+	 * 	next iteration, and not used with batches of playouts)
+	 */
+	public double[] utilities()
+	{
+		return utilities;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Computes the same utilities as RankUtils.utilities(), but writes them into the given array
+	 * instead of allocating a new one.
+	 * 
+	 * @param context A state at the end of a playout (which may have been cut off before the game ended)
+	 * @param utilities Array to write the utility of every player into (players are indexed from 1)
+	 */
+	public static void utilities(final Context context, final double[] utilities)
+	{
+		final double[] ranking = context.trial().ranking();
+		final int numPlayers = ranking.length - 1;
+
+		for (int p = 1; p < ranking.length; ++p)
+		{
+			double rank = ranking[p];
+			if (numPlayers > 1 && rank == 0.0)
+			{
+				// looks like the playout didn't terminate yet; assign "draw" ranks
+				rank = context.computeNextDrawRank();
+			}
+
+			utilities[p] = RankUtils.rankToUtil(rank, numPlayers);
+		}
+	}
+
+	//-------------------------------------------------------------------------
+
+}
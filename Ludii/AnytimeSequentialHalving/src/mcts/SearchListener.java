@@ -0,0 +1,18 @@
+package mcts;
+
+/**
+ * Gets a report of every search an agent runs (see SearchReporter).
+ * Called on the thread of the search, right before the agent returns its move, so a listener should
+ * not take long.
+ *
+ * @author Sashank Chapala
+ */
+public interface SearchListener
+{
+
+	/**
+	 * @param report What happened during the search
+	 */
+	public void searchFinished(final SearchReport report);
+
+}
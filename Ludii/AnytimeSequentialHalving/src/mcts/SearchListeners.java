@@ -0,0 +1,90 @@
+package mcts;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import other.move.Move;
+
+/**
+ * The listeners an agent reports its searches to. Listeners may be added and removed from any thread,
+ * also while the agent is searching.
+ *
+ * An agent calls start() when it begins a search, and only collects the numbers of the search if that
+ * gives it a SearchMetrics, which is only the case when someone is listening.
+ *
+ * @author Sashank Chapala
+ */
+public final class SearchListeners
+{
+
+	//-------------------------------------------------------------------------
+
+	/** Everyone who gets our reports */
+	private final List<SearchListener> listeners = new CopyOnWriteArrayList<SearchListener>();
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @param listener
+	 */
+	public void add(final SearchListener listener)
+	{
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param listener
+	 */
+	public void remove(final SearchListener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @param pool The tree we are about to search
+	 * @param root The root of our search
+	 * @return The metrics to collect during the search, or null if nobody is listening
+	 */
+	public SearchMetrics start(final NodePool pool, final int root)
+	{
+		if (listeners.isEmpty())
+			return null;
+
+		return new SearchMetrics(pool, root);
+	}
+
+	/**
+	 * Sends the report of a finished search to all our listeners
+	 *
+	 * @param metrics What start() gave us for this search (nothing is reported if null)
+	 * @param agentName
+	 * @param move The move the agent picked
+	 * @param pool The tree we searched
+	 * @param root The root of our search
+	 * @param deadline The deadline of our search (null if we had none)
+	 */
+	public void finish
+	(
+		final SearchMetrics metrics,
+		final String agentName,
+		final Move move,
+		final NodePool pool,
+		final int root,
+		final SearchDeadline deadline
+	)
+	{
+		if (metrics == null)
+			return;
+
+		final SearchReport report = metrics.report(agentName, move, pool, root, deadline);
+		for (final SearchListener listener : listeners)
+		{
+			listener.searchFinished(report);
+		}
+	}
+
+	//-------------------------------------------------------------------------
+
+}
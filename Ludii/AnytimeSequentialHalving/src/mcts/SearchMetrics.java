@@ -0,0 +1,163 @@
+package mcts;
+
+import other.move.Move;
+
+/**
+ * Collects the numbers of a single search for its SearchReport. Only created when someone is listening
+ * (see SearchListeners.start()), so a search without listeners has a null SearchMetrics, and does not
+ * read the clock or count anything for it.
+ *
+ * The counters are not thread-safe: only the thread running the search updates them.
+ *
+ * @author Sashank Chapala
+ */
+public final class SearchMetrics
+{
+
+	//-------------------------------------------------------------------------
+
+	/** Value of System.nanoTime() when the search started */
+	private final long startNanos;
+
+	/** Number of nodes in the tree when the search started (more than 1 for a reused tree) */
+	private final int sizeAtStart;
+
+	/** Number of visits of the root when the search started */
+	private final int rootVisitsAtStart;
+
+	/** Number of times the arms of the root were halved (or split into clusters) */
+	private int halvingRounds = 0;
+
+	/** Number of times halving started over with all arms */
+	private int restarts = 0;
+
+	/** Number of nodes freed by evicting the subtrees of pruned arms */
+	private int evictedNodes = 0;
+
+	/** Nanoseconds spent selecting (and expanding) nodes */
+	private long selectNanos = 0L;
+
+	/** Nanoseconds spent in playouts */
+	private long playoutNanos = 0L;
+
+	/** Nanoseconds spent backpropagating */
+	private long backpropNanos = 0L;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor
+	 *
+	 * @param pool The tree we search
+	 * @param root The root of our search
+	 */
+	public SearchMetrics(final NodePool pool, final int root)
+	{
+		this.startNanos = System.nanoTime();
+		this.sizeAtStart = pool.size();
+		this.rootVisitsAtStart = pool.visitCount(root);
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Counts a halving (or split into clusters) of the arms of the root
+	 */
+	public void halved()
+	{
+		++halvingRounds;
+	}
+
+	/**
+	 * Counts a restart of halving with all arms
+	 */
+	public void restarted()
+	{
+		++restarts;
+	}
+
+	/**
+	 * Counts the nodes freed by evicting the subtrees of pruned arms
+	 *
+	 * @param numNodes Number of nodes freed
+	 */
+	public void evicted(final int numNodes)
+	{
+		evictedNodes += numNodes;
+	}
+
+	/**
+	 * Adds the time of the phases of an iteration
+	 *
+	 * @param select Nanoseconds spent selecting (and expanding) nodes
+	 * @param playout Nanoseconds spent in playouts
+	 * @param backprop Nanoseconds spent backpropagating
+	 */
+	public void addPhaseNanos(final long select, final long playout, final long backprop)
+	{
+		selectNanos += select;
+		playoutNanos += playout;
+		backpropNanos += backprop;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @param agentName
+	 * @param move The move the agent picked
+	 * @param pool The tree we searched
+	 * @param root The root of our search
+	 * @param deadline The deadline of our search (null if we had none)
+	 * @return The report of our search
+	 */
+	public SearchReport report
+	(
+		final String agentName,
+		final Move move,
+		final NodePool pool,
+		final int root,
+		final SearchDeadline deadline
+	)
+	{
+		final long totalNanos = System.nanoTime() - startNanos;
+		final long overrunNanos = (deadline != null) ? deadline.nanosPast() : 0L;
+
+		final int size = pool.size();
+		final int rootDepth = pool.depth(root);
+		int maxDepth = 0;
+		for (int node = 0; node < size; ++node)
+		{
+			maxDepth = Math.max(maxDepth, pool.depth(node) - rootDepth);
+		}
+
+		final int[] arms = pool.children(root);
+		final Move[] armMoves = new Move[arms.length];
+		final int[] armVisits = new int[arms.length];
+		for (int i = 0; i < arms.length; ++i)
+		{
+			armMoves[i] = pool.moveFromParent(arms[i]);
+			armVisits[i] = pool.visitCount(arms[i]);
+		}
+
+		return new SearchReport
+		(
+			agentName,
+			move,
+			Math.max(0, pool.visitCount(root) - rootVisitsAtStart),
+			halvingRounds,
+			restarts,
+			Math.max(0, size - sizeAtStart + evictedNodes),
+			maxDepth,
+			selectNanos,
+			playoutNanos,
+			backpropNanos,
+			totalNanos,
+			overrunNanos,
+			armMoves,
+			armVisits
+		);
+	}
+
+	//-------------------------------------------------------------------------
+
+}
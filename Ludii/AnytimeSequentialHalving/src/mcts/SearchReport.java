@@ -0,0 +1,259 @@
+package mcts;
+
+import other.move.Move;
+
+/**
+ * What happened during a single search of one of our agents (see SearchListener).
+ *
+ * The time spent in selection, playouts and backpropagation is only measured for searches on a single
+ * thread, and is 0 for the parallel searches. For root parallelisation, the tree we report on is the
+ * merged tree of all threads, which only has the root and its arms.
+ *
+ * @author Sashank Chapala
+ */
+public final class SearchReport
+{
+
+	//-------------------------------------------------------------------------
+
+	/** Name of the agent which searched */
+	private final String agentName;
+
+	/** The move the agent picked */
+	private final Move move;
+
+	/** Number of iterations which were completed (and backpropagated into the root) */
+	private final int iterations;
+
+	/** Number of times the arms of the root were halved (or split into clusters) */
+	private final int halvingRounds;
+
+	/** Number of times halving started over with all arms */
+	private final int restarts;
+
+	/** Number of nodes added to the tree */
+	private final int nodesAllocated;
+
+	/** Depth of the deepest node below the root */
+	private final int maxDepth;
+
+	/** Nanoseconds spent selecting (and expanding) nodes */
+	private final long selectNanos;
+
+	/** Nanoseconds spent in playouts */
+	private final long playoutNanos;
+
+	/** Nanoseconds spent backpropagating */
+	private final long backpropNanos;
+
+	/** Nanoseconds the whole search took */
+	private final long totalNanos;
+
+	/** Nanoseconds by which the search overran its deadline (0 if it did not, or had no deadline) */
+	private final long overrunNanos;
+
+	/** The moves of the arms of the root, in the order in which they were expanded */
+	private final Move[] armMoves;
+
+	/** The number of visits of every arm in armMoves */
+	private final int[] armVisits;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor
+	 *
+	 * @param agentName
+	 * @param move
+	 * @param iterations
+	 * @param halvingRounds
+	 * @param restarts
+	 * @param nodesAllocated
+	 * @param maxDepth
+	 * @param selectNanos
+	 * @param playoutNanos
+	 * @param backpropNanos
+	 * @param totalNanos
+	 * @param overrunNanos
+	 * @param armMoves
+	 * @param armVisits
+	 */
+	public SearchReport
+	(
+		final String agentName,
+		final Move move,
+		final int iterations,
+		final int halvingRounds,
+		final int restarts,
+		final int nodesAllocated,
+		final int maxDepth,
+		final long selectNanos,
+		final long playoutNanos,
+		final long backpropNanos,
+		final long totalNanos,
+		final long overrunNanos,
+		final Move[] armMoves,
+		final int[] armVisits
+	)
+	{
+		this.agentName = agentName;
+		this.move = move;
+		this.iterations = iterations;
+		this.halvingRounds = halvingRounds;
+		this.restarts = restarts;
+		this.nodesAllocated = nodesAllocated;
+		this.maxDepth = maxDepth;
+		this.selectNanos = selectNanos;
+		this.playoutNanos = playoutNanos;
+		this.backpropNanos = backpropNanos;
+		this.totalNanos = totalNanos;
+		this.overrunNanos = overrunNanos;
+		this.armMoves = armMoves;
+		this.armVisits = armVisits;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @return Name of the agent which searched
+	 */
+	public String agentName()
+	{
+		return agentName;
+	}
+
+	/**
+	 * @return The move the agent picked
+	 */
+	public Move move()
+	{
+		return move;
+	}
+
+	/**
+	 * @return Number of iterations which were completed (and backpropagated into the root)
+	 */
+	public int iterations()
+	{
+		return iterations;
+	}
+
+	/**
+	 * @return Number of times the arms of the root were halved (or split into clusters)
+	 */
+	public int halvingRounds()
+	{
+		return halvingRounds;
+	}
+
+	/**
+	 * @return Number of times halving started over with all arms
+	 */
+	public int restarts()
+	{
+		return restarts;
+	}
+
+	/**
+	 * @return Number of nodes added to the tree
+	 */
+	public int nodesAllocated()
+	{
+		return nodesAllocated;
+	}
+
+	/**
+	 * @return Depth of the deepest node below the root
+	 */
+	public int maxDepth()
+	{
+		return maxDepth;
+	}
+
+	/**
+	 * @return Nanoseconds spent selecting (and expanding) nodes
+	 */
+	public long selectNanos()
+	{
+		return selectNanos;
+	}
+
+	/**
+	 * @return Nanoseconds spent in playouts
+	 */
+	public long playoutNanos()
+	{
+		return playoutNanos;
+	}
+
+	/**
+	 * @return Nanoseconds spent backpropagating
+	 */
+	public long backpropNanos()
+	{
+		return backpropNanos;
+	}
+
+	/**
+	 * @return Nanoseconds the whole search took
+	 */
+	public long totalNanos()
+	{
+		return totalNanos;
+	}
+
+	/**
+	 * @return Nanoseconds by which the search overran its deadline (0 if it did not, or had no deadline)
+	 */
+	public long overrunNanos()
+	{
+		return overrunNanos;
+	}
+
+	/**
+	 * @return The moves of the arms of the root, in the order in which they were expanded
+	 */
+	public Move[] armMoves()
+	{
+		return armMoves;
+	}
+
+	/**
+	 * @return The number of visits of every arm (in the same order as armMoves())
+	 */
+	public int[] armVisits()
+	{
+		return armVisits;
+	}
+
+	//-------------------------------------------------------------------------
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder sb = new StringBuilder();
+		sb.append(agentName);
+		sb.append(": iterations=").append(iterations);
+		sb.append(", halvingRounds=").append(halvingRounds);
+		sb.append(", restarts=").append(restarts);
+		sb.append(", nodesAllocated=").append(nodesAllocated);
+		sb.append(", maxDepth=").append(maxDepth);
+		sb.append(", selectMs=").append(selectNanos / 1e6);
+		sb.append(", playoutMs=").append(playoutNanos / 1e6);
+		sb.append(", backpropMs=").append(backpropNanos / 1e6);
+		sb.append(", totalMs=").append(totalNanos / 1e6);
+		sb.append(", overrunMs=").append(overrunNanos / 1e6);
+		sb.append(", armVisits=[");
+		for (int i = 0; i < armVisits.length; ++i)
+		{
+			if (i > 0)
+				sb.append(", ");
+			sb.append(armVisits[i]);
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+
+	//-------------------------------------------------------------------------
+
+}
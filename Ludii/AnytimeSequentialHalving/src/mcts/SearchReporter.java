@@ -0,0 +1,26 @@
+package mcts;
+
+/**
+ * An agent which reports every search it runs to the listeners it is given (see SearchReport).
+ * If nobody listens, the agent does not collect any of the numbers of the report.
+ *
+ * @author Sashank Chapala
+ */
+public interface SearchReporter
+{
+
+	/**
+	 * Makes us report every search we run to the given listener
+	 *
+	 * @param listener
+	 */
+	public void addSearchListener(final SearchListener listener);
+
+	/**
+	 * Stops reporting our searches to the given listener
+	 *
+	 * @param listener
+	 */
+	public void removeSearchListener(final SearchListener listener);
+
+}
@@ -0,0 +1,95 @@
+package mcts;
+
+/**
+ * The state of a single search (one call of selectAction()) of our agents: its deadline, its iteration 
+ * budget and the number of iterations it has run so far. Agents keep their session in a local variable 
+ * of selectAction(), so nothing of a search is left behind in the agent when it returns, and one agent 
+ * can run several searches at once (see ConcurrentAgent).
+ *
+ * A session is only used by the thread which runs the search.
+ *
+ * @author Sashank Chapala
+ */
+public final class SearchSession
+{
+
+	//-------------------------------------------------------------------------
+
+	/** The time budget of the search */
+	private final SearchDeadline deadline;
+
+	/** Number of iterations the search may run (only meaningful for agents with an iteration budget) */
+	private final int iterationBudget;
+
+	/** Number of iterations the search has run so far */
+	private int iterations = 0;
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor
+	 *
+	 * @param deadline The time budget of the search
+	 * @param iterationBudget Number of iterations the search may run
+	 */
+	public SearchSession(final SearchDeadline deadline, final int iterationBudget)
+	{
+		this.deadline = deadline;
+		this.iterationBudget = iterationBudget;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @return The time budget of the search
+	 */
+	public SearchDeadline deadline()
+	{
+		return deadline;
+	}
+
+	/**
+	 * @return Number of iterations the search may run
+	 */
+	public int iterationBudget()
+	{
+		return iterationBudget;
+	}
+
+	/**
+	 * @return Number of iterations the search has run so far
+	 */
+	public int iterations()
+	{
+		return iterations;
+	}
+
+	/**
+	 * @return Number of iterations the search may still run
+	 */
+	public int iterationsLeft()
+	{
+		return iterationBudget - iterations;
+	}
+
+	/**
+	 * @return Whether the search has run all the iterations it may run
+	 */
+	public boolean budgetSpent()
+	{
+		return iterations >= iterationBudget;
+	}
+
+	/**
+	 * Counts iterations the search has run
+	 *
+	 * @param numIterations
+	 */
+	public void addIterations(final int numIterations)
+	{
+		iterations += numIterations;
+	}
+
+	//-------------------------------------------------------------------------
+
+}
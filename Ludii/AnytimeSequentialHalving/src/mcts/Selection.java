@@ -0,0 +1,19 @@
+package mcts;
+
+/**
+ * The selection (and expansion) step of MCTS, as used by SearchKernel and RootParallelSearch.
+ * Our agents implement this with their ucb1Select() methods, e.g. SHUCT::ucb1Select.
+ * 
+ * @author Sashank Chapala
+ */
+public interface Selection
+{
+	/**
+	 * Selects a child of the given "current" node, or expands a new one if it has unexpanded moves.
+	 * 
+	 * @param pool
+	 * @param current
+	 * @return Selected node (if it has 0 visits, it will be a newly-expanded node).
+	 */
+	int select(final NodePool pool, final int current);
+}
@@ -0,0 +1,213 @@
+package mcts;
+
+import java.util.Arrays;
+
+/**
+ * Statistics shared by all nodes of a search which have the same game state, so that positions we
+ * reach through different move orders (which happens a lot in games like Clobber, Breakthrough and
+ * Amazons) learn from each other's playouts. States are identified by their full hash value (see
+ * State.fullHash()), and every node with a state in the table adds the results it backpropagates to
+ * the entry of that state as well (see NodePool).
+ *
+ * The table has a fixed number of entries, grouped in buckets of BUCKET_SIZE. A state can only be
+ * stored in one bucket, and if that bucket is full when we see a new state, the entry with the fewest
+ * visits is replaced. The buckets are guarded by NUM_STRIPES locks (lock striping), so threads only
+ * wait for each other if they happen to need buckets with the same lock, and a single table can be
+ * shared by all threads and trees of a parallel search.
+ *
+ * @author Sashank Chapala
+ */
+public final class TranspositionTable
+{
+
+	//-------------------------------------------------------------------------
+
+	/** Number of entries in every bucket */
+	private static final int BUCKET_SIZE = 4;
+
+	/** Number of locks guarding the buckets (a power of 2) */
+	private static final int NUM_STRIPES = 64;
+
+	//-------------------------------------------------------------------------
+
+	/** Number of doubles we store per entry for the score sums (players are indexed from 1) */
+	private final int scoreStride;
+
+	/** Mask to turn a hash into the index of a bucket */
+	private final int bucketMask;
+
+	/** Full hash of the state of every entry */
+	private final long[] hashes;
+
+	/** Number of visits of every entry (0 for empty entries) */
+	private final int[] visitCounts;
+
+	/** For every entry, for every player, sum of utilities backpropagated through the state */
+	private final double[] scoreSums;
+
+	/** The locks guarding the buckets (bucket b is guarded by stripes[b % NUM_STRIPES]) */
+	private final Object[] stripes = new Object[NUM_STRIPES];
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor
+	 *
+	 * @param numPlayers
+	 * @param maxEntries Maximum number of states in the table (rounded up to a power of 2)
+	 */
+	public TranspositionTable(final int numPlayers, final int maxEntries)
+	{
+		final int minBuckets = Math.max(1, (maxEntries + BUCKET_SIZE - 1) / BUCKET_SIZE);
+		final int numBuckets = (minBuckets == 1) ? 1 : Integer.highestOneBit(minBuckets - 1) << 1;
+		final int numEntries = numBuckets * BUCKET_SIZE;
+
+		this.scoreStride = numPlayers + 1;
+		this.bucketMask = numBuckets - 1;
+		this.hashes = new long[numEntries];
+		this.visitCounts = new int[numEntries];
+		this.scoreSums = new double[numEntries * scoreStride];
+
+		for (int s = 0; s < NUM_STRIPES; ++s)
+		{
+			stripes[s] = new Object();
+		}
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Adds the given visits and score sums to the entry of the given state, which replaces the
+	 * least visited entry of its bucket if the state is not in the table yet.
+	 *
+	 * @param hash Full hash of the state
+	 * @param visits
+	 * @param sums For every player, the sum of utilities to add (players are indexed from 1)
+	 */
+	public void add(final long hash, final int visits, final double[] sums)
+	{
+		final int bucket = bucket(hash);
+		synchronized (stripes[bucket & (NUM_STRIPES - 1)])
+		{
+			final int first = bucket * BUCKET_SIZE;
+			int entry = -1;
+			int leastVisited = first;
+
+			for (int e = first; e < first + BUCKET_SIZE; ++e)
+			{
+				if (visitCounts[e] > 0 && hashes[e] == hash)
+				{
+					entry = e;
+					break;
+				}
+
+				if (visitCounts[e] < visitCounts[leastVisited])
+					leastVisited = e;
+			}
+
+			if (entry < 0)
+			{
+				// Take the place of the least visited state (or an empty entry)
+				entry = leastVisited;
+				hashes[entry] = hash;
+				visitCounts[entry] = 0;
+				Arrays.fill(scoreSums, entry * scoreStride, (entry + 1) * scoreStride, 0.0);
+			}
+
+			visitCounts[entry] += visits;
+			final int offset = entry * scoreStride;
+			for (int p = 1; p < scoreStride; ++p)
+			{
+				scoreSums[offset + p] += sums[p];
+			}
+		}
+	}
+
+	/**
+	 * @param hash Full hash of the state
+	 * @param player
+	 * @param minVisits Number of visits the entry needs to have more than to be used
+	 * @return Average utility of the given player in the given state, or NaN if the state is not in
+	 * 	the table with more than minVisits visits
+	 */
+	public double exploit(final long hash, final int player, final int minVisits)
+	{
+		final int bucket = bucket(hash);
+		synchronized (stripes[bucket & (NUM_STRIPES - 1)])
+		{
+			final int first = bucket * BUCKET_SIZE;
+			for (int e = first; e < first + BUCKET_SIZE; ++e)
+			{
+				if (visitCounts[e] > 0 && hashes[e] == hash)
+				{
+					if (visitCounts[e] <= minVisits)
+						return Double.NaN;
+
+					return scoreSums[e * scoreStride + player] / visitCounts[e];
+				}
+			}
+		}
+
+		return Double.NaN;
+	}
+
+	/**
+	 * @param hash Full hash of the state
+	 * @return Number of visits of the given state (0 if it is not in the table)
+	 */
+	public int visitCount(final long hash)
+	{
+		final int bucket = bucket(hash);
+		synchronized (stripes[bucket & (NUM_STRIPES - 1)])
+		{
+			final int first = bucket * BUCKET_SIZE;
+			for (int e = first; e < first + BUCKET_SIZE; ++e)
+			{
+				if (visitCounts[e] > 0 && hashes[e] == hash)
+					return visitCounts[e];
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Removes all states from the table
+	 */
+	public void clear()
+	{
+		for (int s = 0; s < NUM_STRIPES; ++s)
+		{
+			synchronized (stripes[s])
+			{
+				for (int bucket = s; bucket <= bucketMask; bucket += NUM_STRIPES)
+				{
+					Arrays.fill(visitCounts, bucket * BUCKET_SIZE, (bucket + 1) * BUCKET_SIZE, 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Maximum number of states in the table
+	 */
+	public int capacity()
+	{
+		return visitCounts.length;
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * @param hash
+	 * @return Index of the bucket the given state is stored in
+	 */
+	private int bucket(final long hash)
+	{
+		// Ludii's hashes are random bits, so mixing in the upper half is enough
+		return (int) (hash ^ (hash >>> 32)) & bucketMask;
+	}
+
+	//-------------------------------------------------------------------------
+
+}
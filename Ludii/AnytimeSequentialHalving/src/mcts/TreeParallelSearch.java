@@ -0,0 +1,190 @@
+package mcts;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import main.collections.FastArrayList;
+import other.context.Context;
+import other.move.Move;
+
+/**
+ * The UCT iterations used when multiple threads search in the same tree (in the same NodePool) at
+ * once. Every thread adds a virtual loss to each node it selects on its way down, so the next
+ * threads see that node as if it had lost once more and spread out over the tree. The statistics
+ * are only updated with atomic operations (see NodePool.backpropagateConcurrent()), which also
+ * removes the virtual losses again.
+ *
+ * Used by ExampleUCT, and by SHUCTAnyTime for the search below the root arms.
+ *
+ * Only supports deterministic, alternating-move games.
+ *
+ * @author Sashank Chapala
+ */
+public final class TreeParallelSearch
+{
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Constructor (not used, this class only has static methods)
+	 */
+	private TreeParallelSearch()
+	{
+		// Do nothing
+	}
+
+	//-------------------------------------------------------------------------
+
+	/**
+	 * Runs a single MCTS iteration starting from the given node, which may run in parallel with
+	 * iterations of other threads in the same pool.
+	 *
+	 * @param pool
+	 * @param start Node to start the selection in
+	 * @param stopAt Node at which backpropagation stops (NONE to backpropagate through the root)
+	 * @param explorationConstant
+	 * @param playouts Runs the playout (and cuts it short at the deadline of the search)
+	 * @param utilities Array (owned by the calling thread) to write the utilities obtained in the playout into
+	 * @return Whether we completed the iteration (false if its playout was cut short, in which case 
+	 * 	only our virtual losses are removed again)
+	 */
+	public static boolean iteration
+	(
+		final NodePool pool,
+		final int start,
+		final int stopAt,
+		final double explorationConstant,
+		final PlayoutEngine playouts,
+		final double[] utilities
+	)
+	{
+		int current = start;
+		pool.addVirtualLoss(current);
+
+		// Traverse tree
+		while (true)
+		{
+			if (pool.isTerminal(current))
+			{
+				// We've reached a terminal state
+				break;
+			}
+
+			current = select(pool, current, explorationConstant);
+
+			if (pool.visitCount(current) == 0)
+			{
+				// We've expanded a new node (or reached one another thread is still running its first playout from)
+				break;
+			}
+		}
+
+		// Only one thread gets the Context the node was allocated with, the others rebuild it
+		final Context contextEnd = pool.takeContext(current);
+
+		// Run a playout if we don't already have a terminal game state in node
+		if (!playouts.run(contextEnd))
+		{
+			// Out of time, so we only take back our virtual losses
+			pool.removeVirtualLosses(current, stopAt);
+			return false;
+		}
+
+		// This computes utilities for all players at the of the playout,
+		// which will all be values in [-1.0, 1.0]
+		SearchKernel.utilities(contextEnd, utilities);
+
+		// Backpropagate utilities through the tree, removing our virtual losses on the way
+		pool.backpropagateConcurrent(current, stopAt, utilities);
+		return true;
+	}
+
+	/**
+	 * Selects child of the given "current" node according to UCB1 equation, where every virtual loss
+	 * counts as an extra visit with the lowest possible utility. This method also implements the
+	 * "Expansion" phase of MCTS, and creates a new node if the given current node has unexpanded moves.
+	 * The selected node gets a virtual loss.
+	 *
+	 * @param pool
+	 * @param current
+	 * @param explorationConstant
+	 * @return Selected node (if it has 0 visits, it will be a newly-expanded node).
+	 */
+	public static int select(final NodePool pool, final int current, final double explorationConstant)
+	{
+		final FastArrayList<Move> unexpandedMoves = pool.unexpandedMoves(current);
+
+		// Threads expanding the same node have to take turns picking from its unexpanded moves
+		Move move = null;
+		synchronized (unexpandedMoves)
+		{
+			if (!unexpandedMoves.isEmpty())
+			{
+				// randomly select an unexpanded move
+				move = unexpandedMoves.remove(ThreadLocalRandom.current().nextInt(unexpandedMoves.size()));
+			}
+		}
+
+		if (move != null)
+		{
+			// create a copy of context
+			final Context context = pool.copyContext(current);
+
+			// apply the move
+			context.game().apply(context, move);
+
+			// create new node and return it
+			final int newNode = pool.allocate(current, move, context);
+			pool.addVirtualLoss(newNode);
+			return newNode;
+		}
+
+		// use UCB1 equation to select from all children, with random tie-breaking
+		int bestChild = NodePool.NONE;
+        double bestValue = Double.NEGATIVE_INFINITY;
+        final double parentLog = Math.log(Math.max(1, pool.visitCount(current) + pool.virtualLoss(current)));
+        int numBestFound = 0;
+
+        final int mover = pool.mover(current);
+
+        for (int child = pool.firstChild(current); child != NodePool.NONE; child = pool.nextSibling(child))
+        {
+        	final int virtualLoss = pool.virtualLoss(child);
+        	final int childVisits = pool.visitCount(child) + virtualLoss;
+
+        	final double ucb1Value;
+        	if (childVisits == 0)
+        	{
+        		// Just published by another thread, which has not added its virtual loss yet
+        		ucb1Value = Double.POSITIVE_INFINITY;
+        	}
+        	else
+        	{
+        		final double exploit = (pool.scoreSum(child, mover) - virtualLoss) / childVisits;
+        		final double explore = explorationConstant * Math.sqrt(parentLog / childVisits);
+        		ucb1Value = exploit + explore;
+        	}
+
+            if (ucb1Value > bestValue)
+            {
+                bestValue = ucb1Value;
+                bestChild = child;
+                numBestFound = 1;
+            }
+            else if
+            (
+            	ucb1Value == bestValue &&
+            	ThreadLocalRandom.current().nextInt() % ++numBestFound == 0
+            )
+            {
+            	// this case implements random tie-breaking
+            	bestChild = child;
+            }
+        }
+
+        pool.addVirtualLoss(bestChild);
+        return bestChild;
+	}
+
+	//-------------------------------------------------------------------------
+
+}